@@ -1,77 +1,404 @@
-import com.google.gson.JsonElement;
-import com.google.gson.JsonParser;
-import com.google.gson.JsonSyntaxException;
-
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
 import java.util.*;
 import java.util.HashMap;
 import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.Iterator;
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
 
 
+// An aggregation server instance. Each instance has its own port, storage directory, weather data,
+// clock, metrics and pipeline, so several servers, e.g. one per region, can run in one JVM.
+// Instances may share the thread pools that serve connections and run cleanup.
 public class AggregationServer {
-    private static BlockingQueue<Task> taskQueue;
-    private static ScheduledExecutorService scheduler;
-    private static volatile boolean running;
-    private static ServerSocket serverSocket;
+    // PUTs and GETs pass through the stages sequence, apply, persist and respond, in arrival order
+    private RingPipeline<Task> pipeline;
+    private static final int RING_SIZE = 1024;
+    // Guards weatherData between the apply stage, which changes it, and the persist stage and cleanup thread
+    private final ReentrantReadWriteLock dataLock = new ReentrantReadWriteLock();
+    // Orders the writes to storage of the persist stage and the cleanup thread, which run without dataLock.
+    // It is taken before dataLock, never while holding it.
+    private final ReentrantLock storageLock = new ReentrantLock();
     private static final int MAX_UPDATES = 20;
     private static final int DATA_EXPIRATION_SECONDS = 30;  // Remove data if no communication for 30 seconds
     private static final int CLEANUP_INTERVAL_SECONDS = 3; // Cleanup interval: 10 seconds
+    private static final String AGGREGATE_PATH = "/aggregate.json";
+    private static final String HISTORY_PATH = "/history.json";
+    private static final String METRICS_PATH = "/metrics.json";
+    private static final String CHANGES_PATH = "/changes.json";
+    // Changes returned by one GET /changes.json unless it asks for a limit
+    private static final int DEFAULT_CHANGES_PAGE = 1000;
+    // accept() wakes up this often to see whether the server was handed over to another instance
+    private static final int ACCEPT_TIMEOUT_MILLIS = 200;
+
+    private final int port;
+    // Directory of the storage file and the archive
+    private final String dataDir;
+    // "json" (weather_data.json), "binary" (weather_data.bin) or "partitioned" (weather_data/<station>.json)
+    private String storageFormat = "json";
+    // "heap" (HashMap of WeatherEntry deques) or "offheap" (OffHeapWeatherData)
+    private String memoryFormat = "heap";
+    // Limits of the station budget
+    private int maxStations = StationBudget.DEFAULT_MAX_STATIONS;
+    private long maxBytes = StationBudget.DEFAULT_MAX_BYTES;
+    // Rate limits per client address and per station id of a PUT, in requests per second and burst size;
+    // a rate of 0 turns the limit off
+    public static final double DEFAULT_CLIENT_RATE = 1000;
+    public static final int DEFAULT_CLIENT_BURST = 2000;
+    public static final double DEFAULT_STATION_RATE = 50;
+    public static final int DEFAULT_STATION_BURST = 100;
+    private double clientRate = DEFAULT_CLIENT_RATE;
+    private int clientBurst = DEFAULT_CLIENT_BURST;
+    private double stationRate = DEFAULT_STATION_RATE;
+    private int stationBurst = DEFAULT_STATION_BURST;
+    // Changes kept for GET /changes.json
+    private int changeLogCapacity = ChangeLog.DEFAULT_CAPACITY;
+    // UDP port for fire-and-forget readings in BinaryProtocol frames, one frame per datagram; 0 turns it off
+    private int udpPort;
+    // The largest UDP payload, and the receive buffer that absorbs bursts while the receiver catches up
+    public static final int MAX_DATAGRAM_BYTES = 65507;
+    private static final int UDP_RECEIVE_BUFFER_BYTES = 4 * 1024 * 1024;
+    // A packet this far behind the latest one of its station comes from a station that restarted its
+    // clock, rather than from a stale or replayed packet
+    private static final int SEQUENCE_RESET_WINDOW = 1024;
+
+    // Pools given by the caller are shared with other instances, and are left running on stop
+    private final ExecutorService sharedClientPool;
+    private final ScheduledExecutorService sharedScheduler;
+    private ExecutorService clientHandlingPool;
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> cleanupTask;
+    private Thread acceptThread;
+    private volatile boolean running;
+    private ServerSocket serverSocket;
+    private DatagramChannel udpChannel;
+    private Thread udpThread;
+    // Set by a hot restart: the instance that now serves this one's port and connections
+    private volatile AggregationServer successor;
+    // Held by connection threads while they publish a request, and by a hot restart while it sets successor
+    private final ReentrantReadWriteLock handoffLock = new ReentrantReadWriteLock();
+    // When a restart began, until the first response after it is sent
+    private volatile long restartNanos;
 
     // List to store active client sockets
-    private static List<Socket> activeClientSockets;
+    private List<Socket> activeClientSockets;
 
     // Map to store the last 20 updates for each station
-    public static Map<String, Deque<WeatherEntry>> weatherData;
-    public static StorageFile weatherFile;
-    public static LamportClock clock = new LamportClock();
+    public Map<String, Deque<WeatherEntry>> weatherData = new HashMap<>();
+    public StorageFile weatherFile;
+    // Entries that left the in-memory window, kept on disk for history queries
+    public WeatherArchive archive;
+    public LamportClock clock = new LamportClock();
+    public ServerMetrics metrics = new ServerMetrics();
+    // Rolling min/max/avg per station and per state, kept in step with weatherData
+    public WeatherAggregates aggregates = new WeatherAggregates();
+    // Secondary indexes over the latest reading of each station, for filtered GETs
+    public StationIndex stationIndex = new StationIndex();
+    // Grid over station positions, for nearest-station and bounding-box GETs
+    public SpatialIndex spatialIndex = new SpatialIndex();
+    // Applied PUTs, expiries and evictions, for consumers that sync changes instead of every station
+    public ChangeLog changeLog = new ChangeLog(changeLogCapacity);
+    // Bounds the stations held in memory; the least recently used ones are spilled to the archive
+    public StationBudget budget = new StationBudget(maxStations, maxBytes);
+    // Content hash of the latest body of each station, to spot observations that are sent again
+    private Map<String, Integer> bodyHashes = new ConcurrentHashMap<>();
+    // Time of the latest duplicate PUT of a station, which keeps it alive past its latest entry
+    private Map<String, LocalDateTime> lastSeen = new ConcurrentHashMap<>();
+    // Null when the limit is off
+    private RateLimiter clientLimiter;
+    private RateLimiter stationLimiter;
+    // Lamport time of the latest datagram taken from each station, to drop stale and repeated ones.
+    // Written by the receiver thread only.
+    private Map<String, Integer> udpSequence = new ConcurrentHashMap<>();
+
+    // A server with thread pools of its own
+    public AggregationServer(int port, String dataDir) {
+        this(port, dataDir, null, null);
+    }
 
+    // A server that serves connections on clientPool and runs cleanup on scheduler, both shared
+    public AggregationServer(int port, String dataDir, ExecutorService clientPool, ScheduledExecutorService scheduler) {
+        this.port = port;
+        this.dataDir = dataDir;
+        this.sharedClientPool = clientPool;
+        this.sharedScheduler = scheduler;
+    }
+
+    // Usage: AggregationServer [port] [json|binary|partitioned] [heap|offheap] [--max-stations=N] [--max-bytes=N]
+    //        [--client-rate=N] [--client-burst=N] [--station-rate=N] [--station-burst=N] [--udp-port=N]
+    //        [--change-log=N]
     public static void main(String[] args) {
+        AggregationServer server = fromArgs(args);
+        try {
+            server.start();
+            server.await();
+        } catch (IOException e) {
+            System.out.println("Error occurred: " + e.getMessage());
+        } catch (InterruptedException e) {
+            server.stop();
+        }
+    }
+
+    // Method to configure a server from command-line arguments; it stores its data under target/data
+    public static AggregationServer fromArgs(String[] args) {
+        // The budget and rate limit options may come anywhere; the other arguments are positional
+        List<String> positional = new ArrayList<>();
+        int maxStations = StationBudget.DEFAULT_MAX_STATIONS;
+        long maxBytes = StationBudget.DEFAULT_MAX_BYTES;
+        double clientRate = DEFAULT_CLIENT_RATE;
+        int clientBurst = DEFAULT_CLIENT_BURST;
+        double stationRate = DEFAULT_STATION_RATE;
+        int stationBurst = DEFAULT_STATION_BURST;
+        int udpPort = 0;
+        int changeLogCapacity = ChangeLog.DEFAULT_CAPACITY;
+        for (String arg : args) {
+            if (arg.startsWith("--max-stations=")) {
+                maxStations = Integer.parseInt(arg.substring("--max-stations=".length()));
+            } else if (arg.startsWith("--max-bytes=")) {
+                maxBytes = Long.parseLong(arg.substring("--max-bytes=".length()));
+            } else if (arg.startsWith("--client-rate=")) {
+                clientRate = Double.parseDouble(arg.substring("--client-rate=".length()));
+            } else if (arg.startsWith("--client-burst=")) {
+                clientBurst = Integer.parseInt(arg.substring("--client-burst=".length()));
+            } else if (arg.startsWith("--station-rate=")) {
+                stationRate = Double.parseDouble(arg.substring("--station-rate=".length()));
+            } else if (arg.startsWith("--station-burst=")) {
+                stationBurst = Integer.parseInt(arg.substring("--station-burst=".length()));
+            } else if (arg.startsWith("--udp-port=")) {
+                udpPort = Integer.parseInt(arg.substring("--udp-port=".length()));
+            } else if (arg.startsWith("--change-log=")) {
+                changeLogCapacity = Integer.parseInt(arg.substring("--change-log=".length()));
+            } else {
+                positional.add(arg);
+            }
+        }
+
+        AggregationServer server = new AggregationServer(
+                positional.isEmpty() ? 4567 : Integer.parseInt(positional.get(0)), "target/data");
+        if (positional.size() > 1) server.setStorageFormat(positional.get(1));
+        if (positional.size() > 2) server.setMemoryFormat(positional.get(2));
+        server.setBudget(maxStations, maxBytes);
+        server.setRateLimits(clientRate, clientBurst, stationRate, stationBurst);
+        server.setUdpPort(udpPort);
+        server.setChangeLogCapacity(changeLogCapacity);
+        return server;
+    }
+
+    // The setters take effect on the next start
+    public void setStorageFormat(String storageFormat) {
+        this.storageFormat = storageFormat;
+    }
+
+    public void setMemoryFormat(String memoryFormat) {
+        this.memoryFormat = memoryFormat;
+    }
+
+    public void setBudget(int maxStations, long maxBytes) {
+        this.maxStations = maxStations;
+        this.maxBytes = maxBytes;
+    }
+
+    public void setRateLimits(double clientRate, int clientBurst, double stationRate, int stationBurst) {
+        this.clientRate = clientRate;
+        this.clientBurst = clientBurst;
+        this.stationRate = stationRate;
+        this.stationBurst = stationBurst;
+    }
+
+    public void setUdpPort(int udpPort) {
+        this.udpPort = udpPort;
+    }
+
+    public void setChangeLogCapacity(int changeLogCapacity) {
+        this.changeLogCapacity = changeLogCapacity;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    // Method to recover the stored data, start the pipeline and cleanup, and accept connections on a
+    // thread of its own. Returns once the server is ready, so clients connecting next are served.
+    public synchronized void start() throws IOException {
+        if (running) return;
+        serverSocket = new ServerSocket(port);
+        serverSocket.setSoTimeout(ACCEPT_TIMEOUT_MILLIS);
+        if (udpPort > 0) {
+            try {
+                udpChannel = DatagramChannel.open();
+                udpChannel.setOption(StandardSocketOptions.SO_RCVBUF, UDP_RECEIVE_BUFFER_BYTES);
+                udpChannel.bind(new InetSocketAddress(udpPort));
+            } catch (IOException e) {
+                serverSocket.close();
+                if (udpChannel != null) udpChannel.close();
+                udpChannel = null;
+                throw e;
+            }
+        }
         running = true;
-        taskQueue = new PriorityBlockingQueue<>();
         activeClientSockets = new CopyOnWriteArrayList<>();
-        ExecutorService clientHandlingPool = Executors.newCachedThreadPool();
+        clientHandlingPool = sharedClientPool != null ? sharedClientPool : Executors.newCachedThreadPool();
+        // Create a scheduled executor for the cleanup task, unless one is shared
+        scheduler = sharedScheduler != null ? sharedScheduler : Executors.newScheduledThreadPool(1);
 
         try {
-            weatherFile = new StorageFile("target/data", "weather_data.json");
+            if ("binary".equals(storageFormat)) {
+                weatherFile = new BinaryStorageFile(dataDir, "weather_data.bin");
+            } else if ("partitioned".equals(storageFormat)) {
+                weatherFile = new PartitionedStorageFile(dataDir, "weather_data");
+            } else {
+                weatherFile = new StorageFile(dataDir, "weather_data.json");
+            }
+            archive = new WeatherArchive(dataDir + "/archive");
+            // Release the memory of an off-heap map left by an earlier run, e.g. before a restart
+            if (weatherData instanceof OffHeapWeatherData) ((OffHeapWeatherData) weatherData).close();
             weatherData = weatherFile.recoverDataFromFile();
+            if ("offheap".equals(memoryFormat)) weatherData = moveOffHeap(weatherData);
+            budget = new StationBudget(maxStations, maxBytes);
+            changeLog = new ChangeLog(changeLogCapacity);
+            metrics.set("recovery.millis", weatherFile.lastRecoveryMillis);
+            metrics.set("recovery.stations", weatherFile.lastRecoveredStations);
+            metrics.set("recovery.entries", weatherFile.lastRecoveredEntries);
+
+            // The derived structures are independent of each other, so rebuild them side by side
+            long start = System.nanoTime();
+            CompletableFuture.allOf(
+                    CompletableFuture.runAsync(() -> aggregates.rebuild(weatherData)),
+                    CompletableFuture.runAsync(() -> stationIndex.rebuild(weatherData)),
+                    CompletableFuture.runAsync(() -> spatialIndex.rebuild(weatherData)),
+                    CompletableFuture.runAsync(this::rebuildBodyHashes),
+                    CompletableFuture.runAsync(() -> budget.rebuild(weatherData))).join();
+            metrics.set("recovery.index_rebuild.millis", (System.nanoTime() - start) / 1_000_000);
+            // The budget may have been lowered since the data was saved
+            List<String> evicted = evictOverBudget(null);
+            if (!evicted.isEmpty()) weatherFile.removeStations(evicted, weatherData);
         } catch (IOException e) {
             System.err.println("Error creating local storage: " + e.getMessage());
         }
 
-        // Start the task processing thread
-        Thread processingThread = new Thread(() -> {
-            while (running || !taskQueue.isEmpty()) {
-                try {
-                    Task task = taskQueue.poll(1, TimeUnit.SECONDS);
-                    if (task != null) {
-                        task.process();
-                    }
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
-            }
-        });
-        processingThread.start();
+        clientLimiter = clientRate > 0 ? new RateLimiter(clientRate, clientBurst) : null;
+        stationLimiter = stationRate > 0 ? new RateLimiter(stationRate, stationBurst) : null;
+        pipeline = createPipeline();
+        startServing();
+    }
+
+    // Sequencing stamps each request with the Lamport clock in arrival order. Every stage is one thread
+    // that handles the requests in that order.
+    private RingPipeline<Task> createPipeline() {
+        PersistStage persistStage = new PersistStage();
+        return new RingPipeline<>(RING_SIZE, Task::new,
+                List.of("sequence", "apply", "persist", "respond"),
+                List.of((task, endOfBatch) -> task.sequence(),
+                        (task, endOfBatch) -> task.apply(),
+                        persistStage,
+                        (task, endOfBatch) -> task.respond()),
+                metrics);
+    }
+
+    private void startServing() {
+        // Start the pipeline stages
+        pipeline.start();
 
         // Start the cleanup thread
         startCleanupThread();
 
-        int PORT;
-        if (args.length != 0) PORT = Integer.parseInt(args[0]);
-        else PORT = 4567;
+        acceptThread = new Thread(this::acceptConnections, "accept-" + port);
+        acceptThread.start();
+        // After a hot restart, the receiver of the first instance keeps running and routes to this one
+        if (udpChannel != null && udpThread == null) {
+            udpThread = new Thread(this::receiveDatagrams, "udp-" + udpPort);
+            udpThread.start();
+            System.out.println("Server receiving datagrams on UDP port " + udpPort);
+        }
+        System.out.println("Server started and listening on port " + port);
+    }
+
+    // Method to hand this server over to a new instance without closing the port or reloading storage.
+    // The new instance takes the bound socket, the open connections, the thread pools and the in-memory
+    // state, including the Lamport clock. Requests arriving meanwhile wait in its ring; every request
+    // already published here is answered first. Returns the new instance; this one is left stopped.
+    public synchronized AggregationServer hotRestart() {
+        if (!running) throw new IllegalStateException("Server on port " + port + " is not running");
+        long begin = System.nanoTime();
+        AggregationServer next = new AggregationServer(port, dataDir, sharedClientPool, sharedScheduler);
+        next.storageFormat = storageFormat;
+        next.memoryFormat = memoryFormat;
+        next.maxStations = maxStations;
+        next.maxBytes = maxBytes;
+        next.clientRate = clientRate;
+        next.clientBurst = clientBurst;
+        next.stationRate = stationRate;
+        next.stationBurst = stationBurst;
+        next.udpPort = udpPort;
+        next.changeLogCapacity = changeLogCapacity;
+        next.serverSocket = serverSocket;
+        next.udpChannel = udpChannel;
+        next.udpThread = udpThread;
+        next.activeClientSockets = activeClientSockets;
+        next.clientHandlingPool = clientHandlingPool;
+        next.scheduler = scheduler;
+        next.weatherData = weatherData;
+        next.weatherFile = weatherFile;
+        next.archive = archive;
+        next.clock = clock;
+        next.metrics = metrics;
+        next.aggregates = aggregates;
+        next.stationIndex = stationIndex;
+        next.spatialIndex = spatialIndex;
+        next.budget = budget;
+        next.changeLog = changeLog;
+        next.bodyHashes = bodyHashes;
+        next.lastSeen = lastSeen;
+        next.clientLimiter = clientLimiter;
+        next.stationLimiter = stationLimiter;
+        next.udpSequence = udpSequence;
+        next.pipeline = next.createPipeline();
+        next.running = true;
+
+        // From here on, connection threads publish to the new ring, which is not yet processed
+        handoffLock.writeLock().lock();
         try {
-            serverSocket = new ServerSocket(PORT);
-            System.out.println("Server started and listening on port " + PORT);
+            successor = next;
+            running = false;
+        } finally {
+            handoffLock.writeLock().unlock();
+        }
 
+        // Drain: the requests published here are applied, persisted and answered
+        pipeline.stop();
+        cleanupTask.cancel(false);
+        // Wait for a cleanup that is still running, which holds the storage lock until its removals are saved
+        storageLock.lock();
+        storageLock.unlock();
+
+        // This accept thread ends within ACCEPT_TIMEOUT_MILLIS; until then both accept, and route to next
+        next.restartNanos = begin;
+        next.startServing();
+        metrics.increment("restart.hot");
+        metrics.set("restart.handoff_micros", (System.nanoTime() - begin) / 1000);
+        return next;
+    }
+
+    private void acceptConnections() {
+        try {
             while (running) {
                 try {
                     Socket clientSocket = serverSocket.accept();
+                    clientSocket.setSoTimeout(0);
+                    // Responses are written whole, or a chunk at a time, so Nagle's algorithm would only
+                    // hold the last piece back until the client acknowledges the one before
+                    clientSocket.setTcpNoDelay(true);
                     activeClientSockets.add(clientSocket);  // Add to list of active sockets
                     clientHandlingPool.execute(new ClientHandler(clientSocket));
+                } catch (SocketTimeoutException e) {
+                    // Check running again, which a hot restart clears
                 } catch (SocketException e) {
                     if (!running) {
                         System.out.println("Server stopped accepting new connections.");
@@ -82,71 +409,131 @@ public class AggregationServer {
             }
         } catch (IOException e) {
             System.out.println("Error occurred: " + e.getMessage());
-        } finally {
-            clientHandlingPool.shutdown();
-            try {
-                if (!clientHandlingPool.awaitTermination(60, TimeUnit.SECONDS)) {
-                    clientHandlingPool.shutdownNow();
-                }
-            } catch (InterruptedException e) {
-                clientHandlingPool.shutdownNow();
-            }
-            // System.out.println("Server shut down.");
         }
     }
 
-    public static void startCleanupThread() {
-        // Create a scheduled executor that runs the cleanup task periodically
-        scheduler = Executors.newScheduledThreadPool(1);
+    // Method to wait until the server stops accepting connections, following any hot restarts
+    public void await() throws InterruptedException {
+        Thread thread = acceptThread;
+        if (thread != null) thread.join();
+        AggregationServer next = successor;
+        if (next != null) next.await();
+    }
 
-        // Schedule the cleanup task at fixed intervals
-        scheduler.scheduleAtFixedRate(() -> {
+    private void startCleanupThread() {
+        Runnable cleanup = () -> {
             // System.out.println("Running cleanup task...");
             LocalDateTime now = LocalDateTime.now();
+            ServerEvents.Cleanup event = new ServerEvents.Cleanup();
+            event.begin();
 
             // Iterate over the weatherData map and remove stations that haven't communicated in 30 seconds
-            Iterator<Map.Entry<String, Deque<WeatherEntry>>> iterator = weatherData.entrySet().iterator();
-
-            while (iterator.hasNext()) {
-                Map.Entry<String, Deque<WeatherEntry>> entry = iterator.next();
-                Deque<WeatherEntry> updates = entry.getValue();
-
-                // Get the timestamp of the last update for this station
-                WeatherEntry latestEntry = updates.peekLast();
-                if (latestEntry != null) {
-                    LocalDateTime lastCommunicationTime = latestEntry.getTimestampAsLocalDateTime();
-                    Duration duration = Duration.between(lastCommunicationTime, now);
-
-                    // If the last communication is older than DATA_EXPIRATION_SECONDS, remove the station
-                    if (duration.getSeconds() > DATA_EXPIRATION_SECONDS) {
-                        System.out.println("Removing station " + entry.getKey() + " due to inactivity.");
-                        iterator.remove();  // Remove the station from weatherData
+            List<String> removed = new ArrayList<>();
+            StorageSnapshot snapshot = null;
+            storageLock.lock();
+            dataLock.writeLock().lock();
+            try {
+                Iterator<Map.Entry<String, Deque<WeatherEntry>>> iterator = weatherData.entrySet().iterator();
+
+                while (iterator.hasNext()) {
+                    Map.Entry<String, Deque<WeatherEntry>> entry = iterator.next();
+                    Deque<WeatherEntry> updates = entry.getValue();
+
+                    // Get the timestamp of the last update for this station
+                    WeatherEntry latestEntry = updates.peekLast();
+                    if (latestEntry != null) {
+                        LocalDateTime lastCommunicationTime = latestEntry.getTimestampAsLocalDateTime();
+                        LocalDateTime lastDuplicate = lastSeen.get(entry.getKey());
+                        if (lastDuplicate != null && lastDuplicate.isAfter(lastCommunicationTime)) {
+                            lastCommunicationTime = lastDuplicate;
+                        }
+                        Duration duration = Duration.between(lastCommunicationTime, now);
+
+                        // If the last communication is older than DATA_EXPIRATION_SECONDS, remove the station
+                        if (duration.getSeconds() > DATA_EXPIRATION_SECONDS) {
+                            System.out.println("Removing station " + entry.getKey() + " due to inactivity.");
+                            iterator.remove();  // Remove the station from weatherData
+                            removed.add(entry.getKey());
+                            dropStation(entry.getKey(), updates);
+                            changeLog.removed("expired", entry.getKey());
+                        }
                     }
                 }
+
+                // Save the updated weather data back to the file once the lock is released, unless nothing expired
+                if (!removed.isEmpty()) snapshot = new StorageSnapshot(removed);
+                // Forget the datagram sequence of stations that are gone, or whose readings never got in
+                udpSequence.keySet().removeIf(stationId -> !weatherData.containsKey(stationId));
+                if (event.shouldCommit()) {
+                    event.stations = weatherData.size();
+                    event.removed = removed.size();
+                    event.lamportTime = clock.getTime();
+                    event.commit();
+                }
+            } finally {
+                dataLock.writeLock().unlock();
+                try {
+                    if (snapshot != null) weatherFile.removeStations(removed, snapshot);
+                } catch (IOException e) {
+                    System.err.println("Error saving weather data during cleanup: " + e.getMessage());
+                } finally {
+                    storageLock.unlock();
+                }
+                writeArchive();
             }
 
-            // Save the updated weather data back to the file
-            try {
-                weatherFile.saveDataToFile(weatherData);
-            } catch (IOException e) {
-                System.err.println("Error saving weather data during cleanup: " + e.getMessage());
+            // Buckets that are full again hold nothing worth keeping; they need no lock
+            long nanos = System.nanoTime();
+            if (clientLimiter != null) {
+                clientLimiter.prune(nanos);
+                metrics.set("ratelimit.client.keys", clientLimiter.keys());
+            }
+            if (stationLimiter != null) {
+                stationLimiter.prune(nanos);
+                metrics.set("ratelimit.station.keys", stationLimiter.keys());
             }
+        };
 
+        // Schedule the cleanup task at fixed intervals. An exception escaping a run would cancel every later
+        // run without a word, so stations would never expire again: it is reported and the next run goes ahead.
+        cleanupTask = scheduler.scheduleAtFixedRate(() -> {
+            try {
+                cleanup.run();
+            } catch (RuntimeException e) {
+                System.err.println("Error during cleanup: " + e);
+            }
         }, 0, CLEANUP_INTERVAL_SECONDS, TimeUnit.SECONDS); // Run every 10 seconds
     }
 
-    public static void restart() {
-        running = true;  // Reset the running flag
-        // Reinitialize the server socket or any necessary components here if needed
-        main(new String[0]);  // Restart the server's main method
+    // Method to restart the server, which recovers its data from storage; see hotRestart for a fast restart
+    public synchronized void restart() throws IOException {
+        long begin = System.nanoTime();
+        stop();
+        restartNanos = begin;
+        start();
+        metrics.increment("restart.cold");
     }
 
-    public static void shutdown() {
+    // Method to stop the server: it stops accepting connections, closes the open ones, and stops the
+    // pipeline once it has answered the requests already published. Stopping twice does nothing, and
+    // stopping a server that was hot restarted stops the instance that took over.
+    public void stop() {
+        AggregationServer next = successor;
+        if (next != null) {
+            next.stop();
+            return;
+        }
+        stopServing();
+    }
+
+    private synchronized void stopServing() {
+        if (!running) return;
         running = false;
         try {
             if (serverSocket != null && !serverSocket.isClosed()) {
                 serverSocket.close();
             }
+            if (udpChannel != null) udpChannel.close();
 
             // Close all active client sockets
             for (Socket clientSocket : activeClientSockets) {
@@ -162,87 +549,621 @@ public class AggregationServer {
             System.out.println("Error occurred: " + e.getMessage());
         }
 
-        scheduler.shutdown(); // Initiates an orderly shutdown
+        // The receiver publishes nothing more, so the pipeline below drains everything it took
+        if (udpThread != null) {
+            try {
+                udpThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            udpThread = null;
+            udpChannel = null;
+        }
+
+        cleanupTask.cancel(false);
+        // The stages finish what was already published, then stop
+        pipeline.stop();
 
         try {
-            // Wait for any running tasks to finish
-            if (!scheduler.awaitTermination(10, TimeUnit.SECONDS)) {
-                System.err.println("Forcing shutdown due to timeout...");
-                scheduler.shutdownNow(); // Forcefully shut down if tasks didn't finish in time
-            }
+            acceptThread.join();
         } catch (InterruptedException e) {
-            System.err.println("Shutdown interrupted, forcing immediate shutdown...");
-            scheduler.shutdownNow(); // Forcefully shut down if interrupted
+            Thread.currentThread().interrupt();
+        }
+
+        // Wait for a cleanup that is still running, which holds the storage lock until its removals are saved
+        storageLock.lock();
+        storageLock.unlock();
+        try {
+            archive.flushAll();
+        } catch (IOException e) {
+            System.err.println("Error flushing the archive: " + e.getMessage());
+        }
+
+        // Pools of this server only are shut down; shared ones keep serving the other servers.
+        // A restart creates new ones.
+        if (sharedClientPool == null) clientHandlingPool.shutdown();
+        if (sharedScheduler == null) {
+            scheduler.shutdown(); // Initiates an orderly shutdown
+            try {
+                // Wait for any running tasks to finish
+                if (!scheduler.awaitTermination(10, TimeUnit.SECONDS)) {
+                    System.err.println("Forcing shutdown due to timeout...");
+                    scheduler.shutdownNow(); // Forcefully shut down if tasks didn't finish in time
+                }
+            } catch (InterruptedException e) {
+                System.err.println("Shutdown interrupted, forcing immediate shutdown...");
+                scheduler.shutdownNow(); // Forcefully shut down if interrupted
+            }
         }
 
         System.out.println("Cleanup thread stopped.");
     }
 
-    private static class ClientHandler implements Runnable {
+    // Method to copy recovered data into an off-heap map; data that does not fit stays on the heap
+    private static Map<String, Deque<WeatherEntry>> moveOffHeap(Map<String, Deque<WeatherEntry>> recovered) {
+        OffHeapWeatherData offHeap = new OffHeapWeatherData(MAX_UPDATES);
+        try {
+            offHeap.putAll(recovered);
+            return offHeap;
+        } catch (IllegalArgumentException e) {
+            System.err.println("Keeping weather data on the heap: " + e.getMessage());
+            offHeap.close();
+            return recovered;
+        }
+    }
+
+    // Method to archive the entries of a station removed from weatherData, and drop it from every derived structure
+    private void dropStation(String stationId, Deque<WeatherEntry> updates) {
+        for (WeatherEntry entry : updates) archive.append(stationId, entry);
+        archive.flush(stationId);
+        aggregates.removeStation(stationId);
+        stationIndex.remove(stationId);
+        spatialIndex.remove(stationId);
+        bodyHashes.remove(stationId);
+        lastSeen.remove(stationId);
+        budget.remove(stationId);
+    }
+
+    // Method to evict stations, least recently used first, until the budget is met; keep is never evicted.
+    // Returns the evicted stations, whose storage the caller removes. Called with the write lock held.
+    private List<String> evictOverBudget(String keep) {
+        List<String> evicted = new ArrayList<>();
+        while (budget.isOverBudget()) {
+            String stationId = budget.nextVictim(keep);
+            if (stationId == null) break;
+            long bytes = budget.bytes();
+            Deque<WeatherEntry> updates = weatherData.remove(stationId);
+            if (updates != null) {
+                metrics.add("budget.evicted_entries", updates.size());
+                dropStation(stationId, updates);
+            }
+            budget.remove(stationId);
+            changeLog.removed("evicted", stationId);
+            metrics.increment("budget.evicted_stations");
+            metrics.add("budget.evicted_bytes", bytes - budget.bytes());
+            evicted.add(stationId);
+        }
+        metrics.set("budget.stations", budget.stations());
+        metrics.set("budget.bytes", budget.bytes());
+        return evicted;
+    }
+
+    private void rebuildBodyHashes() {
+        bodyHashes.clear();
+        for (Map.Entry<String, Deque<WeatherEntry>> entry : weatherData.entrySet()) {
+            WeatherEntry latest = entry.getValue().peekLast();
+            if (entry.getKey() != null && latest != null) bodyHashes.put(entry.getKey(), latest.getBody().hashCode());
+        }
+    }
+
+    // A PUT is a duplicate when its body equals the latest one of the station, e.g. a retry or an unchanged file.
+    // The hash rules out most bodies without reading the latest entry.
+    private boolean isDuplicate(String stationId, HashMap<String, String> body) {
+        Integer hash = stationId == null ? null : bodyHashes.get(stationId);
+        if (hash == null || hash != body.hashCode()) return false;
+        Deque<WeatherEntry> updates = weatherData.get(stationId);
+        WeatherEntry latest = updates == null ? null : updates.peekLast();
+        return latest != null && latest.getBody().equals(body);
+    }
+
+    // The ETag of a station's latest entry: its receipt time and the hash of its body, which bodyHashes
+    // already holds. Entries never change once stored, and keep both across restarts.
+    private String etag(String stationId, WeatherEntry latest) {
+        Integer hash = bodyHashes.get(stationId);
+        if (hash == null) hash = latest.getBody().hashCode();
+        return "\"" + Long.toString(latest.getTimestampAsEpochMillis(), 36) + "-" + Integer.toHexString(hash) + "\"";
+    }
+
+    // A query parameter of a GET request; headers of the same name are not query parameters
+    private static String queryParam(HashMap<String, String> request, String name) {
+        return request.get(RequestResponseHandler.QUERY_PREFIX + name);
+    }
+
+    // Indexed query parameters of a GET request, e.g. {state=SA} for /weather.json?state=SA
+    private static Map<String, String> indexFilters(HashMap<String, String> request) {
+        Map<String, String> filters = new HashMap<>();
+        for (String field : StationIndex.FIELDS) {
+            if (queryParam(request, field) != null) filters.put(field, queryParam(request, field));
+        }
+        return filters;
+    }
+
+    // Method to write the archive blocks completed under the lock, once it is released. Archiving is
+    // best effort: a failure is reported but never fails the request.
+    private void writeArchive() {
+        try {
+            archive.writeBlocks();
+        } catch (IOException e) {
+            System.err.println("Error archiving: " + e.getMessage());
+        }
+    }
+
+    // A plain GET for one station, as opposed to an aggregate, history, metrics, filtered or spatial query
+    private static boolean isStationLookup(HashMap<String, String> request) {
+        String path = request.get("path");
+        return queryParam(request, "id") != null
+                && !AGGREGATE_PATH.equals(path) && !HISTORY_PATH.equals(path) && !METRICS_PATH.equals(path)
+                && !CHANGES_PATH.equals(path)
+                && indexFilters(request).isEmpty()
+                && queryParam(request, "near") == null && queryParam(request, "bbox") == null;
+    }
+
+    private class ClientHandler implements Runnable {
         private final Socket clientSocket;
 
         public ClientHandler(Socket socket) {
             this.clientSocket = socket;
         }
 
-        public static boolean isValidJson(String json) {
-            try {
-                JsonElement element = JsonParser.parseString(json);
-                return element.isJsonObject() || element.isJsonArray();
-            } catch (JsonSyntaxException e) {
-                return false;  // The string does not conform to JSON format
-            }
-        }
-
         @Override
         public void run() {
             try {
                 // noinspection InfiniteLoopStatement
                 while(true) {
                     HashMap<String, String> request = RequestResponseHandler.parseRequest(clientSocket);
-                    String op = request.get("operation");
-                    String body = request.get("body");
-                    String id = request.get("id");
-                    if (("PUT".equals(op) && "".equals(body)) || ("GET".equals(op) && !weatherData.containsKey(id))) {
-                        RequestResponseHandler.sendResponse(clientSocket, 204, null, -1);
-                    } else if ((!"PUT".equals(op)) && (!"GET".equals(op))) {
-                        RequestResponseHandler.sendResponse(clientSocket, 400, null, -1);
-                    } else if ("PUT".equals(op) && !isValidJson(body)) {
-                        RequestResponseHandler.sendResponse(clientSocket, 500, null, -1);
-                    } else {
-                        int receivedTime = Integer.parseInt(request.get("Lamport-Time"));
-                        clock.increaseTime(receivedTime);
+                    if (BinaryProtocol.UPGRADE.equals(request.get("Upgrade"))) {
+                        serveFrames();
+                        return;
+                    }
 
-                        // Add the task to the priority queue
-                        taskQueue.put(new Task(clientSocket, request, receivedTime));
+                    AggregationServer server = lockOwner();
+                    try {
+                        server.serve(clientSocket, request);
+                    } finally {
+                        server.handoffLock.readLock().unlock();
                     }
                 }
             } catch (SocketException e) {
-                if (!running) {
+                if (!current().running) {
                     System.out.println("Server shutting down, socket closed.");
                 }
-            } catch (IOException | InterruptedException e) {
+            } catch (IOException e) {
                 throw new RuntimeException(e);
             } finally {
                 activeClientSockets.remove(clientSocket);  // Remove from active list when done
             }
         }
+
+        // Method to switch the connection to BinaryProtocol and answer its frames until it is closed
+        private void serveFrames() throws IOException {
+            RequestResponseHandler.sendResponse(clientSocket, 101, null, -1,
+                    Map.of("Upgrade", BinaryProtocol.UPGRADE, "Connection", "Upgrade"));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+            OutputStream out = clientSocket.getOutputStream();
+            while (true) {
+                BinaryProtocol.Batch frame;
+                try {
+                    frame = BinaryProtocol.readBatch(in);
+                } catch (SocketException e) {
+                    throw e;
+                } catch (IOException e) {
+                    System.err.println("Closing connection after a bad frame: " + e.getMessage());
+                    clientSocket.close();
+                    return;
+                }
+                if (frame == null) return;
+
+                BinaryBatch batch;
+                AggregationServer server = lockOwner();
+                try {
+                    batch = server.publishBatch(clientSocket, frame);
+                } finally {
+                    server.handoffLock.readLock().unlock();
+                }
+                // The pipeline is not held up: the respond stage only counts the batch down
+                batch.await();
+                out.write(BinaryProtocol.encodeAck(batch.lamportTime, batch.statusCodes));
+                out.flush();
+            }
+        }
     }
 
-    private static class Task implements Comparable<Task> {
-        private final HashMap<String, String> message;
-        private final Socket clientSocket;
-        private final int priority;
+    // The server to hand a request to, with its handoff read lock held. After a hot restart it is the
+    // server that took over; the read lock keeps a hand-over from completing while a request is
+    // published to this server.
+    private AggregationServer lockOwner() {
+        AggregationServer server = this;
+        server.handoffLock.readLock().lock();
+        while (server.successor != null) {
+            AggregationServer next = server.successor;
+            server.handoffLock.readLock().unlock();
+            next.handoffLock.readLock().lock();
+            server = next;
+        }
+        return server;
+    }
+
+    // The readings of one binary frame while they go through the pipeline. The status of a reading
+    // turned away early is set by the connection thread; the others are set by the respond stage.
+    private static class BinaryBatch {
+        private final int[] statusCodes;
+        private final CountDownLatch pending;
+        private volatile int lamportTime = -1;
 
-        public Task(Socket clientSocket, HashMap<String, String> message, int priority) {
+        private BinaryBatch(int size) {
+            this.statusCodes = new int[size];
+            this.pending = new CountDownLatch(size);
+        }
+
+        private void complete(int index, int statusCode, int lamportTime) {
+            statusCodes[index] = statusCode;
+            if (lamportTime > this.lamportTime) this.lamportTime = lamportTime;
+            pending.countDown();
+        }
+
+        // Waits for every reading; the pipeline answers all it was given, even when stopping
+        private void await() throws InterruptedIOException {
+            try {
+                pending.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a batch");
+            }
+        }
+    }
+
+    // Method to check the readings of a binary frame and publish the valid ones to the pipeline. A frame
+    // takes one token of the client's rate limit, and each reading one of its station's.
+    private BinaryBatch publishBatch(Socket clientSocket, BinaryProtocol.Batch frame) {
+        int size = frame.readings.size();
+        BinaryBatch batch = new BinaryBatch(size);
+        metrics.increment("binary.frames");
+        metrics.add("binary.readings", size);
+        metrics.add("binary.bytes", frame.bytes);
+
+        long now = System.nanoTime();
+        boolean clientAllowed = clientLimiter == null
+                || clientLimiter.tryAcquire(clientSocket.getInetAddress().getHostAddress(), now) == 0;
+        if (!clientAllowed) metrics.add("ratelimit.client.rejected", size);
+        String readingBytes = String.valueOf(frame.bytes / Math.max(1, size));
+        for (int i = 0; i < size; i++) {
+            HashMap<String, String> body = frame.readings.get(i);
+            String stationId = body.get("id");
+            if (!clientAllowed) {
+                batch.complete(i, 429, -1);
+            } else if (stationId.isEmpty()) {
+                batch.complete(i, 500, -1);
+            } else if (stationLimiter != null && stationLimiter.tryAcquire(stationId, now) > 0) {
+                metrics.increment("ratelimit.station.rejected");
+                batch.complete(i, 429, -1);
+            } else {
+                // The request a task sees for a reading: a PUT of the reading's share of the frame
+                HashMap<String, String> request = new HashMap<>();
+                request.put("operation", "PUT");
+                request.put("Content-Length", readingBytes);
+                WeatherEntry entry = new WeatherEntry(body, LocalDateTime.now());
+                ServerEvents.QueueWait queueWait = new ServerEvents.QueueWait();
+                queueWait.begin();
+                int index = i;
+                pipeline.publish(task -> {
+                    task.set(null, request, frame.lamportTime, entry, queueWait);
+                    task.batch = batch;
+                    task.batchIndex = index;
+                });
+            }
+        }
+        return batch;
+    }
+
+    // Method to receive datagrams until the channel is closed. Each is decoded here and its readings are
+    // published to the pipeline, with no connection to serve and no response to send.
+    private void receiveDatagrams() {
+        DatagramChannel channel = udpChannel;
+        ByteBuffer packet = ByteBuffer.allocateDirect(MAX_DATAGRAM_BYTES);
+        while (true) {
+            packet.clear();
+            InetSocketAddress source;
+            try {
+                source = (InetSocketAddress) channel.receive(packet);
+            } catch (ClosedChannelException e) {
+                System.out.println("Server stopped receiving datagrams.");
+                return;
+            } catch (IOException e) {
+                System.err.println("Error receiving a datagram: " + e.getMessage());
+                continue;
+            }
+            packet.flip();
+            BinaryProtocol.Batch frame;
+            try {
+                frame = BinaryProtocol.decodeBatch(packet);
+            } catch (IOException e) {
+                current().metrics.increment("udp.malformed");
+                continue;
+            }
+
+            AggregationServer server = lockOwner();
+            try {
+                server.ingestDatagram(source, frame);
+            } finally {
+                server.handoffLock.readLock().unlock();
+            }
+        }
+    }
+
+    // Method to publish the readings of a datagram to the pipeline. A reading is dropped, as the sender
+    // expects no answer, if its station already sent a datagram as late, or if a rate limit is reached:
+    // the datagram takes one token of the sender's limit, and each reading one of its station's.
+    private void ingestDatagram(InetSocketAddress source, BinaryProtocol.Batch frame) {
+        int size = frame.readings.size();
+        metrics.increment("udp.packets");
+        metrics.add("udp.readings", size);
+        metrics.add("udp.bytes", frame.bytes);
+
+        long now = System.nanoTime();
+        if (clientLimiter != null && clientLimiter.tryAcquire(source.getAddress().getHostAddress(), now) > 0) {
+            metrics.add("ratelimit.client.rejected", size);
+            return;
+        }
+        String readingBytes = String.valueOf(frame.bytes / Math.max(1, size));
+        // Stations taken from this datagram, whose further readings in it share its Lamport time
+        Set<String> taken = new HashSet<>();
+        for (HashMap<String, String> body : frame.readings) {
+            String stationId = body.get("id");
+            if (stationId.isEmpty()) {
+                metrics.increment("udp.invalid");
+            } else if (!taken.contains(stationId) && !advanceSequence(stationId, frame.lamportTime)) {
+                metrics.increment("udp.stale");
+            } else if (stationLimiter != null && stationLimiter.tryAcquire(stationId, now) > 0) {
+                taken.add(stationId);
+                metrics.increment("ratelimit.station.rejected");
+            } else {
+                taken.add(stationId);
+                HashMap<String, String> request = new HashMap<>();
+                request.put("operation", "PUT");
+                request.put("Content-Length", readingBytes);
+                WeatherEntry entry = new WeatherEntry(body, LocalDateTime.now());
+                ServerEvents.QueueWait queueWait = new ServerEvents.QueueWait();
+                queueWait.begin();
+                pipeline.publish(task -> task.set(null, request, frame.lamportTime, entry, queueWait));
+            }
+        }
+    }
+
+    // Method to record the Lamport time of a station's datagram. Returns false if the station already
+    // sent one at that time or later, unless it is so far behind that the station has started over.
+    private boolean advanceSequence(String stationId, int lamportTime) {
+        Integer latest = udpSequence.get(stationId);
+        if (latest != null && lamportTime <= latest && latest - lamportTime < SEQUENCE_RESET_WINDOW) return false;
+        udpSequence.put(stationId, lamportTime);
+        return true;
+    }
+
+    // Method to answer a request at once if it is over a rate limit, empty or invalid, or else publish it
+    // to the pipeline
+    private void serve(Socket clientSocket, HashMap<String, String> request) throws IOException {
+        if (rejectOverLimit(clientSocket, request)) return;
+        long start = System.nanoTime();
+        String op = request.get("operation");
+        String body = request.get("body");
+        // The body is validated and decoded here, once, rather than on the serial stages
+        WeatherEntry entry = null;
+        if ("PUT".equals(op) && !"".equals(body)) {
+            ServerEvents.Decode decode = new ServerEvents.Decode();
+            decode.begin();
+            entry = WeatherCodec.decode(body);
+            if (decode.shouldCommit()) {
+                decode.stationId = entry == null ? null : entry.get("id");
+                decode.lamportTime = RequestResponseHandler.parseLamportTime(request.get("Lamport-Time"));
+                decode.valid = entry != null;
+                decode.commit();
+            }
+        }
+        metrics.increment("pipeline.parse.events");
+        metrics.add("pipeline.parse.busy_micros", (System.nanoTime() - start) / 1000);
+        // A GET of a station that is not stored is answered 204 by the apply stage: weatherData may only be
+        // read under its lock, which connection threads do not take
+        if ("PUT".equals(op) && "".equals(body)) {
+            RequestResponseHandler.sendResponse(clientSocket, 204, null, -1);
+        } else if ((!"PUT".equals(op)) && (!"GET".equals(op))) {
+            RequestResponseHandler.sendResponse(clientSocket, 400, null, -1);
+        } else if ("PUT".equals(op) && entry == null) {
+            RequestResponseHandler.sendResponse(clientSocket, 500, null, -1);
+        } else {
+            int receivedTime = Integer.parseInt(request.get("Lamport-Time"));
+            WeatherEntry decoded = entry;
+            ServerEvents.QueueWait queueWait = new ServerEvents.QueueWait();
+            queueWait.begin();
+
+            // Hand the request to the pipeline, which stamps, applies, persists and answers it
+            pipeline.publish(task -> task.set(clientSocket, request, receivedTime, decoded, queueWait));
+        }
+    }
+
+    // Method to answer 429 if the client, or the station of a PUT, is over its rate limit. It runs before
+    // the body is decoded or the request reaches the pipeline, so a flood is turned away cheaply.
+    private boolean rejectOverLimit(Socket clientSocket, HashMap<String, String> request) throws IOException {
+        long now = System.nanoTime();
+        long wait = 0;
+        String scope = "client";
+        if (clientLimiter != null) {
+            wait = clientLimiter.tryAcquire(clientSocket.getInetAddress().getHostAddress(), now);
+        }
+        if (wait == 0 && stationLimiter != null && "PUT".equals(request.get("operation"))) {
+            String stationId = WeatherCodec.peekStationId(request.get("body"));
+            if (stationId != null) wait = stationLimiter.tryAcquire(stationId, now);
+            scope = "station";
+        }
+        if (wait == 0) return false;
+
+        metrics.increment("ratelimit." + scope + ".rejected");
+        long retryAfterSeconds = Math.max(1, (wait + 999_999_999L) / 1_000_000_000L);
+        RequestResponseHandler.sendResponse(clientSocket, 429, null, -1,
+                Map.of("Retry-After", String.valueOf(retryAfterSeconds)));
+        return true;
+    }
+
+    // The server now serving this one's connections: itself, or the last one it was handed over to
+    private AggregationServer current() {
+        AggregationServer server = this;
+        while (server.successor != null) server = server.successor;
+        return server;
+    }
+
+    // One slot of the pipeline, reused by every request that passes through it
+    private class Task {
+        private HashMap<String, String> message;
+        private Socket clientSocket;
+        private int receivedTime;
+        // The decoded body of a PUT, null for a GET
+        private WeatherEntry entry;
+        // Filled in by the stages: the Lamport time, the response, and the station to save if any
+        private int lamportTime;
+        private int statusCode;
+        private Object response;
+        private Map<String, String> headers;
+        private String changedStation;
+        // Stations evicted to make room for this PUT, whose storage is removed by the persist stage
+        private List<String> evictedStations;
+        // Begun when the request was published, committed once the sequence stage takes it
+        private ServerEvents.QueueWait queueWait;
+        // Set for a reading of a binary frame, which is answered in one ACK with the rest of the frame.
+        // A reading of a datagram has neither this nor a socket, and is not answered.
+        private BinaryBatch batch;
+        private int batchIndex;
+        // Set by a history query: the in-memory entries in range, to which the archive is added once
+        // the lock is released
+        private List<WeatherEntry> historyWindow;
+        private LocalDateTime historyFrom;
+        private LocalDateTime historyTo;
+
+        // Method for the connection thread to fill the slot with a request
+        private void set(Socket clientSocket, HashMap<String, String> message, int receivedTime, WeatherEntry entry,
+                         ServerEvents.QueueWait queueWait) {
             this.clientSocket = clientSocket;
             this.message = message;
-            this.priority = priority;
+            this.receivedTime = receivedTime;
+            this.entry = entry;
+            this.queueWait = queueWait;
+            this.batch = null;
+            this.response = null;
+            this.headers = Collections.emptyMap();
+            this.changedStation = null;
+            this.evictedStations = Collections.emptyList();
+            this.historyWindow = null;
+        }
+
+        // Sequence stage: the receive and process events of the Lamport clock, in arrival order
+        private void sequence() {
+            clock.increaseTime(receivedTime);
+            clock.increaseTime();
+            lamportTime = clock.getTime();
+            if (queueWait.shouldCommit()) {
+                queueWait.operation = message.get("operation");
+                queueWait.stationId = stationId();
+                queueWait.lamportTime = lamportTime;
+                queueWait.commit();
+            }
+            queueWait = null;
+        }
+
+        // Apply stage: change weatherData for a PUT, or read it for a GET, and prepare the response
+        private void apply() {
+            ServerEvents.Apply event = new ServerEvents.Apply();
+            event.begin();
+            dataLock.writeLock().lock();
+            try {
+                if ("PUT".equals(message.get("operation"))) {
+                    applyPut();
+                } else if (!isStationLookup(message)) {
+                    query();
+                } else {
+                    String id = queryParam(message, "id");
+                    Deque<WeatherEntry> updates = weatherData.get(id);
+                    WeatherEntry latestWeatherEntry = updates == null ? null : updates.peekLast();
+                    budget.touch(id);
+                    if (latestWeatherEntry == null) {
+                        reply(204, null);
+                    } else {
+                        String etag = etag(id, latestWeatherEntry);
+                        if (etag.equals(message.get("If-None-Match"))) {
+                            // The client's cached copy is still the latest: no body to build or send
+                            metrics.increment("get.not_modified");
+                            headers = Map.of("ETag", etag, "Lamport-Time", String.valueOf(lamportTime));
+                            reply(304, null);
+                        } else {
+                            headers = Collections.singletonMap("ETag", etag);
+                            reply(200, latestWeatherEntry.getBody());
+                        }
+                    }
+                }
+            } finally {
+                dataLock.writeLock().unlock();
+            }
+            if (historyWindow != null) readHistory();
+            if (event.shouldCommit()) {
+                event.operation = message.get("operation");
+                event.stationId = stationId();
+                event.lamportTime = lamportTime;
+                event.statusCode = statusCode;
+                event.commit();
+            }
+        }
+
+        // Respond stage: answer the client once its change is persisted, then release the request
+        private void respond() {
+            ServerEvents.Respond event = new ServerEvents.Respond();
+            event.begin();
+            if (batch != null) {
+                batch.complete(batchIndex, statusCode, lamportTime);
+                batch = null;
+            } else if (clientSocket != null) {
+                try {
+                    RequestResponseHandler.sendResponse(clientSocket, statusCode, response, lamportTime, headers);
+                } catch (IOException e) {
+                    System.err.println("Error when sending response to ContentServer: " + e.getMessage());
+                }
+            }
+            if (event.shouldCommit()) {
+                event.operation = message.get("operation");
+                event.stationId = stationId();
+                event.lamportTime = lamportTime;
+                event.statusCode = statusCode;
+                event.commit();
+            }
+            if (restartNanos != 0) {
+                metrics.set("restart.first_response_micros", (System.nanoTime() - restartNanos) / 1000);
+                restartNanos = 0;
+            }
+            message = null;
+            clientSocket = null;
+            entry = null;
+            response = null;
+        }
+
+        // The station of a PUT, or the one asked for by a GET; null for other queries
+        private String stationId() {
+            return entry != null ? entry.get("id") : queryParam(message, "id");
+        }
+
+        private void reply(int statusCode, Object response) {
+            this.statusCode = statusCode;
+            this.response = response;
         }
 
-        // Method to add new weather data to the map
+        // Method to add new weather data to the map. Every entry has a station id: WeatherCodec.decode and
+        // the frame and datagram readers turn away readings without one.
         private int addWeatherData(WeatherEntry entry) {
-            String stationId = entry.body.get("id");
+            String stationId = entry.get("id");
             int statusCode;
 
             // Get the deque for the stationId, or create it if it doesn't exist
@@ -251,54 +1172,295 @@ public class AggregationServer {
             } else {
                 statusCode = 201;
                 weatherData.put(stationId, new LinkedList<>());
+                // Drop anything left over from an earlier history of this station
+                aggregates.removeStation(stationId);
             }
 
             Deque<WeatherEntry> updates = weatherData.get(stationId);
 
             // If the deque is already full (20 entries), remove the oldest one
             if (updates.size() >= MAX_UPDATES) {
-                updates.pollFirst(); // Removes the oldest update
+                WeatherEntry oldest = updates.pollFirst(); // Removes the oldest update
+                aggregates.evictOldest(stationId);
+                archive.append(stationId, oldest);
+                budget.add(stationId, -oldest.estimatedBytes());
             }
 
             // Add the new entry to the deque
             updates.offerLast(entry);
+            budget.add(stationId, entry.estimatedBytes());
+            aggregates.add(entry);
+            stationIndex.update(stationId, entry);
+            spatialIndex.update(stationId, entry);
             return statusCode;
         }
 
-        public void process() {
+        private void applyPut() {
+            // Off-heap records hold a fixed number of fields
+            if (weatherData instanceof OffHeapWeatherData && !((OffHeapWeatherData) weatherData).fits(entry)) {
+                reply(400, null);
+                return;
+            }
+            String stationId = entry.get("id");
+            HashMap<String, String> body = entry.getBody();
+            if (isDuplicate(stationId, body)) {
+                // Nothing to apply or persist; only the station's liveness moves forward
+                lastSeen.put(stationId, entry.getTimestampAsLocalDateTime());
+                budget.touch(stationId);
+                metrics.increment("put.duplicates");
+                metrics.add("put.duplicate_bytes", Long.parseLong(message.getOrDefault("Content-Length", "0")));
+                reply(200, body);
+                headers = Collections.singletonMap("Duplicate", "true");
+                return;
+            }
+
+            reply(addWeatherData(entry), body);
+            changeLog.put(lamportTime, stationId, entry);
+            changedStation = stationId;
+            metrics.increment("put.applied");
+            bodyHashes.put(stationId, body.hashCode());
+            lastSeen.remove(stationId);
+            evictedStations = evictOverBudget(stationId);
+        }
+
+        // Method to answer aggregate, filtered and spatial GETs
+        private void query() {
+            Object result;
             try {
-                clock.increaseTime();
-                if ("PUT".equals(message.get("operation"))) {
-                    WeatherEntry weather = new WeatherEntry(message.get("body"));
-                    int statusCode = addWeatherData(weather);
-                    weatherFile.saveDataToFile(weatherData);
-
-                    RequestResponseHandler.sendResponse(clientSocket,
-                            statusCode,
-                            weather.body,
-                            clock.getTime());
-                } else if ("GET".equals(message.get("operation"))) {
-                    String id = message.get("id");
-                    if (weatherData.containsKey(id)) {
-                        Deque<WeatherEntry> weatherList = weatherData.get(id);
-                        WeatherEntry latestWeatherEntry = weatherList.peekLast();
-
-                        if (latestWeatherEntry != null) {
-                            RequestResponseHandler.sendResponse(clientSocket,
-                                    200,
-                                    latestWeatherEntry.body,
-                                    clock.getTime());
-                        }
+                if (METRICS_PATH.equals(message.get("path"))) {
+                    result = metrics.snapshot();
+                } else if (AGGREGATE_PATH.equals(message.get("path"))) {
+                    result = queryParam(message, "id") != null
+                            ? aggregates.stationSummary(queryParam(message, "id"))
+                            : aggregates.stateSummary(queryParam(message, "state"));
+                } else if (HISTORY_PATH.equals(message.get("path"))) {
+                    // Answered by readHistory, once the lock is released
+                    history();
+                    return;
+                } else if (CHANGES_PATH.equals(message.get("path"))) {
+                    result = changes();
+                    if (result == null) {
+                        // The changes after the cursor are gone: the client must resync from GET /weather.json
+                        metrics.increment("changes.resyncs");
+                        reply(410, null);
+                        return;
                     }
+                } else if (queryParam(message, "near") != null) {
+                    // near=lat,lon&k=N: the N closest stations, nearest first
+                    String[] point = queryParam(message, "near").split(",");
+                    int k = queryParam(message, "k") != null ? Integer.parseInt(queryParam(message, "k")) : 1;
+                    if (point.length != 2 || k < 1) throw new IllegalArgumentException("Invalid near query");
+                    result = latestReadings(spatialIndex.nearest(
+                            Double.parseDouble(point[0]), Double.parseDouble(point[1]), k));
+                } else if (queryParam(message, "bbox") != null) {
+                    // bbox=minLat,minLon,maxLat,maxLon: every station inside the box, by id
+                    String[] box = queryParam(message, "bbox").split(",");
+                    if (box.length != 4) throw new IllegalArgumentException("Invalid bbox query");
+                    result = latestReadings(spatialIndex.withinBox(Double.parseDouble(box[0]),
+                            Double.parseDouble(box[1]), Double.parseDouble(box[2]), Double.parseDouble(box[3])));
+                } else if (indexFilters(message).isEmpty()) {
+                    // No id and no filter: the latest reading of every station, in station id order, with
+                    // the cursor from which GET /changes.json continues this snapshot
+                    result = latestReadings(new TreeSet<>(weatherData.keySet()));
+                    headers = Collections.singletonMap("Change-Cursor", changeLog.cursor());
+                } else {
+                    // Latest reading of every matching station, in station id order
+                    result = latestReadings(new TreeSet<>(stationIndex.lookup(indexFilters(message))));
                 }
+            } catch (IllegalArgumentException | DateTimeParseException e) {
+                reply(400, null);
+                return;
+            }
+
+            if (result != null && !(result instanceof List && ((List<?>) result).isEmpty())) {
+                reply(200, result);
+            } else {
+                reply(204, null);
+            }
+        }
+
+        // cursor=C&limit=N (both optional): up to N changes after cursor C, oldest first, and the cursor to
+        // continue from; null if the changes after C are no longer in the log
+        private Map<String, Object> changes() {
+            String limitParam = queryParam(message, "limit");
+            int limit = limitParam != null ? Integer.parseInt(limitParam) : DEFAULT_CHANGES_PAGE;
+            if (limit < 1 || limit > ChangeLog.MAX_PAGE) throw new IllegalArgumentException("Invalid limit");
+            String cursor = queryParam(message, "cursor");
+            List<ChangeLog.Change> changes = changeLog.since(cursor, limit);
+            if (changes == null) return null;
+
+            List<Map<String, Object>> page = new ArrayList<>(changes.size());
+            for (ChangeLog.Change change : changes) page.add(change.toJson());
+            String next = changeLog.cursorAfter(cursor, changes);
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("changes", page);
+            result.put("cursor", next);
+            result.put("more", !changes.isEmpty() && changes.get(changes.size() - 1).seq < changeLog.latestSeq());
+            headers = Collections.singletonMap("Change-Cursor", next);
+            metrics.add("changes.sent", changes.size());
+            return result;
+        }
+
+        // id=X&from=T1&to=T2 (ISO local date-times, both optional): archived and in-memory entries, oldest first.
+        // Under the lock, only the in-memory entries in range are copied.
+        private void history() {
+            String id = queryParam(message, "id");
+            if (id == null) throw new IllegalArgumentException("Missing id in history query");
+            historyFrom = queryParam(message, "from") != null
+                    ? LocalDateTime.parse(queryParam(message, "from")) : LocalDateTime.of(1970, 1, 1, 0, 0);
+            historyTo = queryParam(message, "to") != null
+                    ? LocalDateTime.parse(queryParam(message, "to")) : LocalDateTime.of(9999, 12, 31, 23, 59);
+
+            historyWindow = new ArrayList<>();
+            for (WeatherEntry entry : weatherData.getOrDefault(id, new LinkedList<>())) {
+                LocalDateTime timestamp = entry.getTimestampAsLocalDateTime();
+                if (!timestamp.isBefore(historyFrom) && !timestamp.isAfter(historyTo)) historyWindow.add(entry);
+            }
+        }
+
+        // Method to read the archive for a history query, without the lock. An entry may have left memory for
+        // the archive since the copy was taken (the cleanup thread can expire the station); it is kept once.
+        private void readHistory() {
+            List<WeatherEntry> entries;
+            try {
+                entries = archive.read(queryParam(message, "id"), historyFrom, historyTo);
             } catch (IOException e) {
-                System.err.println("Error when sending response to ContentServer: " + e.getMessage());
+                System.err.println("Error reading the archive: " + e.getMessage());
+                historyWindow = null;
+                reply(500, null);
+                return;
             }
+            for (WeatherEntry entry : historyWindow) {
+                if (!archivedAlready(entries, entry)) entries.add(entry);
+            }
+            historyWindow = null;
+            reply(entries.isEmpty() ? 204 : 200, entries.isEmpty() ? null : entries);
         }
 
+        // The archive keeps timestamps to the millisecond, so an entry is matched by those and its body
+        private boolean archivedAlready(List<WeatherEntry> archived, WeatherEntry entry) {
+            for (int i = archived.size() - 1; i >= 0; i--) {
+                WeatherEntry other = archived.get(i);
+                if (other.getTimestampAsEpochMillis() == entry.getTimestampAsEpochMillis()
+                        && other.getBody().equals(entry.getBody())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // Latest reading of each station, in the given order; stations no longer stored are skipped. Only
+        // the entries are collected here, under the lock; each body is built as the response streams it,
+        // so the bodies of a large result are never all in memory at once. Entries do not change once stored.
+        private List<HashMap<String, String>> latestReadings(Collection<String> stationIds) {
+            List<WeatherEntry> latest = new ArrayList<>();
+            for (String stationId : stationIds) {
+                Deque<WeatherEntry> updates = weatherData.get(stationId);
+                if (updates != null && !updates.isEmpty()) latest.add(updates.peekLast());
+            }
+            return new AbstractList<>() {
+                @Override
+                public HashMap<String, String> get(int index) {
+                    return latest.get(index).getBody();
+                }
+
+                @Override
+                public int size() {
+                    return latest.size();
+                }
+            };
+        }
+    }
+
+    // The stations a storage write needs, copied under dataLock so the write itself runs without it.
+    // Only the given stations are copied up front. A format that rewrites the whole file asks for the
+    // others, and then gets a copy of every station, taken under the read lock at that point.
+    private class StorageSnapshot extends AbstractMap<String, Deque<WeatherEntry>> {
+        private final Set<String> copied;
+        private final Map<String, Deque<WeatherEntry>> stations = new HashMap<>();
+        private Map<String, Deque<WeatherEntry>> all;
+
+        // Called with dataLock held
+        private StorageSnapshot(Collection<String> stationIds) {
+            copied = new HashSet<>(stationIds);
+            for (String stationId : copied) {
+                Deque<WeatherEntry> updates = weatherData.get(stationId);
+                if (updates != null) stations.put(stationId, new ArrayDeque<>(updates));
+            }
+        }
+
+        private Map<String, Deque<WeatherEntry>> all() {
+            if (all == null) {
+                all = new HashMap<>();
+                dataLock.readLock().lock();
+                try {
+                    for (Map.Entry<String, Deque<WeatherEntry>> station : weatherData.entrySet()) {
+                        all.put(station.getKey(), new ArrayDeque<>(station.getValue()));
+                    }
+                } finally {
+                    dataLock.readLock().unlock();
+                }
+            }
+            return all;
+        }
+
+        @Override
+        public Deque<WeatherEntry> get(Object key) {
+            return all == null && copied.contains(key) ? stations.get(key) : all().get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return all == null && copied.contains(key) ? stations.containsKey(key) : all().containsKey(key);
+        }
+
+        @Override
+        public Set<Map.Entry<String, Deque<WeatherEntry>>> entrySet() {
+            return all().entrySet();
+        }
+    }
+
+    // Persist stage: saves the stations changed by a batch of PUTs once the batch ends, so the slower the
+    // storage, the larger the batches and the fewer the writes per PUT
+    private class PersistStage implements RingPipeline.Stage<Task> {
+        private final Set<String> changedStations = new LinkedHashSet<>();
+
         @Override
-        public int compareTo(Task other) {
-            return Integer.compare(this.priority, other.priority);
+        public void handle(Task task, boolean endOfBatch) {
+            if (task.changedStation != null) changedStations.add(task.changedStation);
+            // Saving a station that is no longer in weatherData removes it from storage
+            changedStations.addAll(task.evictedStations);
+            if (!endOfBatch || changedStations.isEmpty()) return;
+
+            ServerEvents.Persist event = new ServerEvents.Persist();
+            event.begin();
+            storageLock.lock();
+            long bytesBefore = weatherFile.bytesWritten;
+            // Only the copy is taken under the lock, so the apply stage goes on while the stations are written
+            StorageSnapshot snapshot;
+            dataLock.readLock().lock();
+            try {
+                snapshot = new StorageSnapshot(changedStations);
+            } finally {
+                dataLock.readLock().unlock();
+            }
+            try {
+                weatherFile.saveStations(changedStations, snapshot);
+                metrics.add("pipeline.persist.stations_saved", changedStations.size());
+            } catch (IOException e) {
+                System.err.println("Error saving weather data: " + e.getMessage());
+            } finally {
+                storageLock.unlock();
+                if (event.shouldCommit()) {
+                    event.stationId = changedStations.iterator().next();
+                    event.stations = changedStations.size();
+                    event.lamportTime = task.lamportTime;
+                    event.bytes = weatherFile.bytesWritten - bytesBefore;
+                    event.commit();
+                }
+                changedStations.clear();
+            }
+            writeArchive();
         }
     }
 }
@@ -0,0 +1,244 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// A compact binary protocol for machine-to-machine feeds, spoken on a connection after an HTTP upgrade:
+//   PUT /weather.json HTTP/1.1      ->   HTTP/1.1 101 Switching Protocols
+//   Upgrade: weather-frames/1            Upgrade: weather-frames/1
+// A server without it answers the empty PUT with 204, and the client keeps using HTTP. After the
+// upgrade, the client sends frames and the server answers each with one ACK frame, in order.
+//
+// Every frame is a 4-byte length of the rest, a type byte and the Lamport time (int). A PUT_BATCH
+// frame then holds the field names used by its readings, once, followed by the readings: the station
+// id, then each field as a name index, a kind and a value. Integers are zigzag varints and decimals
+// 8-byte doubles, but only when they print back to the same text, so readings arrive unchanged. An
+// ACK frame holds the status code of each reading, as an HTTP response would.
+public class BinaryProtocol {
+    public static final String UPGRADE = "weather-frames/1";
+    // Larger frames are refused, so a bad length cannot make the server allocate without bound
+    public static final int MAX_FRAME_BYTES = 16 * 1024 * 1024;
+
+    static final byte PUT_BATCH = 1;
+    static final byte ACK = 2;
+
+    private static final byte TEXT = 0;
+    private static final byte INTEGER = 1;
+    private static final byte DECIMAL = 2;
+    private static final byte NULL = 3;
+
+    // The readings of a PUT_BATCH frame; each body includes its "id"
+    public static class Batch {
+        public final int lamportTime;
+        public final List<HashMap<String, String>> readings;
+        // Size of the frame, without its length prefix
+        public final int bytes;
+
+        Batch(int lamportTime, List<HashMap<String, String>> readings, int bytes) {
+            this.lamportTime = lamportTime;
+            this.readings = readings;
+            this.bytes = bytes;
+        }
+    }
+
+    // The answer to a PUT_BATCH frame: the server's Lamport time and a status code per reading
+    public static class Ack {
+        public final int lamportTime;
+        public final int[] statusCodes;
+
+        Ack(int lamportTime, int[] statusCodes) {
+            this.lamportTime = lamportTime;
+            this.statusCodes = statusCodes;
+        }
+    }
+
+    // Method to encode readings, each a map of fields with an "id", as one PUT_BATCH frame
+    public static byte[] encodeBatch(int lamportTime, List<? extends Map<String, String>> readings) {
+        Map<String, Integer> names = new LinkedHashMap<>();
+        for (Map<String, String> reading : readings) {
+            for (String name : reading.keySet()) {
+                if (!"id".equals(name)) names.putIfAbsent(name, names.size());
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Varint.write(out, names.size());
+        for (String name : names.keySet()) writeString(out, name);
+        Varint.write(out, readings.size());
+        for (Map<String, String> reading : readings) {
+            String stationId = reading.get("id");
+            writeString(out, stationId == null ? "" : stationId);
+            Varint.write(out, reading.size() - (reading.containsKey("id") ? 1 : 0));
+            for (Map.Entry<String, String> field : reading.entrySet()) {
+                if ("id".equals(field.getKey())) continue;
+                Varint.write(out, names.get(field.getKey()));
+                writeValue(out, field.getValue());
+            }
+        }
+        return frame(PUT_BATCH, lamportTime, out);
+    }
+
+    // Method to encode the ACK of a batch
+    public static byte[] encodeAck(int lamportTime, int[] statusCodes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Varint.write(out, statusCodes.length);
+        for (int statusCode : statusCodes) {
+            out.write(statusCode >>> 8);
+            out.write(statusCode);
+        }
+        return frame(ACK, lamportTime, out);
+    }
+
+    // Method to read a PUT_BATCH frame; null if the connection was closed between frames
+    public static Batch readBatch(DataInputStream in) throws IOException {
+        ByteBuffer frame = readFrame(in, PUT_BATCH);
+        return frame == null ? null : parseBatch(frame);
+    }
+
+    // Method to decode a PUT_BATCH frame received whole, e.g. as one UDP datagram
+    public static Batch decodeBatch(ByteBuffer packet) throws IOException {
+        if (packet.remaining() < 9 || packet.getInt() != packet.remaining()) {
+            throw new IOException("Packet is not one whole frame");
+        }
+        ByteBuffer frame = packet.slice();
+        byte type = frame.get();
+        if (type != PUT_BATCH) throw new IOException("Expected a frame of type " + PUT_BATCH + ", got " + type);
+        return parseBatch(frame);
+    }
+
+    // The readings of a PUT_BATCH frame, positioned after its type
+    private static Batch parseBatch(ByteBuffer frame) throws IOException {
+        try {
+            int lamportTime = frame.getInt();
+            String[] names = new String[readCount(frame)];
+            for (int i = 0; i < names.length; i++) names[i] = readString(frame);
+            int count = readCount(frame);
+            List<HashMap<String, String>> readings = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                HashMap<String, String> reading = new HashMap<>();
+                reading.put("id", readString(frame));
+                int fields = readCount(frame);
+                for (int j = 0; j < fields; j++) {
+                    int name = readCount(frame);
+                    if (name >= names.length) throw new IOException("Unknown field name " + name);
+                    reading.put(names[name], readValue(frame));
+                }
+                readings.add(reading);
+            }
+            if (frame.hasRemaining()) throw new IOException("Bytes left after the readings");
+            return new Batch(lamportTime, readings, frame.limit());
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated frame", e);
+        }
+    }
+
+    // Method to read an ACK frame
+    public static Ack readAck(DataInputStream in) throws IOException {
+        ByteBuffer frame = readFrame(in, ACK);
+        if (frame == null) throw new EOFException("Connection closed before the ACK");
+        try {
+            int lamportTime = frame.getInt();
+            int[] statusCodes = new int[readCount(frame)];
+            for (int i = 0; i < statusCodes.length; i++) statusCodes[i] = frame.getShort() & 0xFFFF;
+            return new Ack(lamportTime, statusCodes);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated frame", e);
+        }
+    }
+
+    private static byte[] frame(byte type, int lamportTime, ByteArrayOutputStream payload) {
+        ByteBuffer frame = ByteBuffer.allocate(9 + payload.size());
+        frame.putInt(5 + payload.size()).put(type).putInt(lamportTime).put(payload.toByteArray());
+        return frame.array();
+    }
+
+    // The frame after its length and type, positioned at the Lamport time
+    private static ByteBuffer readFrame(DataInputStream in, byte type) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 5 || length > MAX_FRAME_BYTES) throw new IOException("Bad frame length " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        ByteBuffer frame = ByteBuffer.wrap(bytes);
+        byte actual = frame.get();
+        if (actual != type) throw new IOException("Expected a frame of type " + type + ", got " + actual);
+        return frame;
+    }
+
+    private static void writeValue(ByteArrayOutputStream out, String value) {
+        if (value == null) {
+            out.write(NULL);
+        } else if (isCanonicalLong(value)) {
+            out.write(INTEGER);
+            long number = Long.parseLong(value);
+            Varint.write(out, (number << 1) ^ (number >> 63));
+        } else if (WeatherEntry.isCanonicalDecimal(value)) {
+            out.write(DECIMAL);
+            long bits = Double.doubleToLongBits(Double.parseDouble(value));
+            for (int shift = 56; shift >= 0; shift -= 8) out.write((int) (bits >>> shift));
+        } else {
+            out.write(TEXT);
+            writeString(out, value);
+        }
+    }
+
+    private static String readValue(ByteBuffer in) throws IOException {
+        byte kind = in.get();
+        switch (kind) {
+            case NULL:
+                return null;
+            case INTEGER:
+                long zigzag = Varint.read(in);
+                return Long.toString((zigzag >>> 1) ^ -(zigzag & 1));
+            case DECIMAL:
+                return Double.toString(in.getDouble());
+            case TEXT:
+                return readString(in);
+            default:
+                throw new IOException("Unknown value kind " + kind);
+        }
+    }
+
+    private static boolean isCanonicalLong(String value) {
+        if (value.isEmpty() || value.length() > 20) return false;
+        try {
+            return Long.toString(Long.parseLong(value)).equals(value);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        Varint.write(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        int length = readCount(in);
+        if (length > in.remaining()) throw new IOException("Truncated frame");
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // A count or index, which must fit what is left of the frame
+    private static int readCount(ByteBuffer in) throws IOException {
+        long value = Varint.read(in);
+        if (value > in.limit()) throw new IOException("Bad count " + value);
+        return (int) value;
+    }
+}
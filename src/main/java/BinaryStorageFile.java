@@ -0,0 +1,487 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+// Binary alternative to the JSON storage file. The file is memory-mapped and laid out as
+//
+//   header   int magic, int version, int header size, int slot size, int name count,
+//            then the field-name dictionary (short length + UTF-8 bytes per name)
+//   slots    one fixed-size slot per station, split into two halves
+//
+// Each half holds int generation, int length, int CRC32, then the station: its id, and per entry
+// the timestamp (epoch seconds + nanos) and (name index, value) pairs. A PUT rewrites only the slot
+// of its station, into the half that does not hold the latest generation, so a write torn by a crash
+// leaves the previous version readable. When the dictionary or a slot outgrows its space, the whole
+// file is rewritten to a temporary file and moved into place with ATOMIC_MOVE, as in StorageFile.
+public class BinaryStorageFile extends StorageFile {
+    private static final int MAGIC = 0x57444231;  // "WDB1"
+    private static final int VERSION = 1;
+    private static final int DICTIONARY_START = 20;
+    private static final int MIN_HEADER_BYTES = 4096;
+    private static final int MIN_SLOT_BYTES = 512;
+    private static final int MIN_SLOTS = 16;
+    private static final int HALF_HEADER_BYTES = 12;
+
+    // The slot of a station as read from the file; a free slot has no station id
+    private static class Slot {
+        private final int generation;
+        private final String stationId;
+        private final Deque<WeatherEntry> updates;
+
+        private Slot(int generation, String stationId, Deque<WeatherEntry> updates) {
+            this.generation = generation;
+            this.stationId = stationId;
+            this.updates = updates;
+        }
+    }
+
+    private FileChannel channel;
+    // A single mapping, so the file is limited to 2 GB
+    private MappedByteBuffer mapped;
+    private int headerBytes = MIN_HEADER_BYTES;
+    private int slotBytes = MIN_SLOT_BYTES;
+    private int slotCount;
+    private final List<String> names = new ArrayList<>();
+    private final Map<String, Integer> nameIndexes = new HashMap<>();
+    // Number of names already written to the header
+    private int persistedNames;
+    private final Map<String, Integer> slots = new HashMap<>();
+    private final TreeSet<Integer> freeSlots = new TreeSet<>();
+    private int[] generations = new int[0];
+    // Counters to check which kind of write a save used
+    public long slotWrites;
+    public long fileRewrites;
+
+    public BinaryStorageFile(String dirStr, String fileStr) throws IOException {
+        super(dirStr, fileStr);
+    }
+
+    @Override
+    public synchronized Map<String, Deque<WeatherEntry>> recoverDataFromFile() throws IOException {
+        long start = System.nanoTime();
+        recoverIfNeeded();
+        Map<String, Deque<WeatherEntry>> weatherData = new HashMap<>();
+        if (Files.exists(filePath) && Files.size(filePath) > 0) {
+            open();
+            // Slots are independent of each other, so they are decoded in parallel straight from the mapping
+            Slot[] decoded = IntStream.range(0, slotCount).parallel()
+                    .mapToObj(this::readSlot)
+                    .toArray(Slot[]::new);
+            for (int slot = 0; slot < slotCount; slot++) {
+                generations[slot] = decoded[slot].generation;
+                if (decoded[slot].stationId == null) {
+                    freeSlots.add(slot);
+                } else {
+                    slots.put(decoded[slot].stationId, slot);
+                    weatherData.put(decoded[slot].stationId, decoded[slot].updates);
+                }
+            }
+        } else {
+            close();
+        }
+
+        lastRecoveryMillis = (System.nanoTime() - start) / 1_000_000;
+        lastRecoveredStations = weatherData.size();
+        lastRecoveredEntries = 0;
+        for (Deque<WeatherEntry> updates : weatherData.values()) lastRecoveredEntries += updates.size();
+        System.out.println("Recovered " + lastRecoveredEntries + " entries of " + lastRecoveredStations
+                + " stations in " + lastRecoveryMillis + " ms");
+        return weatherData;
+    }
+
+    // Method to write the whole file again (with atomic write), sized for the current data
+    @Override
+    public synchronized void saveDataToFile(Map<String, Deque<WeatherEntry>> weatherData) throws IOException {
+        // Encode every station first, with a dictionary of only the names still in use
+        names.clear();
+        nameIndexes.clear();
+        Map<String, byte[]> payloads = new LinkedHashMap<>();
+        int largest = 0;
+        for (Map.Entry<String, Deque<WeatherEntry>> entry : weatherData.entrySet()) {
+            byte[] payload = encodeStation(entry.getKey(), entry.getValue());
+            payloads.put(entry.getKey(), payload);
+            largest = Math.max(largest, payload.length);
+        }
+        byte[] dictionary = encodeNames(0);
+
+        headerBytes = Math.max(headerBytes, nextPowerOfTwo(2 * (DICTIONARY_START + dictionary.length)));
+        slotBytes = Math.max(slotBytes, 2 * nextPowerOfTwo(largest + HALF_HEADER_BYTES));
+        int capacity = Math.max(MIN_SLOTS, payloads.size() + payloads.size() / 2);
+
+        Path tempFile = filePath.resolveSibling("temp_" + filePath.getFileName().toString() + ".tmp");
+        try {
+            try (FileChannel temp = FileChannel.open(tempFile, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(DICTIONARY_START + dictionary.length);
+                header.putInt(MAGIC).putInt(VERSION).putInt(headerBytes).putInt(slotBytes).putInt(names.size());
+                header.put(dictionary).flip();
+                writeFully(temp, header, 0);
+
+                // Every station starts at generation 1, in the second half of its slot
+                int slot = 0;
+                for (byte[] payload : payloads.values()) {
+                    writeFully(temp, ByteBuffer.wrap(half(1, payload)), slotOffset(slot++) + slotBytes / 2);
+                }
+                // Unused slots stay zero, i.e. free; the file is only extended to their end
+                writeFully(temp, ByteBuffer.allocate(1), slotOffset(capacity) - 1);
+                temp.force(true);
+            }
+            Files.move(tempFile, filePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            fileRewrites++;
+        } catch (IOException e) {
+            System.err.println("Error when saving weather data to file: " + e.getMessage());
+            // The dictionary in memory no longer matches the old file, so the next save rewrites it
+            close();
+            return;
+        } finally {
+            if (Files.exists(tempFile)) {
+                Files.delete(tempFile);
+            }
+        }
+
+        // Map the new file; the slots are known, so they do not need to be read back
+        open();
+        int slot = 0;
+        for (String stationId : payloads.keySet()) {
+            generations[slot] = 1;
+            slots.put(stationId, slot);
+            freeSlots.remove(slot++);
+        }
+    }
+
+    // Method to rewrite only the slot of one station after a PUT
+    @Override
+    public synchronized void saveStation(String stationId, Map<String, Deque<WeatherEntry>> weatherData)
+            throws IOException {
+        writeStation(stationId, weatherData);
+        force();
+    }
+
+    // Method to rewrite the slot of each station changed by a batch of PUTs, which are answered once
+    // the batch is on disk
+    @Override
+    public synchronized void saveStations(Collection<String> stationIds, Map<String, Deque<WeatherEntry>> weatherData)
+            throws IOException {
+        for (String stationId : stationIds) writeStation(stationId, weatherData);
+        force();
+    }
+
+    private void writeStation(String stationId, Map<String, Deque<WeatherEntry>> weatherData) throws IOException {
+        // No file yet, or it was removed underneath us: start a new one
+        if (mapped == null || !Files.exists(filePath)) {
+            saveDataToFile(weatherData);
+            return;
+        }
+        Deque<WeatherEntry> updates = weatherData.get(stationId);
+        if (updates == null) {
+            freeSlot(stationId);
+            return;
+        }
+
+        int knownNames = names.size();
+        byte[] payload = encodeStation(stationId, updates);
+        if (!persistNames(knownNames) || payload.length > slotBytes / 2 - HALF_HEADER_BYTES) {
+            // The dictionary or the slot is full, so make room by rewriting the file
+            saveDataToFile(weatherData);
+            return;
+        }
+
+        Integer slot = slots.get(stationId);
+        if (slot == null) {
+            if (freeSlots.isEmpty()) grow();
+            slot = freeSlots.pollFirst();
+            slots.put(stationId, slot);
+        }
+        writeSlot(slot, payload);
+    }
+
+    // Method to free the slots of expired stations
+    @Override
+    public synchronized void removeStations(Collection<String> stationIds, Map<String, Deque<WeatherEntry>> weatherData)
+            throws IOException {
+        if (stationIds.isEmpty()) return;
+        if (mapped == null || !Files.exists(filePath)) {
+            saveDataToFile(weatherData);
+            return;
+        }
+        for (String stationId : stationIds) freeSlot(stationId);
+        force();
+    }
+
+    // Method to convert between the JSON and the binary format, e.g.
+    //   BinaryStorageFile to-binary target/data/weather_data.json target/data/weather_data.bin
+    //   BinaryStorageFile to-json target/data/weather_data.bin target/data/weather_data.json
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3 || (!"to-binary".equals(args[0]) && !"to-json".equals(args[0]))) {
+            System.err.println("Usage: BinaryStorageFile <to-binary|to-json> <input file> <output file>");
+            return;
+        }
+        boolean toBinary = "to-binary".equals(args[0]);
+        StorageFile input = toBinary ? open(args[1], StorageFile::new) : open(args[1], BinaryStorageFile::new);
+        StorageFile output = toBinary ? open(args[2], BinaryStorageFile::new) : open(args[2], StorageFile::new);
+        convert(input, output);
+    }
+
+    public static void convert(StorageFile input, StorageFile output) throws IOException {
+        Map<String, Deque<WeatherEntry>> weatherData = input.recoverDataFromFile();
+        output.saveDataToFile(weatherData);
+        System.out.println("Converted " + weatherData.size() + " stations from " + input.filePath
+                + " to " + output.filePath);
+    }
+
+    private interface Opener {
+        StorageFile open(String dirStr, String fileStr) throws IOException;
+    }
+
+    private static StorageFile open(String file, Opener opener) throws IOException {
+        Path path = Paths.get(file).toAbsolutePath();
+        return opener.open(path.getParent().toString(), path.getFileName().toString());
+    }
+
+    // Method to map the file and load its header and dictionary
+    private void open() throws IOException {
+        close();
+        channel = FileChannel.open(filePath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        if (mapped.capacity() < DICTIONARY_START || mapped.getInt(0) != MAGIC) {
+            close();
+            throw new IOException("Not a binary weather storage file: " + filePath);
+        }
+        if (mapped.getInt(4) != VERSION) {
+            close();
+            throw new IOException("Unsupported storage file version " + mapped.getInt(4) + ": " + filePath);
+        }
+        headerBytes = mapped.getInt(8);
+        slotBytes = mapped.getInt(12);
+        slotCount = (mapped.capacity() - headerBytes) / slotBytes;
+        generations = new int[slotCount];
+        for (int slot = 0; slot < slotCount; slot++) freeSlots.add(slot);
+
+        // Names beyond the count are from a dictionary append torn by a crash, and are ignored
+        int count = mapped.getInt(16);
+        int position = DICTIONARY_START;
+        for (int i = 0; i < count; i++) {
+            byte[] bytes = new byte[mapped.getShort(position) & 0xFFFF];
+            mapped.get(position + 2, bytes);
+            position += 2 + bytes.length;
+            addName(new String(bytes, StandardCharsets.UTF_8));
+        }
+        persistedNames = count;
+    }
+
+    private void close() throws IOException {
+        if (channel != null) channel.close();
+        channel = null;
+        mapped = null;
+        slotCount = 0;
+        generations = new int[0];
+        slots.clear();
+        freeSlots.clear();
+        names.clear();
+        nameIndexes.clear();
+        persistedNames = 0;
+    }
+
+    // Method to add the slots of a bigger file; the new space reads as zero, i.e. free
+    private void grow() throws IOException {
+        int capacity = Math.max(MIN_SLOTS, slotCount * 2);
+        if (slotOffset(capacity) > Integer.MAX_VALUE) throw new IOException("Storage file is full: " + filePath);
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, slotOffset(capacity));
+        generations = Arrays.copyOf(generations, capacity);
+        for (int slot = slotCount; slot < capacity; slot++) freeSlots.add(slot);
+        slotCount = capacity;
+    }
+
+    private void freeSlot(String stationId) {
+        Integer slot = slots.remove(stationId);
+        if (slot == null) return;
+        writeSlot(slot, encodeStation("", new LinkedList<>()));
+        freeSlots.add(slot);
+    }
+
+    // Method to write the next generation of a slot into the half that holds the older one
+    private void writeSlot(int slot, byte[] payload) {
+        int generation = generations[slot] + 1;
+        mapped.put((int) slotOffset(slot) + (generation & 1) * (slotBytes / 2), half(generation, payload), 0,
+                HALF_HEADER_BYTES + payload.length);
+        generations[slot] = generation;
+        slotWrites++;
+        bytesWritten += HALF_HEADER_BYTES + payload.length;
+    }
+
+    private Slot readSlot(int slot) {
+        int offset = (int) slotOffset(slot);
+        int first = validGeneration(offset);
+        int second = validGeneration(offset + slotBytes / 2);
+        int generation = Math.max(first, second);
+        if (generation == 0) return new Slot(0, null, null);
+
+        int halfOffset = offset + (second > first ? slotBytes / 2 : 0);
+        ByteBuffer payload = mapped.slice(halfOffset + HALF_HEADER_BYTES, mapped.getInt(halfOffset + 4));
+        String stationId = readString(payload);
+        if (stationId.isEmpty()) return new Slot(generation, null, null);
+        return new Slot(generation, stationId, decodeEntries(payload));
+    }
+
+    // The generation of a half, or 0 if it was never written or its write was torn
+    private int validGeneration(int offset) {
+        int generation = mapped.getInt(offset);
+        int length = mapped.getInt(offset + 4);
+        if (generation <= 0 || length < 0 || length > slotBytes / 2 - HALF_HEADER_BYTES) return 0;
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(4).putInt(0, generation));
+        crc.update(mapped.slice(offset + HALF_HEADER_BYTES, length));
+        return (int) crc.getValue() == mapped.getInt(offset + 8) ? generation : 0;
+    }
+
+    private static byte[] half(int generation, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(4).putInt(0, generation));
+        crc.update(payload);
+        ByteBuffer half = ByteBuffer.allocate(HALF_HEADER_BYTES + payload.length);
+        half.putInt(generation).putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+        return half.array();
+    }
+
+    // Method to append names added since the last save to the header; false if they do not fit
+    private boolean persistNames(int from) {
+        if (from >= names.size()) return true;
+        int end = DICTIONARY_START;
+        for (int i = 0; i < persistedNames; i++) {
+            end += 2 + names.get(i).getBytes(StandardCharsets.UTF_8).length;
+        }
+        byte[] added = encodeNames(persistedNames);
+        if (end + added.length > headerBytes) return false;
+
+        // The names reach the disk before the count, and the count before any slot that uses them, so
+        // a crash in between only leaves unused bytes
+        mapped.put(end, added);
+        mapped.force();
+        mapped.putInt(16, names.size());
+        mapped.force();
+        persistedNames = names.size();
+        bytesWritten += added.length + 4;
+        return true;
+    }
+
+    private byte[] encodeNames(int from) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = from; i < names.size(); i++) {
+            byte[] bytes = names.get(i).getBytes(StandardCharsets.UTF_8);
+            out.write(bytes.length >>> 8);
+            out.write(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+        return out.toByteArray();
+    }
+
+    private int addName(String name) {
+        Integer index = nameIndexes.get(name);
+        if (index != null) return index;
+        names.add(name);
+        nameIndexes.put(name, names.size() - 1);
+        return names.size() - 1;
+    }
+
+    private byte[] encodeStation(String stationId, Deque<WeatherEntry> updates) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeString(out, stationId);
+        Varint.write(out, updates.size());
+        for (WeatherEntry entry : updates) {
+            LocalDateTime timestamp = entry.getTimestampAsLocalDateTime();
+            Varint.write(out, timestamp.toEpochSecond(ZoneOffset.UTC));
+            Varint.write(out, timestamp.getNano());
+            HashMap<String, String> body = entry.getBody();
+            Varint.write(out, body.size());
+            for (Map.Entry<String, String> field : body.entrySet()) {
+                Varint.write(out, addName(field.getKey()));
+                // Value lengths are stored plus one, so that 0 can stand for null
+                if (field.getValue() == null) {
+                    Varint.write(out, 0);
+                } else {
+                    byte[] bytes = field.getValue().getBytes(StandardCharsets.UTF_8);
+                    Varint.write(out, bytes.length + 1);
+                    out.write(bytes, 0, bytes.length);
+                }
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private Deque<WeatherEntry> decodeEntries(ByteBuffer payload) {
+        Deque<WeatherEntry> updates = new LinkedList<>();
+        long count = Varint.read(payload);
+        for (long i = 0; i < count; i++) {
+            LocalDateTime timestamp = LocalDateTime.ofEpochSecond(Varint.read(payload), (int) Varint.read(payload),
+                    ZoneOffset.UTC);
+            int fields = (int) Varint.read(payload);
+            HashMap<String, String> body = new HashMap<>();
+            for (int j = 0; j < fields; j++) {
+                String name = names.get((int) Varint.read(payload));
+                int length = (int) Varint.read(payload);
+                if (length == 0) {
+                    body.put(name, null);
+                } else {
+                    byte[] bytes = new byte[length - 1];
+                    payload.get(bytes);
+                    body.put(name, new String(bytes, StandardCharsets.UTF_8));
+                }
+            }
+            updates.offerLast(new WeatherEntry(body, timestamp));
+        }
+        return updates;
+    }
+
+    // Method to write the changed pages of the mapping to disk, so slots written so far survive a
+    // crash of the machine, not only of the process
+    private void force() {
+        if (mapped != null) mapped.force();
+    }
+
+    private long slotOffset(int slot) {
+        return headerBytes + (long) slot * slotBytes;
+    }
+
+    private void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        bytesWritten += buffer.remaining();
+        while (buffer.hasRemaining()) position += channel.write(buffer, position);
+    }
+
+    private static int nextPowerOfTwo(int value) {
+        return Integer.highestOneBit(Math.max(1, value - 1)) << 1;
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        Varint.write(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[(int) Varint.read(in)];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
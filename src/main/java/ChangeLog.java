@@ -0,0 +1,119 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+// A bounded log of the changes applied to the weather data of an AggregationServer: each PUT that
+// added an entry, and each station that expired or was evicted, in the order the apply stage and the
+// cleanup applied them. It backs GET /changes.json, so a consumer such as a cache fetches what changed
+// since its cursor instead of every station. The log is a ring of the latest capacity changes; a
+// consumer whose cursor has fallen off it, or comes from an earlier run of the server, must resync
+// from a snapshot. Like StationBudget it takes no lock of its own: the server only calls it while
+// holding the write lock on weatherData.
+public class ChangeLog {
+    public static final int DEFAULT_CAPACITY = 10_000;
+    public static final int MAX_PAGE = 10_000;
+
+    // One change; entry is the new reading of a "put", and null when a station was removed
+    public static class Change {
+        public final long seq;
+        public final int lamportTime;
+        public final String type;
+        public final String stationId;
+        public final WeatherEntry entry;
+
+        Change(long seq, int lamportTime, String type, String stationId, WeatherEntry entry) {
+            this.seq = seq;
+            this.lamportTime = lamportTime;
+            this.type = type;
+            this.stationId = stationId;
+            this.entry = entry;
+        }
+
+        // The change as sent by GET /changes.json
+        public Map<String, Object> toJson() {
+            Map<String, Object> json = new LinkedHashMap<>();
+            json.put("seq", seq);
+            json.put("lamport_time", lamportTime);
+            json.put("type", type);
+            json.put("id", stationId);
+            if (entry != null) json.put("body", entry.getBody());
+            return json;
+        }
+    }
+
+    // Tells one run of the server from another, so a cursor from before a cold restart is not
+    // mistaken for a position in this log
+    private final String logId = Long.toString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE, 36);
+    private final Change[] ring;
+    // Sequence number of the next change; the first is 1
+    private long nextSeq = 1;
+    private int latestLamportTime;
+
+    public ChangeLog(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("Capacity must be positive");
+        this.ring = new Change[capacity];
+    }
+
+    // Method to record that a PUT added entry to a station, at the Lamport time the sequence stage gave it
+    public void put(int lamportTime, String stationId, WeatherEntry entry) {
+        append(lamportTime, "put", stationId, entry);
+    }
+
+    // Method to record that a station was removed, e.g. "expired" or "evicted". It has no Lamport time
+    // of its own, so it takes that of the latest change, and the log stays in Lamport order.
+    public void removed(String type, String stationId) {
+        append(latestLamportTime, type, stationId, null);
+    }
+
+    private void append(int lamportTime, String type, String stationId, WeatherEntry entry) {
+        latestLamportTime = Math.max(latestLamportTime, lamportTime);
+        ring[(int) (nextSeq % ring.length)] = new Change(nextSeq, latestLamportTime, type, stationId, entry);
+        nextSeq++;
+    }
+
+    // The cursor of the latest change: reading from it returns only later changes
+    public String cursor() {
+        return cursor(nextSeq - 1);
+    }
+
+    private String cursor(long seq) {
+        return logId + ":" + seq;
+    }
+
+    // Method to read up to limit changes after cursor, oldest first; null cursor means from the start
+    // of the log. Returns null if the changes after cursor are no longer all in the log, or cursor comes
+    // from another run, in which case the consumer must resync. A malformed cursor is an
+    // IllegalArgumentException.
+    public List<Change> since(String cursor, int limit) {
+        long oldest = Math.max(1, nextSeq - ring.length);
+        long after;
+        if (cursor == null) {
+            after = 0;
+        } else {
+            int separator = cursor.lastIndexOf(':');
+            if (separator < 0) throw new IllegalArgumentException("Invalid cursor " + cursor);
+            if (!logId.equals(cursor.substring(0, separator))) return null;
+            after = Long.parseLong(cursor.substring(separator + 1));
+            if (after < 0 || after >= nextSeq) throw new IllegalArgumentException("Invalid cursor " + cursor);
+        }
+        if (after < oldest - 1) return null;
+
+        List<Change> changes = new ArrayList<>();
+        for (long seq = after + 1; seq < nextSeq && changes.size() < limit; seq++) {
+            changes.add(ring[(int) (seq % ring.length)]);
+        }
+        return changes;
+    }
+
+    // The cursor to read on from once changes, returned by since(from, ..), are consumed
+    public String cursorAfter(String from, List<Change> changes) {
+        if (!changes.isEmpty()) return cursor(changes.get(changes.size() - 1).seq);
+        return from != null ? from : cursor(0);
+    }
+
+    public long latestSeq() {
+        return nextSeq - 1;
+    }
+}
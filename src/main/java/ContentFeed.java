@@ -0,0 +1,212 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ContentFeed {
+    private static final long DEFAULT_FLUSH_INTERVAL_MS = 1000;
+    // Must stay well below AggregationServer.DATA_EXPIRATION_SECONDS (30 seconds)
+    private static final long DEFAULT_HEARTBEAT_INTERVAL_MS = 10000;
+    private static final long POLL_INTERVAL_MS = 200;
+    // Longest wait before a rejected reading is sent again
+    private static final long MAX_BACKOFF_MS = 8000;
+
+    private final String serverDetails;
+    private final List<Path> sources;
+    private final long flushIntervalMs;
+    private final long heartbeatIntervalMs;
+    private volatile boolean running;
+    private ContentServer connection;
+
+    // The Lamport clock survives reconnects, so the server keeps seeing increasing times
+    public final LamportClock clock = new LamportClock();
+
+    // Modification time and size of every file seen so far
+    private final Map<Path, String> fileVersions = new HashMap<>();
+    // Last payload successfully sent for each station, and when it was sent
+    private final Map<String, String> sentPayloads = new HashMap<>();
+    private final Map<String, Long> lastSentAt = new HashMap<>();
+    // Changed readings waiting for the next flush; a newer reading replaces an older one
+    private final LinkedHashMap<String, String> pending = new LinkedHashMap<>();
+    // Stations whose pending reading was rejected: how many times in a row, and when to send it again
+    private final Map<String, Integer> rejections = new HashMap<>();
+    private final Map<String, Long> retryAt = new HashMap<>();
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: java ContentFeed <server:port> <path> [<path> ...] "
+                    + "[--flush-ms=N] [--heartbeat-ms=N]");
+            return;
+        }
+
+        long flushIntervalMs = DEFAULT_FLUSH_INTERVAL_MS;
+        long heartbeatIntervalMs = DEFAULT_HEARTBEAT_INTERVAL_MS;
+        List<Path> sources = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith("--flush-ms=")) {
+                flushIntervalMs = Long.parseLong(args[i].substring("--flush-ms=".length()));
+            } else if (args[i].startsWith("--heartbeat-ms=")) {
+                heartbeatIntervalMs = Long.parseLong(args[i].substring("--heartbeat-ms=".length()));
+            } else {
+                sources.add(Paths.get(args[i]));
+            }
+        }
+
+        ContentFeed feed = new ContentFeed(args[0], sources, flushIntervalMs, heartbeatIntervalMs);
+        Runtime.getRuntime().addShutdownHook(new Thread(feed::stop));
+        feed.run();
+    }
+
+    public ContentFeed(String serverDetails, List<Path> sources, long flushIntervalMs, long heartbeatIntervalMs) {
+        this.serverDetails = serverDetails;
+        this.sources = sources;
+        this.flushIntervalMs = flushIntervalMs;
+        this.heartbeatIntervalMs = heartbeatIntervalMs;
+    }
+
+    // Main loop: poll the sources, flush changed readings and keep idle stations alive
+    public void run() {
+        running = true;
+        long nextFlush = 0;
+        while (running) {
+            scanSources();
+
+            long now = System.currentTimeMillis();
+            if (now >= nextFlush) {
+                queueHeartbeats(now);
+                flush();
+                nextFlush = now + flushIntervalMs;
+            }
+
+            try {
+                Thread.sleep(POLL_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        // Send whatever is still pending before leaving
+        flush();
+        closeConnection();
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    // Method to detect changed files and queue the stations whose readings changed
+    private void scanSources() {
+        for (Path source : sources) {
+            if (Files.isDirectory(source)) {
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(source)) {
+                    for (Path file : files) {
+                        if (Files.isRegularFile(file)) scanFile(file);
+                    }
+                } catch (IOException e) {
+                    System.err.println("Error listing " + source + ": " + e.getMessage());
+                }
+            } else if (Files.isRegularFile(source)) {
+                scanFile(source);
+            }
+        }
+    }
+
+    private void scanFile(Path file) {
+        try {
+            String version = Files.getLastModifiedTime(file).toMillis() + ":" + Files.size(file);
+            if (version.equals(fileVersions.get(file))) return;
+            fileVersions.put(file, version);
+
+            for (ObservationFileParser.StationRecord station : ObservationFileParser.parse(file)) {
+                if (!station.json.equals(sentPayloads.get(station.id))
+                        && !station.json.equals(pending.put(station.id, station.json))) {
+                    // A new reading does not wait out the backoff of one that was rejected
+                    rejections.remove(station.id);
+                    retryAt.remove(station.id);
+                }
+            }
+        } catch (IOException e) {
+            // E.g. the file was truncated while it was read: forget its version, so it is read again
+            System.err.println("Error reading " + file + ": " + e.getMessage());
+            fileVersions.remove(file);
+        }
+    }
+
+    // Re-send the last reading of every station that has been quiet for a heartbeat interval
+    private void queueHeartbeats(long now) {
+        for (Map.Entry<String, Long> entry : lastSentAt.entrySet()) {
+            String id = entry.getKey();
+            if (now - entry.getValue() >= heartbeatIntervalMs && !pending.containsKey(id)) {
+                pending.put(id, sentPayloads.get(id));
+            }
+        }
+    }
+
+    // Method to send all pending readings over the persistent connection. Only a reading the server
+    // stored (200 or 201) counts as sent; a rejected one stays pending and is sent again after a backoff.
+    private void flush() {
+        if (pending.isEmpty()) return;
+
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, String>> iterator = pending.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, String> entry = iterator.next();
+            String id = entry.getKey();
+            Long retry = retryAt.get(id);
+            if (retry != null && now < retry) continue;
+            try {
+                HashMap<String, String> response = connect().sendPutRequest(entry.getValue());
+                String statusCode = response.get("Status-Code");
+                if ("200".equals(statusCode) || "201".equals(statusCode)) {
+                    sentPayloads.put(id, entry.getValue());
+                    lastSentAt.put(id, System.currentTimeMillis());
+                    rejections.remove(id);
+                    retryAt.remove(id);
+                    iterator.remove();
+                    continue;
+                }
+
+                // The backoff doubles with each rejection in a row, and is at least the server's Retry-After
+                int count = rejections.merge(id, 1, Integer::sum);
+                long backoff = Math.min(MAX_BACKOFF_MS, flushIntervalMs << Math.min(count - 1, 16));
+                backoff = Math.max(backoff, GETClient.parseRetryAfter(response.get("Retry-After")));
+                retryAt.put(id, System.currentTimeMillis() + backoff);
+                System.err.println("Station " + id + " rejected with status " + statusCode
+                        + ", sending it again in " + backoff + " ms");
+                // Over the rate limit: the rest would be turned away too
+                if ("429".equals(statusCode)) return;
+            } catch (IOException | RuntimeException e) {
+                // Keep the remaining readings pending and reconnect on the next flush
+                System.err.println("Error sending to " + serverDetails + ": " + e.getMessage());
+                closeConnection();
+                return;
+            }
+        }
+    }
+
+    private ContentServer connect() throws IOException {
+        if (connection == null) {
+            connection = new ContentServer(serverDetails);
+            connection.clock = clock;
+        }
+        return connection;
+    }
+
+    private void closeConnection() {
+        if (connection == null) return;
+        try {
+            connection.socket.close();
+        } catch (IOException e) {
+            System.err.println("Error closing connection: " + e.getMessage());
+        }
+        connection = null;
+    }
+}
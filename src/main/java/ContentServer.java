@@ -1,6 +1,8 @@
 import java.io.*;
 import java.net.Socket;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.nio.charset.StandardCharsets;
 import com.google.gson.Gson;
@@ -10,10 +12,13 @@ public class ContentServer {
     private int port;
     public Socket socket;
     public LamportClock clock;
+    // Set once the connection speaks BinaryProtocol instead of HTTP
+    private boolean binary;
+    private DataInputStream frameInput;
 
     public static void main(String[] args) {
-        if (args.length != 2) {
-            System.out.println("Usage: java ContentServer <server:port> <file-path>");
+        if (args.length != 2 && !(args.length == 3 && "--binary".equals(args[2]))) {
+            System.out.println("Usage: java ContentServer <server:port> <file-path> [--binary]");
             return;
         }
 
@@ -27,9 +32,13 @@ public class ContentServer {
             // Convert to JSON
             String jsonData = new Gson().toJson(dataMap);
 
-            // Send PUT request using Sockets
+            // Send PUT request using Sockets, or a binary frame if asked for and the server supports it
             ContentServer contentServer = new ContentServer(serverDetails);
-            contentServer.sendPutRequest(jsonData);
+            if (args.length == 3 && contentServer.upgradeToBinary()) {
+                contentServer.sendBatch(Collections.singletonList(dataMap));
+            } else {
+                contentServer.sendPutRequest(jsonData);
+            }
 
         } catch (Exception e) {
             System.out.println("Error: Unable to connect to the server. Please check the server details." + e.getMessage());
@@ -88,4 +97,29 @@ public class ContentServer {
         }
         return response;
     }
+
+    // Method to switch this connection to BinaryProtocol. Returns false if the server does not support
+    // it, in which case the connection keeps using HTTP.
+    public boolean upgradeToBinary() throws IOException {
+        clock.increaseTime();
+        RequestResponseHandler.sendUpgradeRequest(socket, BinaryProtocol.UPGRADE, clock.getTime());
+        HashMap<String, String> response = RequestResponseHandler.parseResponse(socket);
+        binary = "101".equals(response.get("Status-Code")) && BinaryProtocol.UPGRADE.equals(response.get("Upgrade"));
+        return binary;
+    }
+
+    // Method to send many readings, each with an "id", in one binary frame. Returns the status code of
+    // each reading, the same as a PUT of it would get.
+    public int[] sendBatch(List<? extends Map<String, String>> readings) throws IOException {
+        if (!binary) throw new IllegalStateException("Connection not upgraded to " + BinaryProtocol.UPGRADE);
+        clock.increaseTime();
+        OutputStream out = socket.getOutputStream();
+        out.write(BinaryProtocol.encodeBatch(clock.getTime(), readings));
+        out.flush();
+
+        if (frameInput == null) frameInput = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        BinaryProtocol.Ack ack = BinaryProtocol.readAck(frameInput);
+        clock.increaseTime(ack.lamportTime);
+        return ack.statusCodes;
+    }
 }
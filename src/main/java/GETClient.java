@@ -1,113 +1,422 @@
 import java.io.*;
 import java.net.*;
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import com.google.gson.reflect.TypeToken;
 
 public class GETClient {
-    private Socket socket;
     public LamportClock clock;
-    private String serverDetails;
-    private static final int MAX_RETRIES = 3; // Maximum number of retry attempts
-    private static final int RETRY_DELAY_MS = 2000; // Delay between retries in milliseconds
+    private final List<Server> servers = new ArrayList<>();
+    private static final int MAX_RETRIES = 5; // Maximum number of retry attempts
+    // Delay before the first retry, doubled before each next one up to the maximum, of which a random half
+    // is taken off, so that clients that failed together do not retry together
+    private static final int BASE_BACKOFF_MS = 250;
+    private static final int MAX_BACKOFF_MS = 4000;
+    // A Retry-After longer than this is cut short, so one busy server cannot stall the client for long
+    private static final int MAX_RETRY_AFTER_MS = 30_000;
+    // A request that is not answered in this time fails, so a hung server does not hold a thread forever
+    private static final int READ_TIMEOUT_MS = 10_000;
+    // Delay before hedging while there are too few latencies for their 95th percentile
+    private static final long DEFAULT_HEDGE_DELAY_MS = 100;
+    private static final int LATENCY_SAMPLES = 256;
+    private static final int MIN_LATENCY_SAMPLES = 20;
+    // Latencies of the latest answered requests, in nanoseconds, as a ring
+    private final long[] latencies = new long[LATENCY_SAMPLES];
+    private int latencyCount;
+    // Where least-outstanding selection starts looking, moved on each time, so that ties take turns
+    private final AtomicInteger nextServer = new AtomicInteger();
+    private final AtomicLong hedges = new AtomicLong();
+    // Runs the requests to several servers; created on the first one
+    private ExecutorService exchanges;
+    // Station GETs served locally or revalidated, when enabled with setCache; null means every GET goes out
+    public ResponseCache cache;
 
+    // One of the servers, with its connections not in use and the number of requests it has not answered
+    private static class Server {
+        private final String details;
+        private final String host;
+        private final int port;
+        private final Deque<Socket> idle = new ConcurrentLinkedDeque<>();
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicLong requests = new AtomicLong();
+        // After a failure the server is only chosen once this time has passed, or if no other is left
+        private volatile long retryAtNanos;
+        // Time from which the server asked, with Retry-After, to be sent requests again
+        private volatile long retryAfterNanos;
+        private volatile int failures;
+
+        private Server(String details) {
+            String[] serverParts = details.split(":");
+            if (serverParts.length != 2) throw new IllegalArgumentException("Invalid server " + details);
+            this.details = details;
+            this.host = serverParts[0];
+            this.port = Integer.parseInt(serverParts[1]);
+        }
+
+        // Method to connect to the server
+        private Socket connect() throws IOException {
+            Socket socket = new Socket(host, port);
+            socket.setSoTimeout(READ_TIMEOUT_MS);
+            return socket;
+        }
+
+        private void failed() {
+            failed(0);
+        }
+
+        // Method to back off after a failure, for at least retryAfterMillis if the server asked for it
+        private void failed(long retryAfterMillis) {
+            failures++;
+            long now = System.nanoTime();
+            long backoff = backoffMillis(failures, ThreadLocalRandom.current());
+            retryAtNanos = now + Math.max(backoff, retryAfterMillis) * 1_000_000L;
+            if (retryAfterMillis > 0) retryAfterNanos = now + retryAfterMillis * 1_000_000L;
+        }
+    }
+
+    // serverDetails is one server, host:port, or several separated by commas, which are expected to hold
+    // the same data, e.g. because content servers send to each of them
     public GETClient(String serverDetails) throws IOException {
-        this.serverDetails = serverDetails;
-        connectToServer();
+        this(Arrays.asList(serverDetails.split(",")));
+    }
+
+    // Connects to each server; fails if none can be reached
+    public GETClient(List<String> serverDetails) throws IOException {
+        if (serverDetails.isEmpty()) throw new IllegalArgumentException("No server given");
+        IOException error = null;
+        for (String details : serverDetails) {
+            Server server = new Server(details.trim());
+            servers.add(server);
+            try {
+                server.idle.add(server.connect());
+            } catch (IOException e) {
+                error = e;
+                server.failed();
+            }
+        }
+        if (error != null && servers.stream().allMatch(server -> server.idle.isEmpty())) throw error;
         this.clock = new LamportClock();
     }
 
-    // Method to connect to the server
-    private void connectToServer() throws IOException {
-        String[] serverParts = serverDetails.split(":");
-        String serverName = serverParts[0];
-        int port = Integer.parseInt(serverParts[1]);
-        this.socket = new Socket(serverName, port);
+    // Method to cache up to capacity stations, each served locally for maxStalenessMillis after it was
+    // fetched or revalidated; a capacity of 0 turns the cache off
+    public void setCache(int capacity, long maxStalenessMillis) {
+        this.cache = capacity > 0 ? new ResponseCache(capacity, maxStalenessMillis) : null;
     }
 
     public HashMap<String, String> sendGetRequest(String stationId) {
-        HashMap<String, String> weather = null;
-        clock.increaseTime();
-        int attempts = 0;
+        if (stationId == null) return sendQuery("/weather.json");
+        String target = "/weather.json?id=" + stationId;
+        if (cache == null) return sendQuery(target);
 
-        while (attempts < MAX_RETRIES) {
-            try {
-                // Attempt to send the request
-                RequestResponseHandler.sendGetRequest(socket, stationId, clock.getTime());
-                weather = RequestResponseHandler.parseResponse(socket);
+        HashMap<String, String> cached = cache.lookup(stationId, System.nanoTime());
+        if (cached != null) {
+            // Reading the cache is a local event of the clock
+            clock.increaseTime();
+            return cached;
+        }
+        String etag = cache.etag(stationId);
+        HashMap<String, String> response = sendQuery(target,
+                etag == null ? Collections.emptyMap() : Collections.singletonMap("If-None-Match", etag));
+        response = cache.update(stationId, response, System.nanoTime());
+        // A 304 for an entry evicted meanwhile: fetch the body after all
+        if ("304".equals(response.get("Status-Code"))) {
+            response = cache.update(stationId, sendQuery(target), System.nanoTime());
+        }
+        return response;
+    }
+
+    // Method to request summaries computed by the server, e.g. sendAggregateRequest("state", "SA")
+    public HashMap<String, String> sendAggregateRequest(String scope, String value) {
+        return sendQuery("/aggregate.json?" + scope + "=" + URLEncoder.encode(value, StandardCharsets.UTF_8));
+    }
+
+    // Method to fetch up to limit changes after cursor, e.g. the Change-Cursor header of a GET of every
+    // station; a null cursor reads from the start of the server's change log
+    public HashMap<String, String> sendChangesRequest(String cursor, int limit) {
+        String target = "/changes.json?limit=" + limit;
+        if (cursor != null) target += "&cursor=" + URLEncoder.encode(cursor, StandardCharsets.UTF_8);
+        return sendQuery(target);
+    }
 
+    // Method to send a GET request for any path, retrying on errors
+    public HashMap<String, String> sendQuery(String target) {
+        return sendQuery(target, Collections.emptyMap());
+    }
+
+    private HashMap<String, String> sendQuery(String target, Map<String, String> headers) {
+        clock.increaseTime();
+        int lamportTime = clock.getTime();
+
+        HashMap<String, String> rejected = null;
+        for (int attempt = 1; attempt <= MAX_RETRIES; attempt++) {
+            HashMap<String, String> weather = servers.size() == 1
+                    ? exchange(servers.get(0), target, headers, lamportTime)
+                    : hedgedExchange(target, headers, lamportTime);
+            if (weather != null) {
                 // Handle the Lamport time from the response
                 if (weather.get("Lamport-Time") != null) {
                     int receivedTime = Integer.parseInt(weather.get("Lamport-Time"));
                     clock.increaseTime(receivedTime);
                 }
+                if (!isFailure(weather)) return weather;
+                rejected = weather;
+            }
 
-                // If the request was successful, break out of the loop
-                break;
-            } catch (IOException e) {
-                attempts++;
-                System.err.println("Error sending request: " + e.getMessage());
-
-                // Retry logic: Reconnect and retry after a delay
-                if (attempts < MAX_RETRIES) {
-                    System.out.println("Retrying (" + attempts + "/" + MAX_RETRIES + ")...");
-                    try {
-                        // Close the socket and reconnect
-                        if (socket != null && !socket.isClosed()) {
-                            socket.close();
-                        }
-                        connectToServer();
-                    } catch (IOException retryException) {
-                        System.err.println("Error during retry: " + retryException.getMessage());
-                    }
-                } else {
-                    // If all retries fail, throw an exception or handle it appropriately
-                    throw new RuntimeException("Failed to send request after " + MAX_RETRIES + " attempts.");
+            // Every server failed: wait longer after each round, with jitter, or as long as the servers
+            // asked with Retry-After, and try again
+            if (attempt < MAX_RETRIES) {
+                System.out.println("Retrying (" + attempt + "/" + MAX_RETRIES + ")...");
+                try {
+                    Thread.sleep(Math.max(backoffMillis(attempt, ThreadLocalRandom.current()), retryAfterMillis()));
+                } catch (InterruptedException e) {
+                    throw new RuntimeException("Unexpected interrupt", e);
                 }
             }
+        }
+        // The servers answered, but only with errors: return the last one, as a single attempt would
+        if (rejected != null) return rejected;
+        throw new RuntimeException("Failed to send request after " + MAX_RETRIES + " attempts.");
+    }
+
+    // A 5xx or 429 response: the server could not serve the request now, but another one, or this one
+    // later, may
+    static boolean isFailure(HashMap<String, String> response) {
+        String statusCode = response.get("Status-Code");
+        return statusCode.startsWith("5") || "429".equals(statusCode);
+    }
+
+    // Time until the first server that asked to wait with Retry-After may be sent requests again; 0 if
+    // one of them did not ask
+    private long retryAfterMillis() {
+        long now = System.nanoTime();
+        long wait = Long.MAX_VALUE;
+        for (Server server : servers) wait = Math.min(wait, Math.max(0, server.retryAfterNanos - now));
+        return (wait + 999_999) / 1_000_000;
+    }
+
+    // The delay asked for by a Retry-After header in seconds, capped at MAX_RETRY_AFTER_MS; 0 if there is
+    // none. The HTTP-date form is not used by the servers, and is ignored.
+    static long parseRetryAfter(String value) {
+        if (value == null) return 0;
+        try {
+            return Math.min(MAX_RETRY_AFTER_MS, Math.max(0, Long.parseLong(value.trim())) * 1000);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
 
+    // Method to send the request to the least busy server, and to another one as well if the first has
+    // not answered within the 95th percentile of recent latencies. The first answer wins; the other
+    // request runs on and returns its connection when done. A server that fails is replaced at once by
+    // one not yet tried, and so is one that answers with a 5xx or 429. Returns the last of those answers
+    // if every server tried failed, or null if none answered.
+    private HashMap<String, String> hedgedExchange(String target, Map<String, String> headers, int lamportTime) {
+        synchronized (this) {
+            if (exchanges == null) {
+                exchanges = Executors.newCachedThreadPool(runnable -> {
+                    Thread thread = new Thread(runnable, "getclient-exchange");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+        }
+        BlockingQueue<Optional<HashMap<String, String>>> answers = new LinkedBlockingQueue<>();
+        HashMap<String, String> rejected = null;
+        Set<Server> tried = new HashSet<>();
+        int pending = 0;
+        boolean hedged = false;
+        Server first = pick(tried);
+        while (first != null || pending > 0) {
+            if (first != null) {
+                Server server = first;
+                tried.add(server);
+                pending++;
+                exchanges.execute(() -> answers.add(Optional.ofNullable(exchange(server, target, headers, lamportTime))));
+                first = null;
+            }
+            Optional<HashMap<String, String>> answer;
             try {
-                Thread.sleep(RETRY_DELAY_MS);
+                answer = hedged || tried.size() == servers.size()
+                        ? answers.take() : answers.poll(hedgeDelayNanos(), TimeUnit.NANOSECONDS);
             } catch (InterruptedException e) {
                 throw new RuntimeException("Unexpected interrupt", e);
             }
+            if (answer == null) {
+                // Slower than most requests: ask another server too
+                hedged = true;
+                hedges.incrementAndGet();
+                first = pick(tried);
+            } else if (answer.isPresent() && !isFailure(answer.get())) {
+                return answer.get();
+            } else {
+                if (answer.isPresent()) rejected = answer.get();
+                pending--;
+                first = pick(tried);
+            }
+        }
+        return rejected;
+    }
+
+    // Least-outstanding-requests selection among the servers not tried yet, preferring those not backing
+    // off after a failure. Ties go to the server after the one chosen last time.
+    private Server pick(Set<Server> tried) {
+        long now = System.nanoTime();
+        int start = Math.floorMod(nextServer.getAndIncrement(), servers.size());
+        Server best = null;
+        for (int i = 0; i < servers.size(); i++) {
+            Server server = servers.get((start + i) % servers.size());
+            if (tried.contains(server)) continue;
+            if (best == null || rank(server, now) < rank(best, now)) best = server;
+        }
+        return best;
+    }
+
+    private static long rank(Server server, long now) {
+        boolean backingOff = server.retryAtNanos - now > 0;
+        return (backingOff ? (long) Integer.MAX_VALUE : 0) + server.outstanding.get();
+    }
+
+    // Method to send one request on a connection to server and read the response; null if it failed.
+    // A 5xx or 429 response is returned, but counts as a failure of the server.
+    private HashMap<String, String> exchange(Server server, String target, Map<String, String> headers,
+                                             int lamportTime) {
+        server.outstanding.incrementAndGet();
+        server.requests.incrementAndGet();
+        long start = System.nanoTime();
+        Socket socket = server.idle.pollFirst();
+        boolean pooled = socket != null;
+        try {
+            HashMap<String, String> weather;
+            while (true) {
+                try {
+                    if (socket == null) socket = server.connect();
+                    RequestResponseHandler.sendQueryRequest(socket, target, lamportTime, headers);
+                    weather = RequestResponseHandler.parseResponse(socket);
+                    break;
+                } catch (IOException | IllegalArgumentException e) {
+                    // The server may have closed a connection that sat in the pool, which says nothing
+                    // about the server: try once more on a new one. A timeout is the server being slow.
+                    if (!pooled || e instanceof SocketTimeoutException) throw e;
+                    close(socket);
+                    socket = null;
+                    pooled = false;
+                }
+            }
+            server.idle.offerFirst(socket);
+            weather.put(ResponseCache.REPLICA, server.details);
+            if (isFailure(weather)) {
+                System.err.println("Server " + server.details + " answered " + weather.get("Status-Code"));
+                server.failed(parseRetryAfter(weather.get("Retry-After")));
+                return weather;
+            }
+            server.failures = 0;
+            recordLatency(System.nanoTime() - start);
+            return weather;
+        } catch (IOException | IllegalArgumentException e) {
+            // A closed connection reads as no status line
+            System.err.println("Error sending request to " + server.details + ": " + e.getMessage());
+            close(socket);
+            server.failed();
+            return null;
+        } finally {
+            server.outstanding.decrementAndGet();
+        }
+    }
+
+    private static void close(Socket socket) {
+        if (socket == null) return;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.err.println("Error closing connection: " + e.getMessage());
         }
+    }
+
+    private synchronized void recordLatency(long nanos) {
+        latencies[latencyCount++ % LATENCY_SAMPLES] = nanos;
+    }
+
+    // The 95th percentile of recent latencies, or a default until there are enough of them
+    private synchronized long hedgeDelayNanos() {
+        int samples = Math.min(latencyCount, LATENCY_SAMPLES);
+        if (samples < MIN_LATENCY_SAMPLES) return DEFAULT_HEDGE_DELAY_MS * 1_000_000L;
+        long[] sorted = Arrays.copyOf(latencies, samples);
+        Arrays.sort(sorted);
+        return sorted[(int) Math.ceil(samples * 0.95) - 1];
+    }
+
+    // Exponential backoff with equal jitter: between half and all of BASE_BACKOFF_MS * 2^(attempt - 1),
+    // capped at MAX_BACKOFF_MS
+    static long backoffMillis(int attempt, Random random) {
+        long backoff = Math.min(MAX_BACKOFF_MS, (long) BASE_BACKOFF_MS << Math.min(attempt - 1, 20));
+        return backoff / 2 + random.nextLong(backoff / 2 + 1);
+    }
 
-        return weather;
+    // Requests sent to another server because the first was slow
+    public long hedges() {
+        return hedges.get();
+    }
+
+    // Requests sent to a server, given as in the constructor
+    public long requestsSentTo(String serverDetails) {
+        for (Server server : servers) {
+            if (server.details.equals(serverDetails)) return server.requests.get();
+        }
+        return 0;
     }
 
     public static void main(String[] args) {
         if (args.length < 1) {
-            System.out.println("Usage: java GETClient <server:port> [stationId]");
+            System.out.println("Usage: java GETClient <server:port>[,<server:port>...] [stationId]");
+            System.out.println("Without a stationId, the latest reading of every station is printed.");
             return;
         }
 
         String serverDetails = args[0];
         String stationId = args.length > 1 ? args[1] : null;
 
-        // Check if the serverDetails contains "http://" and clean it if necessary
-        if (serverDetails.startsWith("http://")) {
-            // Remove "http://"
-            serverDetails = serverDetails.substring(7);
-        }
+        List<String> servers = new ArrayList<>();
+        for (String server : serverDetails.split(",")) {
+            // Check if the server contains "http://" and clean it if necessary
+            if (server.startsWith("http://")) {
+                // Remove "http://"
+                server = server.substring(7);
+            }
 
-        // Split serverDetails into serverName and port
-        String[] serverParts = serverDetails.split(":");
-        if (serverParts.length != 2) {
-            System.out.println("Error: Server details should be in the format 'servername:portnumber'.");
-            return;
+            // Split the server into serverName and port
+            if (server.split(":").length != 2) {
+                System.out.println("Error: Server details should be in the format 'servername:portnumber'.");
+                return;
+            }
+            servers.add(server);
         }
 
         try {
             // Initialize the GETClient with the server details
-            GETClient client = new GETClient(serverDetails);
+            GETClient client = new GETClient(servers);
 
             // Send the GET request, passing the stationId if provided
             HashMap<String, String> response = client.sendGetRequest(stationId);
 
-            // Print the response (assuming the response is a map with weather data)
-            if (!"".equals(response.get("body"))) {
+            // Print the response: every station when no id was given, else the one station's weather data
+            if (stationId == null && !"".equals(response.get("body"))) {
+                List<HashMap<String, String>> stations = WeatherCodec.GSON.fromJson(response.get("body"),
+                        new TypeToken<List<HashMap<String, String>>>() {}.getType());
+                for (HashMap<String, String> station : stations) {
+                    for (String key : station.keySet()) {
+                        System.out.println(key + ": " + station.get(key));
+                    }
+                    System.out.println();
+                }
+            } else if (!"".equals(response.get("body"))) {
                 WeatherEntry weather = new WeatherEntry(response.get("body"));
-                for (String key : weather.body.keySet()) {
-                    System.out.println(key + ": " + weather.body.get(key));
+                HashMap<String, String> body = weather.getBody();
+                for (String key : body.keySet()) {
+                    System.out.println(key + ": " + body.get(key));
                 }
             } else {
                 int statusCode = Integer.parseInt(response.get("Status-Code"));
@@ -0,0 +1,226 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+// Parses large observation files holding many station blocks. The file is memory-mapped, cut into
+// one range per core on record boundaries, and every range is turned into JSON payloads directly
+// from the mapped bytes, so the only Strings created per station are its id and its payload. A file
+// truncated while it is mapped cannot be read; parse then fails with an IOException, and the caller
+// reads the file again once it has settled.
+public class ObservationFileParser {
+    // Ranges smaller than this are not worth handing to another core
+    private static final int MIN_RANGE_BYTES = 64 * 1024;
+    // Room for this many fields is made in each range, and doubled when a record has more
+    private static final int INITIAL_FIELDS = 64;
+
+    // One station block, ready to be sent as the body of a PUT request
+    public static class StationRecord {
+        public final String id;
+        public final String json;
+
+        public StationRecord(String id, String json) {
+            this.id = id;
+            this.json = json;
+        }
+    }
+
+    public static List<StationRecord> parse(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Observation file too large to map: " + file);
+            }
+            if (size == 0) return new ArrayList<>();
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            try {
+                return parse(buffer, (int) size);
+            } catch (InternalError e) {
+                // Reading a page of the mapping past the new end of the file faults (SIGBUS)
+                throw new IOException("Observation file was truncated while it was read: " + file, e);
+            }
+        }
+    }
+
+    private static List<StationRecord> parse(MappedByteBuffer buffer, int size) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int rangeCount = Math.max(1, Math.min(cores, size / MIN_RANGE_BYTES));
+
+        // Move every split point forward to the start of the next record
+        int[] bounds = new int[rangeCount + 1];
+        for (int i = 1; i < rangeCount; i++) {
+            int split = nextRecordStart(buffer, (int) ((long) size * i / rangeCount), size);
+            bounds[i] = Math.max(bounds[i - 1], split);
+        }
+        bounds[rangeCount] = size;
+
+        return IntStream.range(0, rangeCount)
+                .parallel()
+                .mapToObj(i -> parseRange(buffer, bounds[i], bounds[i + 1]))
+                .flatMap(List::stream)
+                .collect(Collectors.toList());
+    }
+
+    // Method to find the first line at or after 'from' that starts with the "id" key
+    private static int nextRecordStart(MappedByteBuffer buffer, int from, int size) {
+        int pos = from;
+        // Only a position right after a newline is the start of a line
+        if (pos > 0 && buffer.get(pos - 1) != '\n') pos = nextLine(buffer, pos, size);
+        while (pos < size && !isIdLine(buffer, pos, size)) {
+            pos = nextLine(buffer, pos, size);
+        }
+        return pos;
+    }
+
+    private static int nextLine(MappedByteBuffer buffer, int pos, int size) {
+        while (pos < size && buffer.get(pos) != '\n') pos++;
+        return Math.min(pos + 1, size);
+    }
+
+    private static boolean isIdLine(MappedByteBuffer buffer, int pos, int size) {
+        pos = skipBlanks(buffer, pos, size);
+        if (pos + 1 >= size || buffer.get(pos) != 'i' || buffer.get(pos + 1) != 'd') return false;
+        pos = skipBlanks(buffer, pos + 2, size);
+        return pos < size && buffer.get(pos) == ':';
+    }
+
+    private static int skipBlanks(MappedByteBuffer buffer, int pos, int end) {
+        while (pos < end && (buffer.get(pos) == ' ' || buffer.get(pos) == '\t')) pos++;
+        return pos;
+    }
+
+    // Method to parse all records in [start, end); the range always begins at a record start
+    private static List<StationRecord> parseRange(MappedByteBuffer buffer, int start, int end) {
+        List<StationRecord> records = new ArrayList<>();
+        // Offsets of the trimmed key and value of every field in the current record
+        int[] fields = new int[INITIAL_FIELDS * 4];
+        int fieldCount = 0;
+        boolean inRecord = false;
+        StringBuilder json = new StringBuilder(512);
+
+        int pos = start;
+        while (pos < end) {
+            int lineEnd = pos;
+            while (lineEnd < end && buffer.get(lineEnd) != '\n') lineEnd++;
+
+            int colon = pos;
+            while (colon < lineEnd && buffer.get(colon) != ':') colon++;
+            if (colon < lineEnd) {
+                int keyStart = skipBlanks(buffer, pos, colon);
+                int keyEnd = trimEnd(buffer, keyStart, colon);
+                int valueStart = skipBlanks(buffer, colon + 1, lineEnd);
+                int valueEnd = trimEnd(buffer, valueStart, lineEnd);
+
+                if (keyEnd - keyStart == 2 && buffer.get(keyStart) == 'i' && buffer.get(keyStart + 1) == 'd') {
+                    if (inRecord) addRecord(buffer, fields, fieldCount, json, records);
+                    fieldCount = 0;
+                    inRecord = true;
+                }
+                // Lines before the first "id" cannot be attributed to a station
+                if (inRecord && keyEnd > keyStart) {
+                    if (fieldCount * 4 == fields.length) fields = Arrays.copyOf(fields, fields.length * 2);
+                    fieldCount = putField(buffer, fields, fieldCount, keyStart, keyEnd, valueStart, valueEnd);
+                }
+            }
+            pos = lineEnd + 1;
+        }
+        if (inRecord) addRecord(buffer, fields, fieldCount, json, records);
+        return records;
+    }
+
+    private static int trimEnd(MappedByteBuffer buffer, int start, int end) {
+        while (end > start) {
+            byte b = buffer.get(end - 1);
+            if (b != ' ' && b != '\t' && b != '\r') break;
+            end--;
+        }
+        return end;
+    }
+
+    // A repeated key replaces the earlier value, as it would in a HashMap; fields has room for one more
+    private static int putField(MappedByteBuffer buffer, int[] fields, int fieldCount,
+                                int keyStart, int keyEnd, int valueStart, int valueEnd) {
+        for (int i = 0; i < fieldCount; i++) {
+            if (sameBytes(buffer, fields[i * 4], fields[i * 4 + 1], keyStart, keyEnd)) {
+                fields[i * 4 + 2] = valueStart;
+                fields[i * 4 + 3] = valueEnd;
+                return fieldCount;
+            }
+        }
+        fields[fieldCount * 4] = keyStart;
+        fields[fieldCount * 4 + 1] = keyEnd;
+        fields[fieldCount * 4 + 2] = valueStart;
+        fields[fieldCount * 4 + 3] = valueEnd;
+        return fieldCount + 1;
+    }
+
+    private static boolean sameBytes(MappedByteBuffer buffer, int aStart, int aEnd, int bStart, int bEnd) {
+        if (aEnd - aStart != bEnd - bStart) return false;
+        for (int i = 0; i < aEnd - aStart; i++) {
+            if (buffer.get(aStart + i) != buffer.get(bStart + i)) return false;
+        }
+        return true;
+    }
+
+    private static void addRecord(MappedByteBuffer buffer, int[] fields, int fieldCount,
+                                  StringBuilder json, List<StationRecord> records) {
+        // The id is always the first field; a record without an id value is skipped
+        if (fieldCount == 0 || fields[3] == fields[2]) return;
+
+        json.setLength(0);
+        json.append('{');
+        for (int i = 0; i < fieldCount; i++) {
+            if (i > 0) json.append(',');
+            appendJsonString(buffer, fields[i * 4], fields[i * 4 + 1], json);
+            json.append(':');
+            appendJsonString(buffer, fields[i * 4 + 2], fields[i * 4 + 3], json);
+        }
+        json.append('}');
+
+        String id = decode(buffer, fields[2], fields[3]);
+        records.add(new StationRecord(id, json.toString()));
+    }
+
+    // Method to append bytes as a quoted JSON string, escaping as needed
+    private static void appendJsonString(MappedByteBuffer buffer, int start, int end, StringBuilder json) {
+        json.append('"');
+        for (int i = start; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b < 0) {
+                // Non-ASCII text is rare in observation files; decode the rest of the value properly
+                appendEscaped(decode(buffer, i, end), json);
+                break;
+            }
+            appendEscaped((char) b, json);
+        }
+        json.append('"');
+    }
+
+    private static void appendEscaped(String text, StringBuilder json) {
+        for (int i = 0; i < text.length(); i++) appendEscaped(text.charAt(i), json);
+    }
+
+    private static void appendEscaped(char c, StringBuilder json) {
+        if (c == '"' || c == '\\') {
+            json.append('\\').append(c);
+        } else if (c < 0x20) {
+            json.append(String.format("\\u%04x", (int) c));
+        } else {
+            json.append(c);
+        }
+    }
+
+    private static String decode(MappedByteBuffer buffer, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        buffer.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
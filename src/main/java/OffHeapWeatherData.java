@@ -0,0 +1,620 @@
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+// weatherData kept outside the Java heap, so millions of readings are not traced by every GC.
+// Each station id is interned to a station number, which is the slot of its block in memory
+// allocated from an Arena. A block is a ring of fixed-layout records:
+//   block:  int size, int head, then one record per reading kept
+//   record: long timestamp (epoch nanoseconds), int field count, int unused,
+//           then per field an int (name number << 2 | kind) and a long value
+// Numbers are stored in the long, text values as a number in a pool of distinct texts.
+// Pool slots are counted by the records that refer to them, and reused once no record does.
+// get() returns a live Deque view of the block; views of a removed station read as empty.
+public class OffHeapWeatherData extends AbstractMap<String, Deque<WeatherEntry>> implements AutoCloseable {
+    // Most fields a reading can have, as the records have a fixed size
+    public static final int MAX_FIELDS = 24;
+
+    private static final int NULL = 0;
+    private static final int TEXT = 1;
+    private static final int INTEGER = 2;
+    private static final int DECIMAL = 3;
+
+    private static final long BLOCK_HEADER_BYTES = 8;
+    private static final long RECORD_HEADER_BYTES = 16;
+    private static final long FIELD_BYTES = 12;
+    private static final long RECORD_BYTES = RECORD_HEADER_BYTES + MAX_FIELDS * FIELD_BYTES;
+    private static final int STATIONS_PER_CHUNK = 256;
+
+    private final int capacity;
+    private final long blockBytes;
+    private final Arena arena = Arena.ofShared();
+    // Memory is allocated in chunks of STATIONS_PER_CHUNK blocks, as stations arrive
+    private final List<MemorySegment> chunks = new ArrayList<>();
+
+    // Station id -> station number, with numbers of removed stations reused
+    private final Map<String, Integer> stationNumbers = new HashMap<>();
+    private final ArrayDeque<Integer> freeNumbers = new ArrayDeque<>();
+    private int nextNumber;
+    // Bumped when a station number is freed, so views taken before no longer read its block
+    private int[] generations = new int[STATIONS_PER_CHUNK];
+
+    // Field names and text values, stored once and referred to by number. A slot is freed when the
+    // last record using it is polled or its station removed, so texts that stop arriving, such as
+    // old local_date_time values, do not pile up on the heap.
+    private final Pool names = new Pool();
+    private final Pool texts = new Pool();
+
+    // capacity is the number of readings kept per station, like MAX_UPDATES of the server
+    public OffHeapWeatherData(int capacity) {
+        this.capacity = capacity;
+        this.blockBytes = BLOCK_HEADER_BYTES + capacity * RECORD_BYTES;
+    }
+
+    // Method to check that a reading fits in a record
+    public boolean fits(WeatherEntry entry) {
+        return entry.getBody().size() <= MAX_FIELDS;
+    }
+
+    // Bytes of off-heap memory allocated so far
+    public synchronized long allocatedBytes() {
+        return chunks.size() * STATIONS_PER_CHUNK * blockBytes;
+    }
+
+    // Number of distinct names and texts the stored readings refer to
+    public synchronized int pooledStrings() {
+        return names.size() + texts.size();
+    }
+
+    @Override
+    public synchronized int size() {
+        return stationNumbers.size();
+    }
+
+    @Override
+    public synchronized boolean containsKey(Object key) {
+        return stationNumbers.containsKey(key);
+    }
+
+    @Override
+    public synchronized Deque<WeatherEntry> get(Object key) {
+        Integer number = stationNumbers.get(key);
+        return number == null ? null : new StationDeque(number, generations[number]);
+    }
+
+    // Method to store a copy of the given readings; only the last capacity readings are kept
+    @Override
+    public synchronized Deque<WeatherEntry> put(String key, Deque<WeatherEntry> value) {
+        List<WeatherEntry> entries = new ArrayList<>(value);
+        for (WeatherEntry entry : entries) {
+            if (!fits(entry)) throw new IllegalArgumentException("A reading has more than " + MAX_FIELDS + " fields");
+        }
+        Deque<WeatherEntry> previous = remove(key);
+
+        int number = freeNumbers.isEmpty() ? nextNumber++ : freeNumbers.pollFirst();
+        stationNumbers.put(key, number);
+        StationDeque updates = new StationDeque(number, generations(number)[number]);
+        updates.clear();
+        for (WeatherEntry entry : entries.subList(Math.max(0, entries.size() - capacity), entries.size())) {
+            updates.offerLast(entry);
+        }
+        return previous;
+    }
+
+    // Method to remove a station; the readings are returned as an on-heap copy
+    @Override
+    public synchronized Deque<WeatherEntry> remove(Object key) {
+        Integer number = stationNumbers.get(key);
+        if (number == null) return null;
+        StationDeque updates = new StationDeque(number, generations[number]);
+        updates.detach();
+        free((String) key, number);
+        return updates;
+    }
+
+    @Override
+    public synchronized void clear() {
+        for (Map.Entry<String, Integer> station : new ArrayList<>(stationNumbers.entrySet())) {
+            free(station.getKey(), station.getValue());
+        }
+    }
+
+    // Iterates over a snapshot of the station ids. Removing through the iterator detaches the
+    // current value first, so the readings of a removed station can still be read, e.g. to archive them.
+    @Override
+    public Set<Map.Entry<String, Deque<WeatherEntry>>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public int size() {
+                return OffHeapWeatherData.this.size();
+            }
+
+            @Override
+            public Iterator<Map.Entry<String, Deque<WeatherEntry>>> iterator() {
+                List<Map.Entry<String, Deque<WeatherEntry>>> stations = new ArrayList<>();
+                synchronized (OffHeapWeatherData.this) {
+                    for (Map.Entry<String, Integer> station : stationNumbers.entrySet()) {
+                        int number = station.getValue();
+                        stations.add(new SimpleImmutableEntry<>(station.getKey(),
+                                new StationDeque(number, generations[number])));
+                    }
+                }
+                Iterator<Map.Entry<String, Deque<WeatherEntry>>> iterator = stations.iterator();
+
+                return new Iterator<>() {
+                    private Map.Entry<String, Deque<WeatherEntry>> current;
+
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public Map.Entry<String, Deque<WeatherEntry>> next() {
+                        current = iterator.next();
+                        return current;
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (current == null) throw new IllegalStateException();
+                        synchronized (OffHeapWeatherData.this) {
+                            StationDeque updates = (StationDeque) current.getValue();
+                            if (updates.isLive()) {
+                                updates.detach();
+                                free(current.getKey(), updates.number);
+                            }
+                        }
+                        current = null;
+                    }
+                };
+            }
+        };
+    }
+
+    // Method to release the off-heap memory; the map can no longer be used afterwards
+    @Override
+    public synchronized void close() {
+        arena.close();
+    }
+
+    private void free(String key, int number) {
+        new StationDeque(number, generations[number]).clear();
+        stationNumbers.remove(key);
+        generations[number]++;
+        freeNumbers.addLast(number);
+    }
+
+    // The generations array, grown with a new chunk of memory when the station number needs one
+    private int[] generations(int number) {
+        while (number >= chunks.size() * STATIONS_PER_CHUNK) {
+            chunks.add(arena.allocate(STATIONS_PER_CHUNK * blockBytes, Long.BYTES));
+        }
+        if (number >= generations.length) {
+            int[] grown = new int[chunks.size() * STATIONS_PER_CHUNK];
+            System.arraycopy(generations, 0, grown, 0, generations.length);
+            generations = grown;
+        }
+        return generations;
+    }
+
+    private MemorySegment chunkOf(int number) {
+        return chunks.get(number / STATIONS_PER_CHUNK);
+    }
+
+    private long blockOf(int number) {
+        return (number % STATIONS_PER_CHUNK) * blockBytes;
+    }
+
+    private void write(MemorySegment chunk, long record, WeatherEntry entry) {
+        Map<String, String> body = entry.getBody();
+        if (body.size() > MAX_FIELDS) throw new IllegalArgumentException("A reading has more than " + MAX_FIELDS + " fields");
+        LocalDateTime timestamp = entry.getTimestampAsLocalDateTime();
+        chunk.set(ValueLayout.JAVA_LONG, record, Math.addExact(
+                Math.multiplyExact(timestamp.toEpochSecond(ZoneOffset.UTC), 1_000_000_000L), timestamp.getNano()));
+        chunk.set(ValueLayout.JAVA_INT, record + 8, body.size());
+
+        long field = record + RECORD_HEADER_BYTES;
+        for (Map.Entry<String, String> pair : body.entrySet()) {
+            String value = pair.getValue();
+            int kind;
+            long bits = 0;
+            if (value == null) {
+                kind = NULL;
+            } else if (isCanonicalLong(value)) {
+                kind = INTEGER;
+                bits = Long.parseLong(value);
+            } else if (WeatherEntry.isCanonicalDecimal(value)) {
+                kind = DECIMAL;
+                bits = Double.doubleToRawLongBits(Double.parseDouble(value));
+            } else {
+                kind = TEXT;
+                bits = texts.acquire(value);
+            }
+            chunk.set(ValueLayout.JAVA_INT, field, names.acquire(pair.getKey()) << 2 | kind);
+            chunk.set(ValueLayout.JAVA_LONG_UNALIGNED, field + 4, bits);
+            field += FIELD_BYTES;
+        }
+    }
+
+    // Method to drop the references of a record to the pools, before it is polled or cleared
+    private void release(MemorySegment chunk, long record) {
+        int count = chunk.get(ValueLayout.JAVA_INT, record + 8);
+        long field = record + RECORD_HEADER_BYTES;
+        for (int i = 0; i < count; i++) {
+            int tag = chunk.get(ValueLayout.JAVA_INT, field);
+            if ((tag & 3) == TEXT) texts.release((int) chunk.get(ValueLayout.JAVA_LONG_UNALIGNED, field + 4));
+            names.release(tag >>> 2);
+            field += FIELD_BYTES;
+        }
+    }
+
+    private WeatherEntry read(MemorySegment chunk, long record) {
+        long nanos = chunk.get(ValueLayout.JAVA_LONG, record);
+        int count = chunk.get(ValueLayout.JAVA_INT, record + 8);
+        HashMap<String, String> body = new HashMap<>();
+        long field = record + RECORD_HEADER_BYTES;
+        for (int i = 0; i < count; i++) {
+            int tag = chunk.get(ValueLayout.JAVA_INT, field);
+            long bits = chunk.get(ValueLayout.JAVA_LONG_UNALIGNED, field + 4);
+            String value = null;
+            switch (tag & 3) {
+                case TEXT -> value = texts.get((int) bits);
+                case INTEGER -> value = Long.toString(bits);
+                case DECIMAL -> value = Double.toString(Double.longBitsToDouble(bits));
+                default -> { }
+            }
+            body.put(names.get(tag >>> 2), value);
+            field += FIELD_BYTES;
+        }
+        return new WeatherEntry(body, LocalDateTime.ofEpochSecond(Math.floorDiv(nanos, 1_000_000_000L),
+                (int) Math.floorMod(nanos, 1_000_000_000L), ZoneOffset.UTC));
+    }
+
+    // Two readings are the same if their timestamps and bodies are, as decoded readings are new objects
+    private static boolean sameReading(WeatherEntry entry, Object other) {
+        return other instanceof WeatherEntry
+                && entry.getTimestampAsLocalDateTime().equals(((WeatherEntry) other).getTimestampAsLocalDateTime())
+                && entry.getBody().equals(((WeatherEntry) other).getBody());
+    }
+
+    // Distinct strings referred to by number, with a count of the records using each slot
+    private static class Pool {
+        private final List<String> values = new ArrayList<>();
+        private final Map<String, Integer> numbers = new HashMap<>();
+        private final ArrayDeque<Integer> freeNumbers = new ArrayDeque<>();
+        private int[] references = new int[16];
+
+        private int acquire(String value) {
+            Integer number = numbers.get(value);
+            if (number == null) {
+                if (freeNumbers.isEmpty()) {
+                    number = values.size();
+                    values.add(value);
+                    if (number >= references.length) references = Arrays.copyOf(references, number * 2);
+                } else {
+                    number = freeNumbers.pollFirst();
+                    values.set(number, value);
+                }
+                numbers.put(value, number);
+            }
+            references[number]++;
+            return number;
+        }
+
+        private void release(int number) {
+            if (--references[number] == 0) {
+                numbers.remove(values.get(number));
+                values.set(number, null);
+                freeNumbers.addLast(number);
+            }
+        }
+
+        private String get(int number) {
+            return values.get(number);
+        }
+
+        private int size() {
+            return numbers.size();
+        }
+    }
+
+    // Only integers that print back to the same text are stored as numbers, so "05" stays text
+    private static boolean isCanonicalLong(String value) {
+        if (value.isEmpty() || value.length() > 20) return false;
+        try {
+            return Long.toString(Long.parseLong(value)).equals(value);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    // The readings of one station: a view of its block while the station is stored, and an on-heap
+    // copy once detached by a remove. Each operation locks the whole map, like the map's own methods.
+    private class StationDeque extends AbstractCollection<WeatherEntry> implements Deque<WeatherEntry> {
+        private final int number;
+        private final int generation;
+        private Deque<WeatherEntry> detached;
+
+        private StationDeque(int number, int generation) {
+            this.number = number;
+            this.generation = generation;
+        }
+
+        private boolean isLive() {
+            return detached == null && generations[number] == generation;
+        }
+
+        // Method to copy the readings onto the heap before the block is freed
+        private void detach() {
+            detached = new LinkedList<>(snapshot());
+        }
+
+        private int count() {
+            return chunkOf(number).get(ValueLayout.JAVA_INT, blockOf(number));
+        }
+
+        private int head() {
+            return chunkOf(number).get(ValueLayout.JAVA_INT, blockOf(number) + 4);
+        }
+
+        private void setCountAndHead(int count, int head) {
+            chunkOf(number).set(ValueLayout.JAVA_INT, blockOf(number), count);
+            chunkOf(number).set(ValueLayout.JAVA_INT, blockOf(number) + 4, head);
+        }
+
+        // Offset of the i-th reading, oldest first
+        private long recordAt(int i) {
+            return blockOf(number) + BLOCK_HEADER_BYTES + ((head() + i) % capacity) * RECORD_BYTES;
+        }
+
+        private List<WeatherEntry> snapshot() {
+            synchronized (OffHeapWeatherData.this) {
+                if (detached != null) return new ArrayList<>(detached);
+                List<WeatherEntry> entries = new ArrayList<>();
+                if (!isLive()) return entries;
+                for (int i = 0; i < count(); i++) entries.add(read(chunkOf(number), recordAt(i)));
+                return entries;
+            }
+        }
+
+        @Override
+        public int size() {
+            synchronized (OffHeapWeatherData.this) {
+                if (detached != null) return detached.size();
+                return isLive() ? count() : 0;
+            }
+        }
+
+        @Override
+        public void clear() {
+            synchronized (OffHeapWeatherData.this) {
+                if (detached != null) {
+                    detached.clear();
+                } else if (isLive()) {
+                    for (int i = 0; i < count(); i++) release(chunkOf(number), recordAt(i));
+                    setCountAndHead(0, 0);
+                }
+            }
+        }
+
+        // A full block (capacity readings) rejects the reading, like a bounded Deque
+        @Override
+        public boolean offerLast(WeatherEntry entry) {
+            synchronized (OffHeapWeatherData.this) {
+                if (detached != null) return detached.offerLast(entry);
+                if (!isLive() || count() >= capacity) return false;
+                write(chunkOf(number), recordAt(count()), entry);
+                setCountAndHead(count() + 1, head());
+                return true;
+            }
+        }
+
+        @Override
+        public boolean offerFirst(WeatherEntry entry) {
+            synchronized (OffHeapWeatherData.this) {
+                if (detached != null) return detached.offerFirst(entry);
+                if (!isLive() || count() >= capacity) return false;
+                int head = (head() + capacity - 1) % capacity;
+                write(chunkOf(number), blockOf(number) + BLOCK_HEADER_BYTES + head * RECORD_BYTES, entry);
+                setCountAndHead(count() + 1, head);
+                return true;
+            }
+        }
+
+        @Override
+        public WeatherEntry pollFirst() {
+            synchronized (OffHeapWeatherData.this) {
+                if (detached != null) return detached.pollFirst();
+                if (!isLive() || count() == 0) return null;
+                WeatherEntry first = read(chunkOf(number), recordAt(0));
+                release(chunkOf(number), recordAt(0));
+                setCountAndHead(count() - 1, (head() + 1) % capacity);
+                return first;
+            }
+        }
+
+        @Override
+        public WeatherEntry pollLast() {
+            synchronized (OffHeapWeatherData.this) {
+                if (detached != null) return detached.pollLast();
+                if (!isLive() || count() == 0) return null;
+                WeatherEntry last = read(chunkOf(number), recordAt(count() - 1));
+                release(chunkOf(number), recordAt(count() - 1));
+                setCountAndHead(count() - 1, head());
+                return last;
+            }
+        }
+
+        @Override
+        public WeatherEntry peekFirst() {
+            synchronized (OffHeapWeatherData.this) {
+                if (detached != null) return detached.peekFirst();
+                return !isLive() || count() == 0 ? null : read(chunkOf(number), recordAt(0));
+            }
+        }
+
+        @Override
+        public WeatherEntry peekLast() {
+            synchronized (OffHeapWeatherData.this) {
+                if (detached != null) return detached.peekLast();
+                return !isLive() || count() == 0 ? null : read(chunkOf(number), recordAt(count() - 1));
+            }
+        }
+
+        // Iterates over a copy; readings are removed with poll, not through the iterator
+        @Override
+        public Iterator<WeatherEntry> iterator() {
+            return Collections.unmodifiableList(snapshot()).iterator();
+        }
+
+        @Override
+        public Iterator<WeatherEntry> descendingIterator() {
+            List<WeatherEntry> entries = snapshot();
+            Collections.reverse(entries);
+            return Collections.unmodifiableList(entries).iterator();
+        }
+
+        @Override
+        public void addFirst(WeatherEntry entry) {
+            if (!offerFirst(entry)) throw new IllegalStateException("Station holds " + capacity + " readings");
+        }
+
+        @Override
+        public void addLast(WeatherEntry entry) {
+            if (!offerLast(entry)) throw new IllegalStateException("Station holds " + capacity + " readings");
+        }
+
+        @Override
+        public WeatherEntry removeFirst() {
+            WeatherEntry first = pollFirst();
+            if (first == null) throw new NoSuchElementException();
+            return first;
+        }
+
+        @Override
+        public WeatherEntry removeLast() {
+            WeatherEntry last = pollLast();
+            if (last == null) throw new NoSuchElementException();
+            return last;
+        }
+
+        @Override
+        public WeatherEntry getFirst() {
+            WeatherEntry first = peekFirst();
+            if (first == null) throw new NoSuchElementException();
+            return first;
+        }
+
+        @Override
+        public WeatherEntry getLast() {
+            WeatherEntry last = peekLast();
+            if (last == null) throw new NoSuchElementException();
+            return last;
+        }
+
+        // Readings are decoded into new objects on every read, so they are matched by timestamp and body
+        @Override
+        public boolean removeFirstOccurrence(Object o) {
+            synchronized (OffHeapWeatherData.this) {
+                if (detached != null) return detached.removeFirstOccurrence(o);
+                if (!isLive()) return false;
+                for (int i = 0; i < count(); i++) {
+                    if (sameReading(read(chunkOf(number), recordAt(i)), o)) {
+                        removeAt(i);
+                        return true;
+                    }
+                }
+                return false;
+            }
+        }
+
+        @Override
+        public boolean removeLastOccurrence(Object o) {
+            synchronized (OffHeapWeatherData.this) {
+                if (detached != null) return detached.removeLastOccurrence(o);
+                if (!isLive()) return false;
+                for (int i = count() - 1; i >= 0; i--) {
+                    if (sameReading(read(chunkOf(number), recordAt(i)), o)) {
+                        removeAt(i);
+                        return true;
+                    }
+                }
+                return false;
+            }
+        }
+
+        // Method to remove the i-th reading, moving the later records down one slot of the ring
+        private void removeAt(int i) {
+            MemorySegment chunk = chunkOf(number);
+            release(chunk, recordAt(i));
+            for (int j = i; j < count() - 1; j++) {
+                MemorySegment.copy(chunk, recordAt(j + 1), chunk, recordAt(j), RECORD_BYTES);
+            }
+            setCountAndHead(count() - 1, head());
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            return removeFirstOccurrence(o);
+        }
+
+        @Override
+        public boolean add(WeatherEntry entry) {
+            addLast(entry);
+            return true;
+        }
+
+        @Override
+        public boolean offer(WeatherEntry entry) {
+            return offerLast(entry);
+        }
+
+        @Override
+        public WeatherEntry remove() {
+            return removeFirst();
+        }
+
+        @Override
+        public WeatherEntry poll() {
+            return pollFirst();
+        }
+
+        @Override
+        public WeatherEntry element() {
+            return getFirst();
+        }
+
+        @Override
+        public WeatherEntry peek() {
+            return peekFirst();
+        }
+
+        @Override
+        public void push(WeatherEntry entry) {
+            addFirst(entry);
+        }
+
+        @Override
+        public WeatherEntry pop() {
+            return removeFirst();
+        }
+    }
+}
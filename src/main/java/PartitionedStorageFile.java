@@ -0,0 +1,146 @@
+import com.google.gson.stream.JsonReader;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Storage split into one file per station, so a PUT rewrites only the station it touched instead
+// of every station. filePath is the directory of partitions; each partition is a weather_data.json
+// of a single station, written to a temporary file and moved into place with ATOMIC_MOVE.
+public class PartitionedStorageFile extends StorageFile {
+    private static final String SUFFIX = ".json";
+
+    // Number of partition files written, to check the write amplification of a save
+    public long partitionWrites;
+
+    public PartitionedStorageFile(String dirStr, String partitionDirStr) throws IOException {
+        super(dirStr, partitionDirStr);
+        Files.createDirectories(filePath);
+    }
+
+    @Override
+    public Map<String, Deque<WeatherEntry>> recoverDataFromFile() throws IOException {
+        long start = System.nanoTime();
+        Files.createDirectories(filePath);
+        List<Path> partitions;
+        try (Stream<Path> files = Files.list(filePath)) {
+            partitions = files.collect(Collectors.toList());
+        }
+
+        // A temporary file never reached its move, so its partition still holds the previous version
+        for (Path partition : partitions) {
+            if (partition.getFileName().toString().endsWith(".tmp")) {
+                System.out.println("Discarding incomplete write: " + partition);
+                Files.deleteIfExists(partition);
+            }
+        }
+
+        // Partitions are independent of each other, so they are read in parallel
+        Map<String, Deque<WeatherEntry>> weatherData = new HashMap<>();
+        try {
+            List<Map<String, Deque<WeatherEntry>>> stations = partitions.parallelStream()
+                    .filter(partition -> partition.getFileName().toString().endsWith(SUFFIX))
+                    .map(PartitionedStorageFile::readPartition)
+                    .collect(Collectors.toList());
+            for (Map<String, Deque<WeatherEntry>> station : stations) weatherData.putAll(station);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        lastRecoveryMillis = (System.nanoTime() - start) / 1_000_000;
+        lastRecoveredStations = weatherData.size();
+        lastRecoveredEntries = 0;
+        for (Deque<WeatherEntry> updates : weatherData.values()) lastRecoveredEntries += updates.size();
+        System.out.println("Recovered " + lastRecoveredEntries + " entries of " + lastRecoveredStations
+                + " stations in " + lastRecoveryMillis + " ms");
+        return weatherData;
+    }
+
+    // Method to write every station, and delete the partitions of stations no longer stored
+    @Override
+    public synchronized void saveDataToFile(Map<String, Deque<WeatherEntry>> weatherData) throws IOException {
+        Set<Path> stored = new HashSet<>();
+        for (String stationId : weatherData.keySet()) {
+            saveStation(stationId, weatherData);
+            stored.add(partitionFor(stationId));
+        }
+        try (Stream<Path> files = Files.list(filePath)) {
+            for (Path partition : files.collect(Collectors.toList())) {
+                String name = partition.getFileName().toString();
+                if (name.endsWith(SUFFIX) && !stored.contains(partition)) {
+                    Files.deleteIfExists(partition);
+                }
+            }
+        }
+    }
+
+    // Method to rewrite the partition of one station (with atomic write)
+    @Override
+    public synchronized void saveStation(String stationId, Map<String, Deque<WeatherEntry>> weatherData)
+            throws IOException {
+        Path partition = partitionFor(stationId);
+        Deque<WeatherEntry> updates = weatherData.get(stationId);
+        if (updates == null) {
+            Files.deleteIfExists(partition);
+            return;
+        }
+
+        String json = convertWeatherDataToJson(Collections.singletonMap(stationId, updates));
+        Path tempFile = partition.resolveSibling("temp_" + partition.getFileName().toString() + ".tmp");
+        try {
+            Files.createDirectories(filePath);
+            byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+            Files.write(tempFile, bytes);
+            Files.move(tempFile, partition, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            partitionWrites++;
+            bytesWritten += bytes.length;
+        } catch (IOException e) {
+            System.err.println("Error when saving station " + stationId + " to file: " + e.getMessage());
+        } finally {
+            if (Files.exists(tempFile)) {
+                Files.delete(tempFile);
+            }
+        }
+    }
+
+    // Method to rewrite the partition of each station changed by a batch of PUTs
+    @Override
+    public synchronized void saveStations(Collection<String> stationIds, Map<String, Deque<WeatherEntry>> weatherData)
+            throws IOException {
+        for (String stationId : stationIds) saveStation(stationId, weatherData);
+    }
+
+    // Method to delete the partitions of expired stations
+    @Override
+    public synchronized void removeStations(Collection<String> stationIds, Map<String, Deque<WeatherEntry>> weatherData)
+            throws IOException {
+        for (String stationId : stationIds) Files.deleteIfExists(partitionFor(stationId));
+    }
+
+    private Path partitionFor(String stationId) {
+        return filePath.resolve(WeatherArchive.fileNameFor(stationId) + SUFFIX);
+    }
+
+    private static Map<String, Deque<WeatherEntry>> readPartition(Path partition) {
+        Map<String, Deque<WeatherEntry>> station = new HashMap<>();
+        try (JsonReader reader = new JsonReader(Files.newBufferedReader(partition, StandardCharsets.UTF_8))) {
+            readWeatherData(reader, station);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return station;
+    }
+}
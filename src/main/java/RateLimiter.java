@@ -0,0 +1,45 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A token bucket per key, e.g. per client address or per station id, allowing ratePerSecond requests
+// on average and bursts of up to burst requests. Each bucket is one AtomicLong, updated with the
+// Generic Cell Rate Algorithm (GCRA): it holds the time at which the bucket will be full again, so
+// taking a token is a single compare-and-set, with no lock and no refill thread. The buckets live in
+// a ConcurrentHashMap, whose bins are locked separately, so requests for different keys do not contend.
+public class RateLimiter {
+    // Time between two tokens, and how far ahead of now the full-again time may run: burst - 1 tokens
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final Map<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+
+    public RateLimiter(double ratePerSecond, int burst) {
+        if (ratePerSecond <= 0 || burst < 1) throw new IllegalArgumentException("Rate and burst must be positive");
+        this.intervalNanos = Math.max(1, (long) (1_000_000_000L / ratePerSecond));
+        this.toleranceNanos = intervalNanos * (burst - 1);
+    }
+
+    // Method to take a token for key at time nowNanos (System.nanoTime()). Returns 0 if the request may
+    // go ahead, or else the nanoseconds until a token is available, e.g. for a Retry-After header.
+    public long tryAcquire(String key, long nowNanos) {
+        AtomicLong bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(Long.MIN_VALUE));
+        while (true) {
+            long fullAt = bucket.get();
+            long start = fullAt == Long.MIN_VALUE || fullAt - nowNanos < 0 ? nowNanos : fullAt;
+            long wait = start - toleranceNanos - nowNanos;
+            if (wait > 0) return wait;
+            if (bucket.compareAndSet(fullAt, start + intervalNanos)) return 0;
+        }
+    }
+
+    // Method to forget the buckets that are full again, which are the same as new ones, so keys seen
+    // once, e.g. a burst of made-up station ids, do not stay in memory. A request racing with the
+    // removal may get a fresh bucket, i.e. at most one extra burst for that key.
+    public void prune(long nowNanos) {
+        buckets.values().removeIf(bucket -> bucket.get() == Long.MIN_VALUE || bucket.get() - nowNanos <= 0);
+    }
+
+    public int keys() {
+        return buckets.size();
+    }
+}
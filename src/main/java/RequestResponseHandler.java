@@ -1,11 +1,23 @@
-import com.google.gson.Gson;
+import com.google.gson.JsonIOException;
+import com.google.gson.stream.JsonWriter;
 
 import java.io.*;
 import java.net.Socket;
+import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
 
 public class RequestResponseHandler {
+    // Prefix of the query parameters of a GET in the map returned by parseRequest
+    public static final String QUERY_PREFIX = "query.";
+
+    // Characters per chunk of a streamed response
+    private static final int CHUNK_CHARS = 8192;
+
     private static void readBody(BufferedReader reader, HashMap<String, String> resultMap)
             throws IOException {
         String line;
@@ -18,36 +30,116 @@ public class RequestResponseHandler {
                 contentLength = Integer.parseInt(line.split(":")[1].trim());
                 resultMap.put("Content-Length", String.valueOf(contentLength));
             } else {
-                String[] items = line.split(":");
+                // Split at the first colon only: values such as a change cursor contain colons
+                String[] items = line.split(":", 2);
                 resultMap.put(items[0], items[1].trim());
             }
         }
 
-        // Read the body based on Content-Length
-        for (int i = 0; i < contentLength; i++) {
-            bodyBuilder.append((char) reader.read());
+        // Read the body in chunks, or based on Content-Length
+        if ("chunked".equalsIgnoreCase(resultMap.get("Transfer-Encoding"))) {
+            readChunks(reader, bodyBuilder);
+        } else {
+            readUtf8(reader, contentLength, bodyBuilder);
         }
         resultMap.put("body", bodyBuilder.toString());
     }
 
+    // Reads the characters that take the given number of UTF-8 bytes. Content-Length and chunk sizes
+    // count bytes, so each character read counts its encoded length.
+    private static void readUtf8(BufferedReader reader, int bytes, StringBuilder body) throws IOException {
+        char[] buffer = new char[Math.min(CHUNK_CHARS, Math.max(1, bytes))];
+        while (bytes > 0) {
+            // A character is at most 3 bytes, so this many never reads past the body
+            int read = reader.read(buffer, 0, Math.min(buffer.length, Math.max(1, bytes / 3)));
+            if (read < 0) throw new EOFException("Connection closed in a body");
+            for (int i = 0; i < read; i++) {
+                char c = buffer[i];
+                bytes -= c < 0x80 ? 1 : c < 0x800 || Character.isSurrogate(c) ? 2 : 3;
+            }
+            body.append(buffer, 0, read);
+        }
+    }
+
+    // Reads a body sent with "Transfer-Encoding: chunked": chunks, each a hex size line, the data and a
+    // line break, up to a chunk of size 0. A chunk never ends in the middle of a character.
+    private static void readChunks(BufferedReader reader, StringBuilder body) throws IOException {
+        while (true) {
+            String sizeLine = reader.readLine();
+            if (sizeLine == null) throw new EOFException("Connection closed in a chunked body");
+            int extension = sizeLine.indexOf(';');
+            int size = Integer.parseInt((extension < 0 ? sizeLine : sizeLine.substring(0, extension)).trim(), 16);
+            if (size == 0) break;
+            readUtf8(reader, size, body);
+            reader.readLine();  // The line break after the data
+        }
+        // Trailer fields, if any, end with an empty line
+        String line;
+        while ((line = reader.readLine()) != null && !line.isEmpty()) {
+            // Not used
+        }
+    }
+
     public static void sendResponse(
         Socket socket,
         int statusCode,
-        HashMap<String, String> message,
+        Object message,
         int lamportTime
+    ) throws IOException {
+        sendResponse(socket, statusCode, message, lamportTime, Collections.emptyMap());
+    }
+
+    // Sends a response with extra headers, e.g. "Duplicate: true"
+    public static void sendResponse(
+        Socket socket,
+        int statusCode,
+        Object message,
+        int lamportTime,
+        Map<String, String> headers
     ) throws IOException {
         String statusText = "";
-        if (statusCode == 200) statusText = "OK";
+        if (statusCode == 101) statusText = "Switching Protocols";
+        else if (statusCode == 200) statusText = "OK";
         else if (statusCode == 201) statusText = "Created";
         else if (statusCode == 204) statusText = "No Content";
+        else if (statusCode == 304) statusText = "Not Modified";
         else if (statusCode == 400) statusText = "Bad Request";
+        else if (statusCode == 410) statusText = "Gone";
+        else if (statusCode == 429) statusText = "Too Many Requests";
         else if (statusCode == 500) statusText = "Internal Server Error";
 
-        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        // Flushed once at the end: a flush per line would send each line as its own packet
+        PrintWriter out = new PrintWriter(socket.getOutputStream());
         out.println("HTTP/1.1 " + statusCode + " " + statusText);
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            out.println(header.getKey() + ": " + header.getValue());
+        }
 
-        if (message != null) {
-            String jsonData = new Gson().toJson(message);
+        if (message instanceof Collection) {
+            // A list, e.g. every station or a history, is serialized one element at a time straight into
+            // chunks, so it is never held whole in memory and the first chunk leaves before the last
+            // element is written
+            out.println("Content-Type: application/json");
+            out.println("Transfer-Encoding: chunked");
+            out.println("Lamport-Time: " + lamportTime);
+            out.println();
+            out.flush();
+            ChunkedWriter body = new ChunkedWriter(socket.getOutputStream());
+            JsonWriter json = WeatherCodec.GSON.newJsonWriter(body);
+            try {
+                json.beginArray();
+                for (Object element : (Collection<?>) message) {
+                    if (element == null) json.nullValue();
+                    else WeatherCodec.GSON.toJson(element, element.getClass(), json);
+                }
+                json.endArray();
+            } catch (JsonIOException e) {
+                throw new IOException("Error streaming the response", e.getCause());
+            }
+            body.close();
+            return;
+        } else if (message != null) {
+            String jsonData = WeatherCodec.GSON.toJson(message);
 
             // Calculate Content-Length
             int contentLength = jsonData.getBytes(StandardCharsets.UTF_8).length;
@@ -64,32 +156,110 @@ public class RequestResponseHandler {
 
 
 
+    // Writes text as the chunks of a "Transfer-Encoding: chunked" body, each of up to CHUNK_CHARS characters
+    // and sent in one write. A chunk never ends in the middle of a character, so each decodes on its own.
+    // Closing it sends the last chunk and the empty one that ends the body, but not the socket.
+    private static class ChunkedWriter extends Writer {
+        private final OutputStream out;
+        private final StringBuilder pending = new StringBuilder();
+
+        private ChunkedWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            pending.append(cbuf, off, len);
+            while (pending.length() >= CHUNK_CHARS) writeChunk(CHUNK_CHARS, false);
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            pending.append(str, off, off + len);
+            while (pending.length() >= CHUNK_CHARS) writeChunk(CHUNK_CHARS, false);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (pending.length() > 0) writeChunk(pending.length(), false);
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            writeChunk(pending.length(), true);
+            out.flush();
+        }
+
+        private void writeChunk(int chars, boolean last) throws IOException {
+            // Keep a surrogate pair together in the next chunk
+            if (!last && chars > 1 && Character.isHighSurrogate(pending.charAt(chars - 1))) chars--;
+            byte[] data = pending.substring(0, chars).getBytes(StandardCharsets.UTF_8);
+            pending.delete(0, chars);
+            byte[] size = data.length > 0
+                    ? (Integer.toHexString(data.length) + "\r\n").getBytes(StandardCharsets.US_ASCII) : new byte[0];
+            byte[] end = (data.length > 0 ? "\r\n" : "").concat(last ? "0\r\n\r\n" : "").getBytes(StandardCharsets.US_ASCII);
+            byte[] chunk = Arrays.copyOf(size, size.length + data.length + end.length);
+            System.arraycopy(data, 0, chunk, size.length, data.length);
+            System.arraycopy(end, 0, chunk, size.length + data.length, end.length);
+            out.write(chunk);
+        }
+    }
+
+    // Asks the server to switch the connection to another protocol, e.g. BinaryProtocol.UPGRADE. The
+    // request is an empty PUT, which a server without the protocol answers with 204.
+    public static void sendUpgradeRequest(Socket socket, String protocol, int lamportTime) throws IOException {
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()));
+        writer.println("PUT /weather.json HTTP/1.1");
+        writer.println("Upgrade: " + protocol);
+        writer.println("Connection: Upgrade");
+        writer.println("Content-Length: 0");
+        writer.println("Lamport-Time: " + lamportTime);
+        writer.println();
+        writer.flush();
+    }
+
     public static void sendGetRequest(Socket socket, String stationId, int lamportTime) throws IOException {
+        if (stationId == null) sendQueryRequest(socket, "/weather.json", lamportTime);
+        else sendQueryRequest(socket, "/weather.json?id=" + stationId, lamportTime);
+    }
+
+    // Sends a GET request for any path, e.g. "/aggregate.json?state=SA"
+    public static void sendQueryRequest(Socket socket, String target, int lamportTime) throws IOException {
+        sendQueryRequest(socket, target, lamportTime, Collections.emptyMap());
+    }
+
+    // Sends a GET request with extra headers, e.g. "If-None-Match" with the ETag of a cached response
+    public static void sendQueryRequest(Socket socket, String target, int lamportTime, Map<String, String> headers)
+            throws IOException {
         OutputStream outputStream = socket.getOutputStream();
         PrintWriter writer = new PrintWriter(new OutputStreamWriter(outputStream));
-        if (stationId == null) writer.println("GET /weather.json HTTP/1.1");
-        else writer.println("GET /weather.json?id=" + stationId + " HTTP/1.1");
+        writer.println("GET " + target + " HTTP/1.1");
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            writer.println(header.getKey() + ": " + header.getValue());
+        }
         writer.println("Lamport-Time: " + lamportTime);
         writer.println();
         writer.flush();
     }
 
     public static void sendPutRequest(Socket socket, String jsonData, int lamportTime) throws IOException {
-        OutputStream outputStream = socket.getOutputStream();
-        PrintWriter writer = new PrintWriter(new OutputStreamWriter(outputStream));
-
         // Calculate Content-Length
         int contentLength = jsonData.getBytes(StandardCharsets.UTF_8).length;
 
-        // Construct the HTTP PUT request manually
-        writer.println("PUT /weather.json HTTP/1.1");
-        writer.println("User-Agent: ATOMClient/1/0");
-        writer.println("Content-Type: application/json");
-        writer.println("Content-Length: " + contentLength);
-        writer.println("Lamport-Time: " + lamportTime);
-        writer.println();
-        writer.println(jsonData);
-        writer.flush();
+        // Construct the HTTP PUT request manually. It is written in one call: written in pieces, the last
+        // piece waits for the server to acknowledge the first (Nagle), which can take 40 ms.
+        String separator = System.lineSeparator();
+        String request = "PUT /weather.json HTTP/1.1" + separator
+                + "User-Agent: ATOMClient/1/0" + separator
+                + "Content-Type: application/json" + separator
+                + "Content-Length: " + contentLength + separator
+                + "Lamport-Time: " + lamportTime + separator
+                + separator
+                + jsonData + separator;
+        OutputStream outputStream = socket.getOutputStream();
+        outputStream.write(request.getBytes(StandardCharsets.UTF_8));
+        outputStream.flush();
     }
 
     // Function to parse PUT request from a client
@@ -98,26 +268,68 @@ public class RequestResponseHandler {
         BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
         String line;
 
-        // Parse the request line
+        // Parse the request line. The event starts once it has arrived, so the time a kept-alive
+        // connection sits idle between requests is not counted.
         line = reader.readLine();
+        ServerEvents.Parse event = new ServerEvents.Parse();
+        event.begin();
+        String operation = null;
+        String path = null;
+        String query = null;
         if (line != null) {
             if (line.startsWith("PUT")) {
-                resultMap.put("operation", "PUT");
+                operation = "PUT";
             } else if (line.startsWith("GET")) {
-                resultMap.put("operation", "GET");
-                String path = line.split(" ")[1];
+                operation = "GET";
+                path = line.split(" ")[1];
                 if (path.contains("?")) {
-                    String param = path.split("\\?")[1];
-                    String id = param.split("=")[1];
-                    resultMap.put("id", id);
-                } else resultMap.put("id", null);
+                    String[] parts = path.split("\\?", 2);
+                    path = parts[0];
+                    query = parts[1];
+                }
             }
         }
 
+        // The request line is stored after the headers, so a header cannot change the operation or path
         readBody(reader, resultMap);
+        resultMap.remove("operation");
+        resultMap.remove("path");
+        if (operation != null) resultMap.put("operation", operation);
+        if (path != null) resultMap.put("path", path);
+        if (query != null) parseQuery(query, resultMap);
+        if (event.shouldCommit()) {
+            event.operation = resultMap.get("operation");
+            event.path = resultMap.get("path");
+            event.stationId = resultMap.get(QUERY_PREFIX + "id");
+            event.lamportTime = parseLamportTime(resultMap.get("Lamport-Time"));
+            event.bodyBytes = resultMap.get("body").length();
+            event.commit();
+        }
         return resultMap;
     }
 
+    // The Lamport time sent by the client, or -1 if it is missing or not a number
+    static int parseLamportTime(String value) {
+        if (value == null) return -1;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Query parameters such as "id" or "state" are stored under QUERY_PREFIX, e.g. "query.id", so they
+    // can neither be mistaken for nor replace a header or the request line
+    private static void parseQuery(String query, HashMap<String, String> resultMap) {
+        for (String param : query.split("&")) {
+            String[] pair = param.split("=", 2);
+            if (pair.length == 2) {
+                resultMap.put(QUERY_PREFIX + URLDecoder.decode(pair[0], StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair[1], StandardCharsets.UTF_8));
+            }
+        }
+    }
+
     // Function to parse the server's response
     public static HashMap<String, String> parseResponse(Socket socket) throws IOException {
         HashMap<String, String> resultMap = new HashMap<>();
@@ -0,0 +1,129 @@
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+// A bounded cache of the station GETs of a GETClient, keyed by station id. Each entry keeps the body,
+// ETag and Lamport-Time of the last 200 response for its station, the replica that sent it, and when it
+// was fetched or last revalidated. An entry younger than maxStaleness is served without asking the server;
+// an older one is revalidated with If-None-Match, which the server answers with a 304 and no body while
+// the station's latest reading is unchanged. Once there are capacity entries, the least recently used is
+// evicted. Each replica has its own Lamport clock, so Lamport times are only compared between answers of
+// the same replica: an older answer of the entry's replica never replaces it, so a late answer cannot roll
+// the cache back. Like RateLimiter it takes the time from the caller, in System.nanoTime() units.
+public class ResponseCache {
+    // Key of a response under which GETClient records the replica that sent it, as host:port
+    public static final String REPLICA = "Replica";
+
+    private static class Entry {
+        private final String body;
+        private final String etag;
+        private String replica;
+        private int lamportTime;
+        private long validatedAtNanos;
+
+        private Entry(String body, String etag, String replica, int lamportTime, long validatedAtNanos) {
+            this.body = body;
+            this.etag = etag;
+            this.replica = replica;
+            this.lamportTime = lamportTime;
+            this.validatedAtNanos = validatedAtNanos;
+        }
+
+        // The entry as a response of the server, as GETClient returns it
+        private HashMap<String, String> toResponse() {
+            HashMap<String, String> response = new HashMap<>();
+            response.put("Status-Code", "200");
+            response.put("ETag", etag);
+            response.put("Lamport-Time", String.valueOf(lamportTime));
+            if (replica != null) response.put(REPLICA, replica);
+            response.put("body", body);
+            return response;
+        }
+    }
+
+    private final long maxStalenessNanos;
+    private final LinkedHashMap<String, Entry> entries;
+    // Served from the cache, answered 304, and fetched whole
+    private long hits;
+    private long revalidations;
+    private long misses;
+
+    public ResponseCache(int capacity, long maxStalenessMillis) {
+        if (capacity < 1 || maxStalenessMillis < 0) {
+            throw new IllegalArgumentException("Capacity must be positive and staleness not negative");
+        }
+        this.maxStalenessNanos = maxStalenessMillis * 1_000_000L;
+        // In access order, so the eldest entry is the least recently used
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    // Method to answer a GET of stationId from the cache: its response if the entry is fresh at nowNanos,
+    // else null, and the caller asks the server, with If-None-Match: etag(stationId) if there is an entry
+    public synchronized HashMap<String, String> lookup(String stationId, long nowNanos) {
+        Entry entry = entries.get(stationId);
+        if (entry == null || nowNanos - entry.validatedAtNanos > maxStalenessNanos) return null;
+        hits++;
+        return entry.toResponse();
+    }
+
+    // The ETag of the cached entry of stationId, fresh or not, or null
+    public synchronized String etag(String stationId) {
+        Entry entry = entries.get(stationId);
+        return entry == null ? null : entry.etag;
+    }
+
+    // Method to take the server's response to a GET of stationId, received at nowNanos. Returns what the
+    // caller gets: the cached entry for a 304, and else the response itself. A 200 with an ETag is cached;
+    // a 204 means the station is gone, so its entry is dropped.
+    public synchronized HashMap<String, String> update(String stationId, HashMap<String, String> response,
+                                                       long nowNanos) {
+        int statusCode = Integer.parseInt(response.get("Status-Code"));
+        int lamportTime = RequestResponseHandler.parseLamportTime(response.get("Lamport-Time"));
+        String replica = response.get(REPLICA);
+        Entry entry = entries.get(stationId);
+        boolean sameReplica = entry != null && Objects.equals(replica, entry.replica);
+        if (statusCode == 304 && entry != null) {
+            // The ETag matched, so this replica holds the cached reading: the entry now follows its clock
+            revalidations++;
+            if (!sameReplica || lamportTime > entry.lamportTime) entry.lamportTime = lamportTime;
+            entry.replica = replica;
+            entry.validatedAtNanos = nowNanos;
+            return entry.toResponse();
+        }
+
+        misses++;
+        if (sameReplica && lamportTime < entry.lamportTime) {
+            // Answered before the cached response was, by the same replica: keep the newer one
+            return response;
+        }
+        if (statusCode == 200 && response.get("ETag") != null) {
+            entries.put(stationId, new Entry(response.get("body"), response.get("ETag"), replica, lamportTime,
+                    nowNanos));
+        } else if (statusCode == 204) {
+            entries.remove(stationId);
+        }
+        return response;
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long revalidations() {
+        return revalidations;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
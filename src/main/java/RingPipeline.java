@@ -0,0 +1,159 @@
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+// A ring of pre-allocated slots passed through a chain of stages, in the style of the LMAX Disruptor.
+// Producers claim a sequence number with one atomic increment, fill the slot and publish it. Each
+// stage is one thread that follows the stage before it: it handles every slot that stage has
+// finished, as one batch, then moves its own sequence forward. The last stage frees slots for reuse.
+// No locks are taken; a thread with nothing to do parks until the stage before it wakes it up.
+public class RingPipeline<T> {
+    // Handles the slots of a batch in sequence order; endOfBatch is set on the last one
+    public interface Stage<T> {
+        void handle(T slot, boolean endOfBatch);
+    }
+
+    // A waiting stage is woken by unpark, so the timeout only bounds a missed wake-up; a producer
+    // waiting for a free slot polls, as a full ring is rare
+    private static final long IDLE_PARK_NANOS = 100_000_000;
+    private static final long FULL_PARK_NANOS = 100_000;
+    private static final long STOP_TIMEOUT_MILLIS = 10_000;
+
+    private final Object[] slots;
+    private final int mask;
+    private final int laps;
+    // Last sequence claimed by a producer
+    private final AtomicLong claimed = new AtomicLong(-1);
+    // Lap of the sequence last published into each slot, so a slot filled out of order is not read early
+    private final AtomicIntegerArray published;
+    // Last sequence each stage has finished
+    private final AtomicLong[] finished;
+    private final String[] names;
+    private final List<Stage<T>> stages;
+    private final Thread[] threads;
+    private final ServerMetrics metrics;
+    // Time each sequence was published, for the latency of each stage
+    private final long[] publishNanos;
+    private volatile boolean running = true;
+
+    // size must be a power of two; names name the stages in the metrics, e.g. "pipeline.apply.events"
+    public RingPipeline(int size, Supplier<T> factory, List<String> names, List<Stage<T>> stages,
+                        ServerMetrics metrics) {
+        if (Integer.bitCount(size) != 1) throw new IllegalArgumentException("Ring size must be a power of two");
+        this.slots = new Object[size];
+        for (int i = 0; i < size; i++) slots[i] = factory.get();
+        this.mask = size - 1;
+        this.laps = Integer.numberOfTrailingZeros(size);
+        this.published = new AtomicIntegerArray(size);
+        for (int i = 0; i < size; i++) published.set(i, -1);
+        this.publishNanos = new long[size];
+        this.names = names.toArray(new String[0]);
+        this.stages = stages;
+        this.metrics = metrics;
+        this.finished = new AtomicLong[stages.size()];
+        this.threads = new Thread[stages.size()];
+        for (int i = 0; i < stages.size(); i++) finished[i] = new AtomicLong(-1);
+    }
+
+    // Method to start one thread per stage. They are created here, not in the constructor, so that no
+    // thread can see the pipeline before it is fully constructed.
+    public void start() {
+        for (int i = 0; i < threads.length; i++) {
+            int stage = i;
+            threads[i] = new Thread(() -> run(stage), "pipeline-" + names[i]);
+        }
+        for (Thread thread : threads) thread.start();
+    }
+
+    // Method to stop the stages once every published slot has gone through all of them, and wait for that
+    public void stop() {
+        running = false;
+        for (Thread thread : threads) {
+            if (thread == null) continue;
+            LockSupport.unpark(thread);
+            try {
+                thread.join(STOP_TIMEOUT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // Method for producers: wait for a free slot, fill it with writer and publish it
+    public void publish(Consumer<T> writer) {
+        long sequence = claimed.incrementAndGet();
+        // The slot is free once the last stage has finished the sequence one lap earlier
+        while (sequence - slots.length > finished[finished.length - 1].get()) {
+            LockSupport.parkNanos(FULL_PARK_NANOS);
+        }
+        int index = (int) sequence & mask;
+        @SuppressWarnings("unchecked")
+        T slot = (T) slots[index];
+        writer.accept(slot);
+        publishNanos[index] = System.nanoTime();
+        published.set(index, (int) (sequence >>> laps));
+        LockSupport.unpark(threads[0]);
+    }
+
+    // Last sequence the stage may handle: the last one published in order, or finished by the stage before
+    private long available(int stage, long next) {
+        if (stage > 0) return finished[stage - 1].get();
+        long sequence = next;
+        while (sequence <= claimed.get() && published.get((int) sequence & mask) == (int) (sequence >>> laps)) {
+            sequence++;
+        }
+        return sequence - 1;
+    }
+
+    private boolean drained(int stage, long next) {
+        if (stage == 0) return claimed.get() < next;
+        return !threads[stage - 1].isAlive() && finished[stage - 1].get() < next;
+    }
+
+    private void run(int stage) {
+        String prefix = "pipeline." + names[stage];
+        long next = 0;
+        while (true) {
+            long available = available(stage, next);
+            if (available < next) {
+                if (!running && drained(stage, next)) {
+                    if (stage + 1 < threads.length) LockSupport.unpark(threads[stage + 1]);
+                    break;
+                }
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                continue;
+            }
+
+            long start = System.nanoTime();
+            long maxLatency = 0;
+            long totalLatency = 0;
+            for (long sequence = next; sequence <= available; sequence++) {
+                int index = (int) sequence & mask;
+                @SuppressWarnings("unchecked")
+                T slot = (T) slots[index];
+                try {
+                    stages.get(stage).handle(slot, sequence == available);
+                } catch (RuntimeException e) {
+                    // A failed slot must not stop the stage, or every later slot would wait forever
+                    System.err.println("Error in pipeline stage " + names[stage] + ": " + e);
+                }
+                long latency = System.nanoTime() - publishNanos[index];
+                maxLatency = Math.max(maxLatency, latency);
+                totalLatency += latency;
+            }
+            finished[stage].set(available);
+            if (stage + 1 < threads.length) LockSupport.unpark(threads[stage + 1]);
+
+            metrics.add(prefix + ".events", available - next + 1);
+            metrics.increment(prefix + ".batches");
+            metrics.add(prefix + ".busy_micros", (System.nanoTime() - start) / 1000);
+            metrics.add(prefix + ".latency_micros", totalLatency / 1000);
+            metrics.max(prefix + ".latency_max_micros", maxLatency / 1000);
+            next = available + 1;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// Java Flight Recorder events for each stage a request goes through in the AggregationServer, so a
+// recording shows which stage a slow request spent its time in. Events carry the station id and the
+// Lamport time, which tie the stages of one request together. When no recording is running, begin()
+// and commit() do nothing, so the cost is an allocation per event. Record them with e.g.
+//   MAVEN_OPTS="-XX:StartFlightRecording=filename=server.jfr" mvn exec:java -Dexec.mainClass="AggregationServer"
+// and view them with "jfr print --categories AggregationServer server.jfr" or JDK Mission Control.
+public final class ServerEvents {
+    private ServerEvents() {
+    }
+
+    @Name("weather.Parse")
+    @Label("HTTP Parse")
+    @Description("Reading the headers and body of a request, from its request line on")
+    @Category({"AggregationServer", "Request"})
+    @StackTrace(false)
+    public static class Parse extends Event {
+        @Label("Operation")
+        public String operation;
+        @Label("Path")
+        public String path;
+        // Known here for a GET only; the id of a PUT is in its body, see Decode
+        @Label("Station Id")
+        public String stationId;
+        @Label("Client Lamport Time")
+        public int lamportTime;
+        @Label("Body Size")
+        @DataAmount
+        public long bodyBytes;
+    }
+
+    @Name("weather.Decode")
+    @Label("PUT Decode")
+    @Description("Validating and decoding the JSON body of a PUT, on the connection thread")
+    @Category({"AggregationServer", "Request"})
+    @StackTrace(false)
+    public static class Decode extends Event {
+        @Label("Station Id")
+        public String stationId;
+        @Label("Client Lamport Time")
+        public int lamportTime;
+        @Label("Valid")
+        public boolean valid;
+    }
+
+    @Name("weather.QueueWait")
+    @Label("Queue Wait")
+    @Description("Time between publishing a request to the pipeline and the sequence stage stamping it")
+    @Category({"AggregationServer", "Pipeline"})
+    @StackTrace(false)
+    public static class QueueWait extends Event {
+        @Label("Operation")
+        public String operation;
+        @Label("Station Id")
+        public String stationId;
+        @Label("Lamport Time")
+        public int lamportTime;
+    }
+
+    @Name("weather.Apply")
+    @Label("Apply")
+    @Description("Updating or reading weather data in the apply stage")
+    @Category({"AggregationServer", "Pipeline"})
+    @StackTrace(false)
+    public static class Apply extends Event {
+        @Label("Operation")
+        public String operation;
+        @Label("Station Id")
+        public String stationId;
+        @Label("Lamport Time")
+        public int lamportTime;
+        @Label("Status Code")
+        public int statusCode;
+    }
+
+    @Name("weather.Persist")
+    @Label("Persist")
+    @Description("Saving the stations changed by a batch of requests to storage")
+    @Category({"AggregationServer", "Pipeline"})
+    @StackTrace(false)
+    public static class Persist extends Event {
+        // The first station of the batch; stations tells how many there were
+        @Label("Station Id")
+        public String stationId;
+        @Label("Stations")
+        public int stations;
+        // Lamport time of the last request of the batch
+        @Label("Lamport Time")
+        public int lamportTime;
+        @Label("Bytes Written")
+        @DataAmount
+        public long bytes;
+    }
+
+    @Name("weather.Respond")
+    @Label("Respond")
+    @Description("Sending the response of a request in the respond stage")
+    @Category({"AggregationServer", "Pipeline"})
+    @StackTrace(false)
+    public static class Respond extends Event {
+        @Label("Operation")
+        public String operation;
+        @Label("Station Id")
+        public String stationId;
+        @Label("Lamport Time")
+        public int lamportTime;
+        @Label("Status Code")
+        public int statusCode;
+    }
+
+    @Name("weather.Cleanup")
+    @Label("Cleanup Sweep")
+    @Description("One sweep of the cleanup task that removes expired stations")
+    @Category({"AggregationServer", "Cleanup"})
+    @StackTrace(false)
+    public static class Cleanup extends Event {
+        @Label("Stations Held")
+        public int stations;
+        @Label("Stations Removed")
+        public int removed;
+        @Label("Lamport Time")
+        public int lamportTime;
+    }
+}
@@ -0,0 +1,44 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Named counters and gauges of the AggregationServer, served by GET /metrics.json
+public class ServerMetrics {
+    private final Map<String, AtomicLong> values = new ConcurrentHashMap<>();
+
+    private AtomicLong get(String name) {
+        return values.computeIfAbsent(name, key -> new AtomicLong());
+    }
+
+    public void increment(String name) {
+        get(name).incrementAndGet();
+    }
+
+    public void add(String name, long delta) {
+        get(name).addAndGet(delta);
+    }
+
+    public void set(String name, long value) {
+        get(name).set(value);
+    }
+
+    // Keep the largest value seen, e.g. for a maximum latency
+    public void max(String name, long value) {
+        get(name).accumulateAndGet(value, Math::max);
+    }
+
+    public long value(String name) {
+        AtomicLong value = values.get(name);
+        return value == null ? 0 : value.get();
+    }
+
+    // Method to copy every metric, sorted by name
+    public Map<String, Long> snapshot() {
+        Map<String, Long> snapshot = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : values.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().get());
+        }
+        return snapshot;
+    }
+}
@@ -0,0 +1,154 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Grid index over the lat/lon of each station's latest reading. The globe is cut into square cells
+// of CELL_DEGREES; nearest-station queries search rings of cells outwards from the query point,
+// and bounding-box queries only visit the cells that overlap the box.
+public class SpatialIndex {
+    private static final double CELL_DEGREES = 1.0;
+    private static final int ROWS = (int) Math.ceil(180 / CELL_DEGREES);
+    private static final int COLUMNS = (int) Math.ceil(360 / CELL_DEGREES);
+    private static final double EARTH_RADIUS_KM = 6371.0;
+    private static final double KM_PER_DEGREE = Math.PI * EARTH_RADIUS_KM / 180;
+
+    // cell -> station ids located in it
+    private final Map<Integer, Set<String>> cells = new HashMap<>();
+    // station id -> { lat, lon } of its latest reading
+    private final Map<String, double[]> positions = new HashMap<>();
+
+    // Method to place a station at the position of its latest reading
+    public synchronized void update(String stationId, WeatherEntry latest) {
+        double[] position = parsePosition(latest.get("lat"), latest.get("lon"));
+        double[] previous = positions.get(stationId);
+        if (previous != null && position != null && cellOf(previous) == cellOf(position)) {
+            positions.put(stationId, position);
+            return;
+        }
+
+        remove(stationId);
+        if (position == null) return;  // Stations without a valid position are not indexed
+        positions.put(stationId, position);
+        cells.computeIfAbsent(cellOf(position), cell -> new HashSet<>()).add(stationId);
+    }
+
+    public synchronized void remove(String stationId) {
+        double[] position = positions.remove(stationId);
+        if (position == null) return;
+        Set<String> ids = cells.get(cellOf(position));
+        if (ids == null) return;
+        ids.remove(stationId);
+        if (ids.isEmpty()) cells.remove(cellOf(position));
+    }
+
+    public synchronized void rebuild(Map<String, Deque<WeatherEntry>> weatherData) {
+        cells.clear();
+        positions.clear();
+        for (Map.Entry<String, Deque<WeatherEntry>> entry : weatherData.entrySet()) {
+            WeatherEntry latest = entry.getValue().peekLast();
+            if (latest != null) update(entry.getKey(), latest);
+        }
+    }
+
+    // Method to find the k stations closest to (lat, lon), nearest first
+    public synchronized List<String> nearest(double lat, double lon, int k) {
+        List<String> candidates = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        int row = rowOf(lat);
+        int column = columnOf(lon);
+
+        for (int ring = 0; ring <= Math.max(ROWS, COLUMNS); ring++) {
+            for (int r = row - ring; r <= row + ring; r++) {
+                if (r < 0 || r >= ROWS) continue;
+                // Only the border of the ring is new: full top and bottom rows, two cells otherwise
+                int step = (Math.abs(r - row) == ring || ring == 0) ? 1 : 2 * ring;
+                for (int c = column - ring; c <= column + ring; c += step) {
+                    Set<String> ids = cells.get(r * COLUMNS + Math.floorMod(c, COLUMNS));
+                    if (ids == null) continue;
+                    for (String id : ids) {
+                        if (seen.add(id)) candidates.add(id);
+                    }
+                }
+            }
+
+            if (seen.size() == positions.size()) break;
+            if (candidates.size() >= k) {
+                // Every unvisited cell is at least 'ring' cells away from the query point
+                sortByDistance(candidates, lat, lon);
+                double kthDistance = distanceKm(lat, lon, positions.get(candidates.get(k - 1)));
+                double farthestLat = Math.min(89.0, Math.abs(lat) + (ring + 1) * CELL_DEGREES);
+                double unvisited = ring * CELL_DEGREES * KM_PER_DEGREE * Math.cos(Math.toRadians(farthestLat));
+                if (kthDistance <= unvisited) break;
+            }
+        }
+
+        sortByDistance(candidates, lat, lon);
+        return new ArrayList<>(candidates.subList(0, Math.min(k, candidates.size())));
+    }
+
+    // Method to find every station inside the box; minLon > maxLon means the box crosses 180 degrees
+    public synchronized List<String> withinBox(double minLat, double minLon, double maxLat, double maxLon) {
+        List<String> result = new ArrayList<>();
+        int columnSpan = minLon <= maxLon
+                ? Math.min(COLUMNS - 1, (int) Math.floor((maxLon + 180) / CELL_DEGREES) - columnOf(minLon))
+                : Math.floorMod(columnOf(maxLon) - columnOf(minLon), COLUMNS);
+        for (int r = rowOf(minLat); r <= rowOf(maxLat); r++) {
+            for (int i = 0; i <= columnSpan; i++) {
+                Set<String> ids = cells.get(r * COLUMNS + Math.floorMod(columnOf(minLon) + i, COLUMNS));
+                if (ids == null) continue;
+                for (String id : ids) {
+                    double[] position = positions.get(id);
+                    boolean inLon = minLon <= maxLon
+                            ? position[1] >= minLon && position[1] <= maxLon
+                            : position[1] >= minLon || position[1] <= maxLon;
+                    if (position[0] >= minLat && position[0] <= maxLat && inLon) result.add(id);
+                }
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    private void sortByDistance(List<String> ids, double lat, double lon) {
+        ids.sort(Comparator.comparingDouble(id -> distanceKm(lat, lon, positions.get(id))));
+    }
+
+    private static int cellOf(double[] position) {
+        return rowOf(position[0]) * COLUMNS + columnOf(position[1]);
+    }
+
+    private static int rowOf(double lat) {
+        return Math.min(ROWS - 1, Math.max(0, (int) Math.floor((lat + 90) / CELL_DEGREES)));
+    }
+
+    private static int columnOf(double lon) {
+        return Math.floorMod((int) Math.floor((lon + 180) / CELL_DEGREES), COLUMNS);
+    }
+
+    // Great-circle distance using the haversine formula
+    public static double distanceKm(double lat, double lon, double[] position) {
+        double dLat = Math.toRadians(position[0] - lat);
+        double dLon = Math.toRadians(position[1] - lon);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat)) * Math.cos(Math.toRadians(position[0]))
+                * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1.0, Math.sqrt(a)));
+    }
+
+    private static double[] parsePosition(String lat, String lon) {
+        if (lat == null || lon == null) return null;
+        try {
+            double[] position = { Double.parseDouble(lat.trim()), Double.parseDouble(lon.trim()) };
+            if (Math.abs(position[0]) > 90 || Math.abs(position[1]) > 180) return null;
+            return position;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A memory budget over the stations held by the AggregationServer: at most maxStations stations and
+// an estimated maxBytes of heap. Which station to evict is chosen by CLOCK, an approximation of LRU:
+// stations sit on a ring of slots with a referenced bit that every PUT or GET sets. The hand sweeps
+// the ring, clearing set bits, and evicts the first station whose bit is already clear, i.e. one
+// not used since the hand last passed it. Each use costs O(1) and takes no lock of its own; the
+// server only calls it while holding the write lock on weatherData.
+public class StationBudget {
+    public static final int DEFAULT_MAX_STATIONS = 100_000;
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+    // Heap held by a station besides its entries: its map entries, deque, index entries and body hash
+    static final long STATION_OVERHEAD_BYTES = 256;
+
+    private final int maxStations;
+    private final long maxBytes;
+    // Station id -> slot on the ring
+    private final Map<String, Integer> slots = new HashMap<>();
+    private final List<String> ids = new ArrayList<>();
+    private long[] bytes = new long[64];
+    private final BitSet referenced = new BitSet();
+    // Slots of removed stations, reused before the ring grows
+    private final Deque<Integer> freeSlots = new ArrayDeque<>();
+    private int hand = -1;
+    private long totalBytes;
+
+    public StationBudget(int maxStations, long maxBytes) {
+        this.maxStations = maxStations;
+        this.maxBytes = maxBytes;
+    }
+
+    // Method to count delta more bytes for a station, e.g. an entry added (> 0) or pushed out (< 0),
+    // and mark it used. A station not seen before is added to the ring.
+    public void add(String stationId, long delta) {
+        Integer slot = slots.get(stationId);
+        if (slot == null) {
+            slot = freeSlots.isEmpty() ? ids.size() : freeSlots.pop();
+            if (slot == ids.size()) ids.add(stationId);
+            else ids.set(slot, stationId);
+            if (slot >= bytes.length) bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            slots.put(stationId, slot);
+            bytes[slot] = STATION_OVERHEAD_BYTES + 2L * stationId.length();
+            totalBytes += bytes[slot];
+        }
+        bytes[slot] += delta;
+        totalBytes += delta;
+        referenced.set(slot);
+    }
+
+    // Method to mark a station used, e.g. by a GET; unknown stations are ignored
+    public void touch(String stationId) {
+        Integer slot = slots.get(stationId);
+        if (slot != null) referenced.set(slot);
+    }
+
+    // Method to forget a station that was expired or evicted
+    public void remove(String stationId) {
+        Integer slot = slots.remove(stationId);
+        if (slot == null) return;
+        totalBytes -= bytes[slot];
+        bytes[slot] = 0;
+        ids.set(slot, null);
+        referenced.clear(slot);
+        freeSlots.push(slot);
+    }
+
+    public boolean isOverBudget() {
+        return slots.size() > maxStations || totalBytes > maxBytes;
+    }
+
+    // Method to pick the next station to evict, never keep (the station being written); null if there
+    // is none. The station is not removed; the caller evicts it and then calls remove.
+    public String nextVictim(String keep) {
+        int candidates = slots.size() - (keep != null && slots.containsKey(keep) ? 1 : 0);
+        if (candidates == 0) return null;
+        // Terminates within two sweeps: the first clears the bit of every candidate it passes
+        while (true) {
+            hand = hand + 1 < ids.size() ? hand + 1 : 0;
+            String stationId = ids.get(hand);
+            if (stationId == null || stationId.equals(keep)) continue;
+            if (referenced.get(hand)) {
+                referenced.clear(hand);
+                continue;
+            }
+            return stationId;
+        }
+    }
+
+    public int stations() {
+        return slots.size();
+    }
+
+    public long bytes() {
+        return totalBytes;
+    }
+
+    // Method to count every station of recovered data, e.g. after a restart
+    public void rebuild(Map<String, ? extends Iterable<WeatherEntry>> weatherData) {
+        slots.clear();
+        ids.clear();
+        freeSlots.clear();
+        referenced.clear();
+        Arrays.fill(bytes, 0);
+        hand = -1;
+        totalBytes = 0;
+        for (Map.Entry<String, ? extends Iterable<WeatherEntry>> station : weatherData.entrySet()) {
+            if (station.getKey() == null) continue;
+            for (WeatherEntry entry : station.getValue()) add(station.getKey(), entry.estimatedBytes());
+        }
+    }
+}
@@ -0,0 +1,93 @@
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+// Secondary indexes over fields of each station's latest reading, e.g. state -> station ids,
+// so filtered GETs cost O(result) instead of a scan over every station.
+public class StationIndex {
+    public static final String[] FIELDS = { "state", "time_zone", "name" };
+
+    // field -> value -> station ids whose latest reading has that value
+    private final Map<String, Map<String, Set<String>>> index = new HashMap<>();
+    // station id -> the indexed values of its latest reading, in FIELDS order
+    private final Map<String, String[]> current = new HashMap<>();
+
+    public StationIndex() {
+        for (String field : FIELDS) index.put(field, new HashMap<>());
+    }
+
+    public static boolean isIndexed(String field) {
+        for (String indexed : FIELDS) {
+            if (indexed.equals(field)) return true;
+        }
+        return false;
+    }
+
+    // Method to index the latest reading of a station, moving it if an indexed value changed
+    public synchronized void update(String stationId, WeatherEntry latest) {
+        String[] previous = current.get(stationId);
+        String[] values = new String[FIELDS.length];
+        for (int i = 0; i < FIELDS.length; i++) {
+            values[i] = latest.get(FIELDS[i]);
+            String before = previous == null ? null : previous[i];
+            if (values[i] != null && values[i].equals(before)) continue;
+
+            unlink(FIELDS[i], before, stationId);
+            if (values[i] != null) {
+                index.get(FIELDS[i]).computeIfAbsent(values[i], value -> new HashSet<>()).add(stationId);
+            }
+        }
+        current.put(stationId, values);
+    }
+
+    // Method to remove a station from every index, e.g. when it expires
+    public synchronized void remove(String stationId) {
+        String[] values = current.remove(stationId);
+        if (values == null) return;
+        for (int i = 0; i < FIELDS.length; i++) unlink(FIELDS[i], values[i], stationId);
+    }
+
+    public synchronized void rebuild(Map<String, Deque<WeatherEntry>> weatherData) {
+        current.clear();
+        for (Map<String, Set<String>> values : index.values()) values.clear();
+        for (Map.Entry<String, Deque<WeatherEntry>> entry : weatherData.entrySet()) {
+            WeatherEntry latest = entry.getValue().peekLast();
+            if (latest != null) update(entry.getKey(), latest);
+        }
+    }
+
+    // Method to find the stations matching every given field=value pair
+    public synchronized Set<String> lookup(Map<String, String> filters) {
+        // Start from the smallest posting set and check the others per candidate
+        Set<String> smallest = null;
+        for (Map.Entry<String, String> filter : filters.entrySet()) {
+            Set<String> ids = index.get(filter.getKey()).getOrDefault(filter.getValue(), Collections.emptySet());
+            if (smallest == null || ids.size() < smallest.size()) smallest = ids;
+        }
+        if (smallest == null) return Collections.emptySet();
+
+        Set<String> result = new HashSet<>();
+        for (String stationId : smallest) {
+            String[] values = current.get(stationId);
+            boolean matches = true;
+            for (int i = 0; i < FIELDS.length && matches; i++) {
+                String wanted = filters.get(FIELDS[i]);
+                if (wanted != null && !wanted.equals(values[i])) matches = false;
+            }
+            if (matches) result.add(stationId);
+        }
+        return result;
+    }
+
+    private void unlink(String field, String value, String stationId) {
+        if (value == null) return;
+        Map<String, Set<String>> values = index.get(field);
+        Set<String> ids = values.get(value);
+        if (ids == null) return;
+        ids.remove(stationId);
+        if (ids.isEmpty()) values.remove(value);
+    }
+}
@@ -1,20 +1,27 @@
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
 import java.io.IOException;
-import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.Collection;
 import java.util.Deque;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.Map;
 
 public class StorageFile {
     public final Path filePath;
+    // Duration and size of the last recovery, reported as server metrics
+    public long lastRecoveryMillis;
+    public long lastRecoveredStations;
+    public long lastRecoveredEntries;
+    // Bytes written by saves so far, reported in the persist events of the server
+    public long bytesWritten;
 
     public StorageFile(String dirStr, String fileStr) throws IOException {
         Path dirPath = Paths.get(dirStr);
@@ -25,13 +32,72 @@ public class StorageFile {
     }
 
     public Map<String, Deque<WeatherEntry>> recoverDataFromFile() throws IOException {
+        long start = System.nanoTime();
         recoverIfNeeded();
+        Map<String, Deque<WeatherEntry>> weatherData = new HashMap<>();
         if (Files.exists(filePath)) {
-            String content = new String(Files.readAllBytes(filePath));
-            // Use a JSON parser to convert the content back into the map
-            return parseJsonToWeatherData(content);
+            // Stream the file instead of loading it into one String, so the heap only holds the result
+            try (JsonReader reader = new JsonReader(Files.newBufferedReader(filePath, StandardCharsets.UTF_8))) {
+                readWeatherData(reader, weatherData);
+            }
+        }
+
+        lastRecoveryMillis = (System.nanoTime() - start) / 1_000_000;
+        lastRecoveredStations = weatherData.size();
+        lastRecoveredEntries = 0;
+        for (Deque<WeatherEntry> updates : weatherData.values()) lastRecoveredEntries += updates.size();
+        System.out.println("Recovered " + lastRecoveredEntries + " entries of " + lastRecoveredStations
+                + " stations in " + lastRecoveryMillis + " ms");
+        return weatherData;
+    }
+
+    // Method to rebuild the stations one at a time from {"<id>": [{"timestamp": .., "body": {..}}, ..], ..}
+    static void readWeatherData(JsonReader reader, Map<String, Deque<WeatherEntry>> weatherData)
+            throws IOException {
+        if (reader.peek() == JsonToken.END_DOCUMENT) return;  // An empty file holds no stations
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String stationId = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+
+            Deque<WeatherEntry> updates = new LinkedList<>();
+            reader.beginArray();
+            while (reader.hasNext()) updates.offerLast(readEntry(reader));
+            reader.endArray();
+            weatherData.put(stationId, updates);
+        }
+        reader.endObject();
+    }
+
+    private static WeatherEntry readEntry(JsonReader reader) throws IOException {
+        String timestamp = null;
+        HashMap<String, String> body = new HashMap<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("timestamp".equals(name) && reader.peek() == JsonToken.STRING) {
+                timestamp = reader.nextString();
+            } else if ("body".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String key = reader.nextName();
+                    if (reader.peek() == JsonToken.NULL) {
+                        reader.nextNull();
+                        body.put(key, null);
+                    } else {
+                        body.put(key, reader.nextString());
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
         }
-        return new HashMap<>();
+        reader.endObject();
+        return new WeatherEntry(body, timestamp);
     }
 
     // Method to recover from failures
@@ -72,8 +138,10 @@ public class StorageFile {
         // Use atomic write to save to file
         Path tempFile = filePath.resolveSibling("temp_" + filePath.getFileName().toString() + ".tmp");
         try {
-            Files.write(tempFile, json.getBytes());
+            byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+            Files.write(tempFile, bytes);
             Files.move(tempFile, filePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            bytesWritten += bytes.length;
         } catch (IOException e) {
             System.err.println("Error when saving weather data to file: " + e.getMessage());
         } finally {
@@ -83,25 +151,32 @@ public class StorageFile {
         }
     }
 
-    // Method to convert the weather data to JSON (use any JSON library)
-    public static String convertWeatherDataToJson(Map<String, Deque<WeatherEntry>> weatherData) {
-        Gson gson = new GsonBuilder().setPrettyPrinting().create(); // For pretty-printed JSON
+    // Method to persist one station after a PUT; a JSON file can only be written as a whole
+    public void saveStation(String stationId, Map<String, Deque<WeatherEntry>> weatherData) throws IOException {
+        saveDataToFile(weatherData);
+    }
 
-        // Define the type of your weatherData (Map<String, Deque<WeatherEntry>>)
-        Type type = new TypeToken<Map<String, Deque<WeatherEntry>>>() {}.getType();
+    // Method to persist the stations changed by a batch of PUTs; the whole file is written once for the batch
+    public void saveStations(Collection<String> stationIds, Map<String, Deque<WeatherEntry>> weatherData)
+            throws IOException {
+        saveDataToFile(weatherData);
+    }
 
-        // Convert the weatherData map to a JSON string
-        return gson.toJson(weatherData, type);
+    // Method to persist the removal of expired stations
+    public void removeStations(Collection<String> stationIds, Map<String, Deque<WeatherEntry>> weatherData)
+            throws IOException {
+        saveDataToFile(weatherData);
+    }
+
+    // Method to convert the weather data to JSON (use any JSON library)
+    public static String convertWeatherDataToJson(Map<String, Deque<WeatherEntry>> weatherData) {
+        // Convert the weatherData map to a pretty-printed JSON string
+        return WeatherCodec.PRETTY_GSON.toJson(weatherData, WeatherCodec.WEATHER_DATA_TYPE);
     }
 
     // Function to parse JSON content to Map<String, Deque<WeatherEntry>>
     public static Map<String, Deque<WeatherEntry>> parseJsonToWeatherData(String jsonContent) {
-        Gson gson = new Gson();
-
-        // Define the type of the map: Map<String, Deque<WeatherEntry>>
-        Type type = new TypeToken<Map<String, Deque<WeatherEntry>>>() {}.getType();
-
-        // Parse the JSON string to the specified type
-        return gson.fromJson(jsonContent, type);
+        // Parse the JSON string to Map<String, Deque<WeatherEntry>>
+        return WeatherCodec.GSON.fromJson(jsonContent, WeatherCodec.WEATHER_DATA_TYPE);
     }
 }
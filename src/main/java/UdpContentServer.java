@@ -0,0 +1,55 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+// A content server for telemetry stations that send readings fire-and-forget: each send is one
+// BinaryProtocol frame in one UDP datagram, with no connection and no answer. The Lamport clock moves
+// forward on every send, so the server can drop datagrams that arrive late or twice.
+public class UdpContentServer implements Closeable {
+    private final InetSocketAddress server;
+    private final DatagramChannel channel;
+    public LamportClock clock;
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.out.println("Usage: java UdpContentServer <server:udp-port> <file-path>");
+            return;
+        }
+
+        try (UdpContentServer contentServer = new UdpContentServer(args[0])) {
+            Map<String, String> dataMap = ContentServer.parseFile(args[1]);
+            contentServer.send(Collections.singletonList(dataMap));
+        } catch (Exception e) {
+            System.out.println("Error: Unable to send to the server. Please check the server details." + e.getMessage());
+        }
+    }
+
+    public UdpContentServer(String serverDetails) throws IOException {
+        String[] serverParts = serverDetails.split(":");
+        this.server = new InetSocketAddress(serverParts[0], Integer.parseInt(serverParts[1]));
+        this.channel = DatagramChannel.open();
+        this.clock = new LamportClock();
+    }
+
+    // Method to send readings, each with an "id", in one datagram. Returns its size; readings that do
+    // not fit in one datagram are refused, as the network would not deliver them in one piece.
+    public int send(List<? extends Map<String, String>> readings) throws IOException {
+        clock.increaseTime();
+        byte[] frame = BinaryProtocol.encodeBatch(clock.getTime(), readings);
+        if (frame.length > AggregationServer.MAX_DATAGRAM_BYTES) {
+            throw new IllegalArgumentException("Readings take " + frame.length + " bytes, more than one datagram");
+        }
+        channel.send(ByteBuffer.wrap(frame), server);
+        return frame.length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,31 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+// Unsigned LEB128 varints, as written by WeatherArchive, BinaryStorageFile and BinaryProtocol: 7 bits
+// per byte, low bits first, with the high bit set on every byte but the last. A negative value still
+// round-trips, in 10 bytes.
+public class Varint {
+    private Varint() {
+    }
+
+    public static void write(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    // Method to read a varint at the position of in; a varint longer than 10 bytes is not one of ours,
+    // and is rejected like a truncated one, with a BufferUnderflowException
+    public static long read(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new BufferUnderflowException();
+    }
+}
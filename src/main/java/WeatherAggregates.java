@@ -0,0 +1,237 @@
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Rolling min/max/avg of the numeric readings, kept per station (over its last MAX_UPDATES entries)
+// and per "state" (over the windows of all stations in that state). Updated as entries are added
+// and evicted, so a summary never has to walk the stored history.
+public class WeatherAggregates {
+    public static final String[] FIELDS = { "air_temp", "wind_spd_kmh", "press" };
+
+    // The numeric values one entry contributed, remembered so it can be evicted exactly
+    private static class Sample {
+        private final String state;
+        private final double[] values;
+
+        private Sample(String state, double[] values) {
+            this.state = state;
+            this.values = values;
+        }
+    }
+
+    // Running sum with Neumaier's compensation. Values are added and removed for as long as the server
+    // runs, so a plain double sum would drift away from the sum of the values in the window; here the
+    // rounding error of each step is carried separately, and the sum restarts at zero when it is empty.
+    private static class RunningSum {
+        private double sum;
+        private double compensation;
+
+        private void add(double value) {
+            double total = sum + value;
+            if (Math.abs(sum) >= Math.abs(value)) {
+                compensation += (sum - total) + value;
+            } else {
+                compensation += (value - total) + sum;
+            }
+            sum = total;
+        }
+
+        private void reset() {
+            sum = 0;
+            compensation = 0;
+        }
+
+        private double value() {
+            return sum + compensation;
+        }
+
+        private static RunningSum[] newSums() {
+            RunningSum[] sums = new RunningSum[FIELDS.length];
+            for (int i = 0; i < FIELDS.length; i++) sums[i] = new RunningSum();
+            return sums;
+        }
+    }
+
+    // Sliding window over a station's entries. Entries leave in arrival order, so min and max are
+    // kept in monotonic deques and every update is amortized O(1).
+    private static class StationWindow {
+        private final Deque<Sample> samples = new ArrayDeque<>();
+        private final RunningSum[] sums = RunningSum.newSums();
+        private final int[] counts = new int[FIELDS.length];
+        private final ArrayDeque<Double>[] minimums = newDeques();
+        private final ArrayDeque<Double>[] maximums = newDeques();
+
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        private static ArrayDeque<Double>[] newDeques() {
+            ArrayDeque<Double>[] deques = new ArrayDeque[FIELDS.length];
+            for (int i = 0; i < FIELDS.length; i++) deques[i] = new ArrayDeque<>();
+            return deques;
+        }
+
+        private void add(Sample sample) {
+            samples.offerLast(sample);
+            for (int i = 0; i < FIELDS.length; i++) {
+                double value = sample.values[i];
+                if (Double.isNaN(value)) continue;
+                sums[i].add(value);
+                counts[i]++;
+                while (!minimums[i].isEmpty() && minimums[i].peekLast() > value) minimums[i].pollLast();
+                minimums[i].offerLast(value);
+                while (!maximums[i].isEmpty() && maximums[i].peekLast() < value) maximums[i].pollLast();
+                maximums[i].offerLast(value);
+            }
+        }
+
+        private Sample evictOldest() {
+            Sample sample = samples.pollFirst();
+            if (sample == null) return null;
+            for (int i = 0; i < FIELDS.length; i++) {
+                double value = sample.values[i];
+                if (Double.isNaN(value)) continue;
+                counts[i]--;
+                if (counts[i] == 0) {
+                    sums[i].reset();
+                } else {
+                    sums[i].add(-value);
+                }
+                if (!minimums[i].isEmpty() && minimums[i].peekFirst() == value) minimums[i].pollFirst();
+                if (!maximums[i].isEmpty() && maximums[i].peekFirst() == value) maximums[i].pollFirst();
+            }
+            return sample;
+        }
+    }
+
+    // Aggregate over any subset of entries. Removals are not in arrival order here, so min and max
+    // come from a sorted multiset: O(1) for sum and count, O(log n) for min and max.
+    private static class StateWindow {
+        private final RunningSum[] sums = RunningSum.newSums();
+        private final int[] counts = new int[FIELDS.length];
+        private final TreeMap<Double, Integer>[] values = newMultisets();
+        private int entries;
+
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        private static TreeMap<Double, Integer>[] newMultisets() {
+            TreeMap<Double, Integer>[] multisets = new TreeMap[FIELDS.length];
+            for (int i = 0; i < FIELDS.length; i++) multisets[i] = new TreeMap<>();
+            return multisets;
+        }
+
+        private void add(Sample sample) {
+            entries++;
+            for (int i = 0; i < FIELDS.length; i++) {
+                double value = sample.values[i];
+                if (Double.isNaN(value)) continue;
+                sums[i].add(value);
+                counts[i]++;
+                values[i].merge(value, 1, Integer::sum);
+            }
+        }
+
+        private void remove(Sample sample) {
+            entries--;
+            for (int i = 0; i < FIELDS.length; i++) {
+                double value = sample.values[i];
+                if (Double.isNaN(value)) continue;
+                counts[i]--;
+                if (counts[i] == 0) {
+                    sums[i].reset();
+                } else {
+                    sums[i].add(-value);
+                }
+                values[i].computeIfPresent(value, (key, count) -> count == 1 ? null : count - 1);
+            }
+        }
+    }
+
+    private final Map<String, StationWindow> stations = new HashMap<>();
+    private final Map<String, StateWindow> states = new HashMap<>();
+
+    // Method to account for a new entry at the end of a station's history
+    public synchronized void add(WeatherEntry entry) {
+        String stationId = entry.get("id");
+        Sample sample = toSample(entry);
+        stations.computeIfAbsent(stationId, id -> new StationWindow()).add(sample);
+        if (sample.state != null) {
+            states.computeIfAbsent(sample.state, state -> new StateWindow()).add(sample);
+        }
+    }
+
+    // Method to account for the oldest entry of a station leaving the MAX_UPDATES window
+    public synchronized void evictOldest(String stationId) {
+        StationWindow window = stations.get(stationId);
+        if (window == null) return;
+        removeFromState(window.evictOldest());
+    }
+
+    // Method to forget a station entirely, e.g. when it expires
+    public synchronized void removeStation(String stationId) {
+        StationWindow window = stations.remove(stationId);
+        if (window == null) return;
+        for (Sample sample : window.samples) removeFromState(sample);
+    }
+
+    // Method to recompute everything from the stored history, e.g. after recovery from file
+    public synchronized void rebuild(Map<String, Deque<WeatherEntry>> weatherData) {
+        stations.clear();
+        states.clear();
+        for (Deque<WeatherEntry> updates : weatherData.values()) {
+            for (WeatherEntry entry : updates) add(entry);
+        }
+    }
+
+    public synchronized HashMap<String, String> stationSummary(String stationId) {
+        StationWindow window = stations.get(stationId);
+        if (window == null || window.samples.isEmpty()) return null;
+
+        HashMap<String, String> summary = new HashMap<>();
+        summary.put("id", stationId);
+        summary.put("entries", String.valueOf(window.samples.size()));
+        for (int i = 0; i < FIELDS.length; i++) {
+            if (window.counts[i] == 0) continue;
+            putField(summary, FIELDS[i], window.counts[i], window.sums[i].value(),
+                    window.minimums[i].peekFirst(), window.maximums[i].peekFirst());
+        }
+        return summary;
+    }
+
+    public synchronized HashMap<String, String> stateSummary(String state) {
+        StateWindow window = states.get(state);
+        if (window == null || window.entries == 0) return null;
+
+        HashMap<String, String> summary = new HashMap<>();
+        summary.put("state", state);
+        summary.put("entries", String.valueOf(window.entries));
+        for (int i = 0; i < FIELDS.length; i++) {
+            if (window.counts[i] == 0) continue;
+            putField(summary, FIELDS[i], window.counts[i], window.sums[i].value(),
+                    window.values[i].firstKey(), window.values[i].lastKey());
+        }
+        return summary;
+    }
+
+    private void removeFromState(Sample sample) {
+        if (sample == null || sample.state == null) return;
+        StateWindow window = states.get(sample.state);
+        if (window == null) return;
+        window.remove(sample);
+        if (window.entries == 0) states.remove(sample.state);
+    }
+
+    private static void putField(HashMap<String, String> summary, String field, int count,
+                                 double sum, double min, double max) {
+        summary.put(field + "_count", String.valueOf(count));
+        summary.put(field + "_min", String.valueOf(min));
+        summary.put(field + "_max", String.valueOf(max));
+        summary.put(field + "_avg", String.valueOf(sum / count));
+    }
+
+    private static Sample toSample(WeatherEntry entry) {
+        double[] values = new double[FIELDS.length];
+        for (int i = 0; i < FIELDS.length; i++) {
+            values[i] = entry.getNumber(FIELDS[i]);
+        }
+        return new Sample(entry.get("state"), values);
+    }
+}
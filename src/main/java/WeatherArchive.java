@@ -0,0 +1,307 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+// On-disk history for entries that left the in-memory MAX_UPDATES window or belonged to an expired
+// station. Entries are grouped into blocks of up to BLOCK_SIZE and appended to one segment file per
+// station and day:
+//
+//   <dir>/<station>/<yyyyMMdd>.seg   blocks, each: int count, long first timestamp (epoch ms),
+//                                    string dictionary, then per entry the timestamp delta and
+//                                    (key, value) dictionary indexes, all as varints
+//   <dir>/<station>/<yyyyMMdd>.idx   one fixed-size entry per block: min/max timestamp, offset, length
+//
+// The index is sparse (one entry per block), so a range query only reads the blocks it overlaps.
+// A block is written before its index entry, so a crash never exposes a partial block.
+//
+// append and flush only complete blocks in memory; writeBlocks writes them. The server appends under
+// the lock on its weather data and writes the blocks after releasing it, so no request waits for the disk.
+public class WeatherArchive {
+    private static final int BLOCK_SIZE = 32;
+    private static final int INDEX_ENTRY_BYTES = 8 + 8 + 8 + 4;
+    private static final DateTimeFormatter DAY = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+    private final Path dirPath;
+    // Entries of the block each station is currently filling
+    private final Map<String, List<WeatherEntry>> pending = new HashMap<>();
+    // Blocks completed but not yet written, oldest first
+    private final ArrayDeque<Block> completed = new ArrayDeque<>();
+    // Held while blocks are written and while the disk is read, so a read finds each block either on
+    // disk or in completed. append and flush never take it, so they never wait for the disk.
+    private final ReentrantLock diskLock = new ReentrantLock();
+    // Number of blocks read from disk, to check that range queries skip the rest
+    public long blocksRead;
+
+    public WeatherArchive(String dirStr) throws IOException {
+        this.dirPath = Paths.get(dirStr);
+        Files.createDirectories(dirPath);
+    }
+
+    // A block of one station, completed in memory
+    private static class Block {
+        private final String stationId;
+        private final List<WeatherEntry> entries;
+
+        private Block(String stationId, List<WeatherEntry> entries) {
+            this.stationId = stationId;
+            this.entries = entries;
+        }
+    }
+
+    // Method to archive one entry; entries of a station are expected to arrive in time order
+    public synchronized void append(String stationId, WeatherEntry entry) {
+        List<WeatherEntry> block = pending.computeIfAbsent(stationId, id -> new ArrayList<>());
+        // A block never spans two days, so it always lives in the segment of its own day
+        if (!block.isEmpty() && !dayOf(block.get(0)).equals(dayOf(entry))) {
+            completed.addLast(new Block(stationId, block));
+            block = new ArrayList<>();
+            pending.put(stationId, block);
+        }
+        block.add(entry);
+        if (block.size() >= BLOCK_SIZE) completed.addLast(new Block(stationId, pending.remove(stationId)));
+    }
+
+    // Method to complete the partial block of one station, e.g. when it expires
+    public synchronized void flush(String stationId) {
+        List<WeatherEntry> block = pending.remove(stationId);
+        if (block != null && !block.isEmpty()) completed.addLast(new Block(stationId, block));
+    }
+
+    // Method to write the completed blocks. A block that fails to write stays queued for the next call.
+    public void writeBlocks() throws IOException {
+        diskLock.lock();
+        try {
+            while (true) {
+                Block block;
+                synchronized (this) {
+                    block = completed.peekFirst();
+                }
+                if (block == null) return;
+                writeBlock(block.stationId, block.entries);
+                synchronized (this) {
+                    completed.pollFirst();
+                }
+            }
+        } finally {
+            diskLock.unlock();
+        }
+    }
+
+    // Method to write every partial and completed block, e.g. on shutdown
+    public void flushAll() throws IOException {
+        synchronized (this) {
+            for (Map.Entry<String, List<WeatherEntry>> entry : pending.entrySet()) {
+                if (!entry.getValue().isEmpty()) completed.addLast(new Block(entry.getKey(), entry.getValue()));
+            }
+            pending.clear();
+        }
+        writeBlocks();
+    }
+
+    // Method to read the archived entries of a station with from <= timestamp <= to, oldest first
+    public List<WeatherEntry> read(String stationId, LocalDateTime from, LocalDateTime to) throws IOException {
+        long fromMillis = from.toInstant(ZoneOffset.UTC).toEpochMilli();
+        long toMillis = to.toInstant(ZoneOffset.UTC).toEpochMilli();
+        String fromDay = from.format(DAY);
+        String toDay = to.format(DAY);
+        List<WeatherEntry> result = new ArrayList<>();
+
+        diskLock.lock();
+        try {
+            Path stationDir = dirPath.resolve(fileNameFor(stationId));
+            if (Files.isDirectory(stationDir)) {
+                List<String> days = new ArrayList<>();
+                try (DirectoryStream<Path> segments = Files.newDirectoryStream(stationDir, "*.idx")) {
+                    for (Path segment : segments) {
+                        String day = segment.getFileName().toString().replace(".idx", "");
+                        if (day.compareTo(fromDay) >= 0 && day.compareTo(toDay) <= 0) days.add(day);
+                    }
+                }
+                days.sort(null);
+                for (String day : days) readSegment(stationDir, day, fromMillis, toMillis, result);
+            }
+
+            // Entries that are not on disk yet
+            synchronized (this) {
+                for (Block block : completed) {
+                    if (block.stationId.equals(stationId)) addInRange(block.entries, fromMillis, toMillis, result);
+                }
+                addInRange(pending.getOrDefault(stationId, new ArrayList<>()), fromMillis, toMillis, result);
+            }
+        } finally {
+            diskLock.unlock();
+        }
+        return result;
+    }
+
+    private static void addInRange(List<WeatherEntry> entries, long fromMillis, long toMillis,
+                                   List<WeatherEntry> result) {
+        for (WeatherEntry entry : entries) {
+            long timestamp = entry.getTimestampAsEpochMillis();
+            if (timestamp >= fromMillis && timestamp <= toMillis) result.add(entry);
+        }
+    }
+
+    private void readSegment(Path stationDir, String day, long fromMillis, long toMillis,
+                             List<WeatherEntry> result) throws IOException {
+        ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(stationDir.resolve(day + ".idx")));
+        try (FileChannel segment = FileChannel.open(stationDir.resolve(day + ".seg"), StandardOpenOption.READ)) {
+            // A trailing partial index entry from a crash is ignored
+            while (index.remaining() >= INDEX_ENTRY_BYTES) {
+                long minTimestamp = index.getLong();
+                long maxTimestamp = index.getLong();
+                long offset = index.getLong();
+                int length = index.getInt();
+                if (maxTimestamp < fromMillis || minTimestamp > toMillis) continue;
+
+                ByteBuffer block = ByteBuffer.allocate(length);
+                while (block.hasRemaining()) {
+                    if (segment.read(block, offset + block.position()) < 0) break;
+                }
+                block.flip();
+                blocksRead++;
+                addInRange(decodeBlock(block), fromMillis, toMillis, result);
+            }
+        }
+    }
+
+    private void writeBlock(String stationId, List<WeatherEntry> block) throws IOException {
+        Path stationDir = dirPath.resolve(fileNameFor(stationId));
+        Files.createDirectories(stationDir);
+        String day = dayOf(block.get(0));
+        byte[] bytes = encodeBlock(block);
+
+        long offset;
+        try (FileChannel segment = FileChannel.open(stationDir.resolve(day + ".seg"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            offset = segment.size();
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) segment.write(buffer);
+        }
+
+        long minTimestamp = Long.MAX_VALUE;
+        long maxTimestamp = Long.MIN_VALUE;
+        for (WeatherEntry weather : block) {
+            minTimestamp = Math.min(minTimestamp, weather.getTimestampAsEpochMillis());
+            maxTimestamp = Math.max(maxTimestamp, weather.getTimestampAsEpochMillis());
+        }
+
+        ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_BYTES);
+        entry.putLong(minTimestamp);
+        entry.putLong(maxTimestamp);
+        entry.putLong(offset);
+        entry.putInt(bytes.length);
+        entry.flip();
+        try (FileChannel index = FileChannel.open(stationDir.resolve(day + ".idx"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            // Drop a partial entry left by a crash, so the index stays aligned
+            long end = index.size() - index.size() % INDEX_ENTRY_BYTES;
+            index.truncate(end);
+            index.position(end);
+            while (entry.hasRemaining()) index.write(entry);
+        }
+    }
+
+    private static byte[] encodeBlock(List<WeatherEntry> block) {
+        // Field names and values repeat across a station's readings, so both go into one dictionary
+        Map<String, Integer> dictionary = new LinkedHashMap<>();
+        List<HashMap<String, String>> bodies = new ArrayList<>(block.size());
+        for (WeatherEntry entry : block) {
+            bodies.add(entry.getBody());
+            for (Map.Entry<String, String> field : bodies.get(bodies.size() - 1).entrySet()) {
+                dictionary.putIfAbsent(field.getKey(), dictionary.size());
+                dictionary.putIfAbsent(field.getValue(), dictionary.size());
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long first = block.get(0).getTimestampAsEpochMillis();
+        writeInt(out, block.size());
+        writeLong(out, first);
+        Varint.write(out, dictionary.size());
+        for (String word : dictionary.keySet()) {
+            byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+            Varint.write(out, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+
+        long previous = first;
+        for (int i = 0; i < block.size(); i++) {
+            long timestamp = block.get(i).getTimestampAsEpochMillis();
+            // Negative if the wall clock stepped back, which still round-trips
+            Varint.write(out, timestamp - previous);
+            previous = timestamp;
+            Varint.write(out, bodies.get(i).size());
+            for (Map.Entry<String, String> field : bodies.get(i).entrySet()) {
+                Varint.write(out, dictionary.get(field.getKey()));
+                Varint.write(out, dictionary.get(field.getValue()));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static List<WeatherEntry> decodeBlock(ByteBuffer block) {
+        int count = block.getInt();
+        long timestamp = block.getLong();
+        String[] dictionary = new String[(int) Varint.read(block)];
+        for (int i = 0; i < dictionary.length; i++) {
+            byte[] bytes = new byte[(int) Varint.read(block)];
+            block.get(bytes);
+            dictionary[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        List<WeatherEntry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            timestamp += Varint.read(block);
+            int fields = (int) Varint.read(block);
+            HashMap<String, String> body = new HashMap<>();
+            for (int j = 0; j < fields; j++) {
+                String key = dictionary[(int) Varint.read(block)];
+                body.put(key, dictionary[(int) Varint.read(block)]);
+            }
+            LocalDateTime time = LocalDateTime.ofEpochSecond(Math.floorDiv(timestamp, 1000),
+                    Math.floorMod(timestamp, 1000) * 1_000_000, ZoneOffset.UTC);
+            entries.add(new WeatherEntry(body, time));
+        }
+        return entries;
+    }
+
+    private static String dayOf(WeatherEntry entry) {
+        return entry.getTimestampAsLocalDateTime().format(DAY);
+    }
+
+    // Station ids become file and directory names. An id of letters, digits, '_' and '-' is used as is;
+    // any other is hex-encoded behind a '%', which a name used as is never contains, so no two ids share
+    // a name.
+    static String fileNameFor(String stationId) {
+        if (stationId.matches("[A-Za-z0-9_-]+")) return stationId;
+        StringBuilder hex = new StringBuilder("%");
+        for (byte b : stationId.getBytes(StandardCharsets.UTF_8)) hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.writeBytes(ByteBuffer.allocate(4).putInt(value).array());
+    }
+
+    private static void writeLong(ByteArrayOutputStream out, long value) {
+        out.writeBytes(ByteBuffer.allocate(8).putLong(value).array());
+    }
+}
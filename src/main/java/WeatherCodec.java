@@ -0,0 +1,90 @@
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.reflect.Type;
+import java.time.LocalDateTime;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+// The JSON codec of the server. A PUT body is validated and decoded in a single streaming pass,
+// and the Gson instances, which are thread-safe and cache their type adapters, are built once.
+public class WeatherCodec {
+    public static final Gson GSON = new Gson();
+    public static final Gson PRETTY_GSON = new GsonBuilder().setPrettyPrinting().create();
+    // Type of weatherData, as written to and read from storage
+    public static final Type WEATHER_DATA_TYPE = new TypeToken<Map<String, Deque<WeatherEntry>>>() {}.getType();
+
+    // Method to decode a PUT body into an entry; null if the body is not a JSON object of fields, or has
+    // no station id to store it under
+    public static WeatherEntry decode(String body) {
+        try {
+            HashMap<String, String> fields = parseBody(body);
+            String stationId = fields.get("id");
+            if (stationId == null || stationId.isEmpty()) return null;
+            return new WeatherEntry(fields, LocalDateTime.now());
+        } catch (JsonSyntaxException e) {
+            return null;
+        }
+    }
+
+    // Method to find the "id" field of a PUT body without decoding the rest, e.g. to rate limit a station
+    // before the body is validated. Reads up to the field only; null if it is missing or comes after
+    // something that is not a field of the object.
+    public static String peekStationId(String body) {
+        try (JsonReader reader = new JsonReader(new StringReader(body))) {
+            reader.setLenient(true);
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("id".equals(name)) {
+                    JsonToken token = reader.peek();
+                    return token == JsonToken.STRING || token == JsonToken.NUMBER ? reader.nextString() : null;
+                }
+                reader.skipValue();
+            }
+            return null;
+        } catch (IOException | IllegalStateException e) {
+            return null;
+        }
+    }
+
+    // Method to parse a JSON object of fields, e.g. {"id": "IDS60901", "air_temp": 13.3}.
+    // Numbers and booleans are kept as they were written; nested objects or arrays, repeated
+    // fields and anything after the object are rejected with a JsonSyntaxException.
+    public static HashMap<String, String> parseBody(String body) {
+        try (JsonReader reader = new JsonReader(new StringReader(body))) {
+            // As lenient as the Gson parsing this replaces
+            reader.setLenient(true);
+            HashMap<String, String> fields = new HashMap<>();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                String value;
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.nextNull();
+                    value = null;
+                } else if (reader.peek() == JsonToken.BOOLEAN) {
+                    value = Boolean.toString(reader.nextBoolean());
+                } else {
+                    value = reader.nextString();
+                }
+                if (fields.containsKey(name)) throw new JsonSyntaxException("Duplicate field: " + name);
+                fields.put(name, value);
+            }
+            reader.endObject();
+            if (reader.peek() != JsonToken.END_DOCUMENT) {
+                throw new JsonSyntaxException("Did not consume the entire document");
+            }
+            return fields;
+        } catch (IOException | IllegalStateException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+}
@@ -1,27 +1,356 @@
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
-import java.lang.reflect.Type;
+import java.io.IOException;
 import java.time.format.DateTimeFormatter;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+// One reading of a station. Readings are stored compactly rather than as a HashMap of Strings:
+// field names are indexes into a schema shared by every entry, numbers are kept as primitive
+// doubles, and the timestamp is a long of epoch nanoseconds. getBody() rebuilds the map, so the
+// JSON sent on GET and written to storage is unchanged. The schema is shared by every station and
+// never shrinks, so it is capped: a reading with a field name past the cap keeps its own map, and a
+// reading of a new shape past the cap keeps its own shape, both counted by estimatedBytes(). Made-up
+// field names can then cost no more memory than the StationBudget allows.
+@JsonAdapter(WeatherEntry.Adapter.class)
 public class WeatherEntry {
-    public String timestamp;
-    public HashMap<String, String> body;
-
     // ISO 8601 format for consistency
     private static final DateTimeFormatter formatter = DateTimeFormatter.ISO_LOCAL_DATE_TIME;
 
+    private static final byte TEXT = 0;
+    private static final byte INTEGER = 1;
+    private static final byte DECIMAL = 2;
+    private static final byte NULL = 3;
+
+    // Most field names in the schema, and most shapes shared between entries
+    static final int MAX_FIELD_NAMES = 1024;
+    static final int MAX_SHAPES = 4096;
+
+    // Field name <-> index, shared by every entry. Names are only appended, so readers take the array
+    // unlocked; it doubles when full, and is published again after each name is added.
+    private static final Map<String, Integer> fieldIndexes = new ConcurrentHashMap<>();
+    private static volatile String[] fieldNames = new String[16];
+
+    // The field indexes and value kinds of an entry, in arrival order. Readings of a station nearly
+    // always have the same fields, so shapes are interned and shared between entries.
+    private static final Map<Shape, Shape> shapes = new ConcurrentHashMap<>();
+
+    private static class Shape {
+        private final int[] fields;
+        private final byte[] kinds;
+        private final int hash;
+
+        private Shape(int[] fields, byte[] kinds) {
+            this.fields = fields;
+            this.kinds = kinds;
+            this.hash = 31 * Arrays.hashCode(fields) + Arrays.hashCode(kinds);
+        }
+
+        private int find(int field) {
+            for (int i = 0; i < fields.length; i++) {
+                if (fields[i] == field) return i;
+            }
+            return -1;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Shape && Arrays.equals(fields, ((Shape) other).fields)
+                    && Arrays.equals(kinds, ((Shape) other).kinds);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    // Epoch nanoseconds of the local time taken as UTC, which covers the years 1677 to 2262
+    private final long timestamp;
+    private final Shape shape;
+    // Values of the INTEGER and DECIMAL fields, and of the TEXT fields, each in shape order
+    private final double[] numbers;
+    private final String[] texts;
+    // The whole reading, instead of the three fields above, when a field name is not in the schema
+    private final HashMap<String, String> ownFields;
+    // Whether shape is interned, or this entry's own
+    private final boolean sharedShape;
+
     // Initialize from a json string
     public WeatherEntry(String body) {
-        Type type = new TypeToken<HashMap<String, String>>() {}.getType();
-        this.body = new Gson().fromJson(body, type);
-        this.timestamp = LocalDateTime.now().format(formatter);
+        this(WeatherCodec.parseBody(body), LocalDateTime.now());
+    }
+
+    // Initialize from stored data, e.g. when reading the archive
+    public WeatherEntry(HashMap<String, String> body, LocalDateTime timestamp) {
+        this((Map<String, String>) body, timestamp);
+    }
+
+    // Initialize from stored data whose timestamp is already formatted, e.g. during recovery
+    public WeatherEntry(HashMap<String, String> body, String timestamp) {
+        this(body, LocalDateTime.parse(timestamp, formatter));
+    }
+
+    private WeatherEntry(Map<String, String> body, LocalDateTime timestamp) {
+        this.timestamp = toEpochNanos(timestamp);
+        if (!inSchema(body)) {
+            this.ownFields = new HashMap<>(body);
+            this.shape = null;
+            this.numbers = null;
+            this.texts = null;
+            this.sharedShape = false;
+            return;
+        }
+        this.ownFields = null;
+
+        int[] fields = new int[body.size()];
+        byte[] kinds = new byte[body.size()];
+        double[] numbers = new double[body.size()];
+        String[] texts = new String[body.size()];
+        int numberCount = 0;
+        int textCount = 0;
+        int i = 0;
+        for (Map.Entry<String, String> field : body.entrySet()) {
+            fields[i] = fieldIndex(field.getKey());
+            String value = field.getValue();
+            if (value == null) {
+                kinds[i] = NULL;
+            } else if (isCanonicalInteger(value)) {
+                kinds[i] = INTEGER;
+                numbers[numberCount++] = Integer.parseInt(value);
+            } else if (isCanonicalDecimal(value)) {
+                kinds[i] = DECIMAL;
+                numbers[numberCount++] = Double.parseDouble(value);
+            } else {
+                kinds[i] = TEXT;
+                texts[textCount++] = value;
+            }
+            i++;
+        }
+
+        Shape shape = new Shape(fields, kinds);
+        Shape shared = shapes.get(shape);
+        if (shared == null && shapes.size() < MAX_SHAPES) {
+            shared = shapes.putIfAbsent(shape, shape);
+            if (shared == null) shared = shape;
+        }
+        this.sharedShape = shared != null;
+        this.shape = shared != null ? shared : shape;
+        this.numbers = numberCount == 0 ? null : Arrays.copyOf(numbers, numberCount);
+        this.texts = textCount == 0 ? null : Arrays.copyOf(texts, textCount);
+    }
+
+    // Method to rebuild the reading as a map of field name to text, as it was received
+    public HashMap<String, String> getBody() {
+        if (ownFields != null) return new HashMap<>(ownFields);
+        String[] names = fieldNames;
+        HashMap<String, String> body = new HashMap<>();
+        int numberIndex = 0;
+        int textIndex = 0;
+        for (int i = 0; i < shape.fields.length; i++) {
+            byte kind = shape.kinds[i];
+            String value = null;
+            if (kind == TEXT) value = texts[textIndex++];
+            else if (kind != NULL) value = render(kind, numbers[numberIndex++]);
+            body.put(names[shape.fields[i]], value);
+        }
+        return body;
+    }
+
+    // Method to read one field without rebuilding the map; null if the field is missing
+    public String get(String field) {
+        if (ownFields != null) return ownFields.get(field);
+        int i = position(field);
+        if (i < 0 || shape.kinds[i] == NULL) return null;
+        return shape.kinds[i] == TEXT ? texts[valueIndex(i)] : render(shape.kinds[i], numbers[valueIndex(i)]);
+    }
+
+    // Method to read one field as a number; NaN if it is missing or not numeric
+    public double getNumber(String field) {
+        String text;
+        if (ownFields != null) {
+            text = ownFields.get(field);
+            if (text == null) return Double.NaN;
+        } else {
+            int i = position(field);
+            if (i < 0 || shape.kinds[i] == NULL) return Double.NaN;
+            if (shape.kinds[i] != TEXT) return numbers[valueIndex(i)];
+            text = texts[valueIndex(i)];
+        }
+        try {
+            return Double.parseDouble(text.trim());
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    public String getTimestamp() {
+        return getTimestampAsLocalDateTime().format(formatter);
     }
 
     // Method to retrieve timestamp as LocalDateTime when needed
     public LocalDateTime getTimestampAsLocalDateTime() {
-        return LocalDateTime.parse(timestamp, formatter);  // Convert string back to LocalDateTime
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(timestamp, 1_000_000_000L),
+                (int) Math.floorMod(timestamp, 1_000_000_000L), ZoneOffset.UTC);
+    }
+
+    // Timestamp as milliseconds since the epoch, treating the local time as UTC
+    public long getTimestampAsEpochMillis() {
+        return Math.floorDiv(timestamp, 1_000_000L);
+    }
+
+    // Method to estimate the heap held by this entry, for StationBudget. Shared shapes are not counted, but
+    // an own shape or map is; texts are counted in full, since a value seen only once is not shared with anything.
+    public long estimatedBytes() {
+        long size = 48;
+        if (ownFields != null) {
+            size += 48 + 16L * ownFields.size();
+            for (Map.Entry<String, String> field : ownFields.entrySet()) {
+                size += 32 + 40 + field.getKey().length();
+                if (field.getValue() != null) size += 40 + field.getValue().length();
+            }
+            return size;
+        }
+        if (!sharedShape) size += 56 + 5L * shape.fields.length;
+        if (numbers != null) size += 16 + 8L * numbers.length;
+        if (texts != null) {
+            size += 16 + 4L * texts.length;
+            for (String text : texts) size += 40 + text.length();
+        }
+        return size;
+    }
+
+    private int position(String field) {
+        Integer index = fieldIndexes.get(field);
+        return index == null ? -1 : shape.find(index);
+    }
+
+    // Index into numbers or texts of the field at position i of the shape
+    private int valueIndex(int i) {
+        boolean text = shape.kinds[i] == TEXT;
+        int index = 0;
+        for (int j = 0; j < i; j++) {
+            byte kind = shape.kinds[j];
+            if (text ? kind == TEXT : kind == INTEGER || kind == DECIMAL) index++;
+        }
+        return index;
+    }
+
+    private static String render(byte kind, double number) {
+        return kind == INTEGER ? Integer.toString((int) number) : Double.toString(number);
+    }
+
+    // Only numbers that print back to the same text are stored as numbers, so "05" or "1023.90" stay text
+    private static boolean isCanonicalInteger(String value) {
+        if (value.isEmpty() || value.length() > 11) return false;
+        try {
+            return Integer.toString(Integer.parseInt(value)).equals(value);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    static boolean isCanonicalDecimal(String value) {
+        if (value.isEmpty() || !(Character.isDigit(value.charAt(value.length() - 1)))) return false;
+        try {
+            return Double.toString(Double.parseDouble(value)).equals(value);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    // Whether every field name of body has an index in the schema, adding those that fit under the cap
+    private static boolean inSchema(Map<String, String> body) {
+        for (String name : body.keySet()) {
+            if (fieldIndex(name) < 0) return false;
+        }
+        return true;
+    }
+
+    // The index of a field name, added to the schema if new; -1 if it is new and the schema is full
+    private static int fieldIndex(String name) {
+        Integer index = fieldIndexes.get(name);
+        if (index != null) return index;
+        synchronized (fieldIndexes) {
+            index = fieldIndexes.get(name);
+            if (index == null) {
+                index = fieldIndexes.size();
+                if (index >= MAX_FIELD_NAMES) return -1;
+                String[] names = fieldNames;
+                if (index == names.length) names = Arrays.copyOf(names, 2 * names.length);
+                names[index] = name.intern();
+                // Published before the index, so a reader that has the index finds the name
+                fieldNames = names;
+                fieldIndexes.put(name, index);
+            }
+            return index;
+        }
+    }
+
+    private static long toEpochNanos(LocalDateTime timestamp) {
+        return Math.addExact(Math.multiplyExact(timestamp.toEpochSecond(ZoneOffset.UTC), 1_000_000_000L),
+                timestamp.getNano());
+    }
+
+    // Reads and writes an entry as {"timestamp": "<ISO date-time>", "body": {..}}, the JSON of the old class
+    public static class Adapter extends TypeAdapter<WeatherEntry> {
+        @Override
+        public void write(JsonWriter out, WeatherEntry entry) throws IOException {
+            if (entry == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("timestamp").value(entry.getTimestamp());
+            out.name("body").beginObject();
+            for (Map.Entry<String, String> field : entry.getBody().entrySet()) {
+                out.name(field.getKey()).value(field.getValue());
+            }
+            out.endObject();
+            out.endObject();
+        }
+
+        @Override
+        public WeatherEntry read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            String timestamp = null;
+            Map<String, String> body = new LinkedHashMap<>();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if ("timestamp".equals(name) && in.peek() == JsonToken.STRING) {
+                    timestamp = in.nextString();
+                } else if ("body".equals(name) && in.peek() == JsonToken.BEGIN_OBJECT) {
+                    in.beginObject();
+                    while (in.hasNext()) {
+                        String key = in.nextName();
+                        if (in.peek() == JsonToken.NULL) {
+                            in.nextNull();
+                            body.put(key, null);
+                        } else {
+                            body.put(key, in.nextString());
+                        }
+                    }
+                    in.endObject();
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            if (timestamp == null) throw new IOException("Weather entry without a timestamp");
+            return new WeatherEntry(body, LocalDateTime.parse(timestamp, formatter));
+        }
     }
 }
@@ -0,0 +1,92 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.Stream;
+
+public class ArchiveTest {
+    private static final Path archiveDir = Paths.get("target/archive-test");
+    private static final LocalDateTime start = LocalDateTime.of(2024, 9, 1, 22, 0);
+
+    private static WeatherEntry reading(int minute) {
+        HashMap<String, String> body = new HashMap<>();
+        body.put("id", "IDS60901");
+        body.put("state", "SA");
+        body.put("air_temp", String.valueOf(minute % 30));
+        return new WeatherEntry(body, start.plusMinutes(minute));
+    }
+
+    @BeforeEach
+    public void cleanArchive() throws IOException {
+        if (!Files.exists(archiveDir)) return;
+        try (Stream<Path> paths = Files.walk(archiveDir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toArray(Path[]::new)) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    public void rangeReadTest() throws IOException {
+        WeatherArchive archive = new WeatherArchive(archiveDir.toString());
+
+        // 300 readings, one per minute from 22:00, so they span two days
+        for (int minute = 0; minute < 300; minute++) {
+            archive.append("IDS60901", reading(minute));
+        }
+        archive.flushAll();
+        assertTrue(Files.exists(archiveDir.resolve("IDS60901/20240901.seg")));
+        assertTrue(Files.exists(archiveDir.resolve("IDS60901/20240902.seg")));
+
+        // Everything comes back in order, with the same body and timestamp
+        List<WeatherEntry> all = archive.read("IDS60901", start, start.plusDays(1));
+        assertEquals(300, all.size());
+        for (int minute = 0; minute < 300; minute++) {
+            assertEquals(reading(minute).getBody(), all.get(minute).getBody());
+            assertEquals(reading(minute).getTimestamp(), all.get(minute).getTimestamp());
+        }
+
+        // A narrow range only reads the block that holds it
+        archive.blocksRead = 0;
+        List<WeatherEntry> range = archive.read("IDS60901", start.plusMinutes(100), start.plusMinutes(109));
+        assertEquals(10, range.size());
+        assertEquals(reading(100).getTimestamp(), range.get(0).getTimestamp());
+        assertEquals(1, archive.blocksRead);
+    }
+
+    @Test
+    public void pendingEntriesAndReopenTest() throws IOException {
+        WeatherArchive archive = new WeatherArchive(archiveDir.toString());
+        for (int minute = 0; minute < 5; minute++) {
+            archive.append("IDS60901", reading(minute));
+        }
+
+        // Entries still in the open block are returned before they reach the disk
+        assertEquals(5, archive.read("IDS60901", start, start.plusHours(1)).size());
+        assertEquals(0, archive.blocksRead);
+
+        // A flush completes the block in memory; only writeBlocks puts it on disk
+        archive.flush("IDS60901");
+        assertEquals(5, archive.read("IDS60901", start, start.plusHours(1)).size());
+        assertEquals(0, archive.blocksRead);
+        assertEquals(0, new WeatherArchive(archiveDir.toString()).read("IDS60901", start, start.plusHours(1)).size());
+
+        // Once written, a new archive over the same directory sees them, and the first one reads them once
+        archive.writeBlocks();
+        WeatherArchive reopened = new WeatherArchive(archiveDir.toString());
+        assertEquals(5, reopened.read("IDS60901", start, start.plusHours(1)).size());
+        assertEquals(0, reopened.read("IDS60902", start, start.plusHours(1)).size());
+        assertEquals(5, archive.read("IDS60901", start, start.plusHours(1)).size());
+        assertEquals(1, archive.blocksRead);
+    }
+}
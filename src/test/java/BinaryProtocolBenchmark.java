@@ -0,0 +1,79 @@
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compares sending readings as one HTTP PUT each with sending them in BinaryProtocol frames of a
+// batch each, on one connection to a live server. It reports the readings sent per second and the
+// request bytes per reading. Not run by "mvn test"; start it with
+//   mvn test-compile exec:java -Dexec.mainClass="BinaryProtocolBenchmark" -Dexec.classpathScope=test -Dexec.args="20000 100"
+public class BinaryProtocolBenchmark {
+    private static final int PORT = 4592;
+    private static final int STATIONS = 500;
+
+    public static void main(String[] args) throws IOException {
+        int readings = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        AggregationServer server = new AggregationServer(PORT, "target/bench/binary-protocol");
+        // Storage that rewrites one slot per station, and no rate limits, so framing is what differs
+        server.setStorageFormat("binary");
+        server.setRateLimits(0, 1, 0, 1);
+        server.start();
+        try {
+            Map<String, String> template = ContentServer.parseFile("weather_1.txt");
+            for (int round = 1; round <= 3; round++) {
+                List<Map<String, String>> data = new ArrayList<>();
+                for (int i = 0; i < readings; i++) {
+                    Map<String, String> reading = new HashMap<>(template);
+                    reading.put("id", "IDS" + (i % STATIONS));
+                    reading.put("air_temp", String.valueOf(round * 100 + i % 97 / 10.0));
+                    data.add(reading);
+                }
+
+                Gson gson = new Gson();
+                ContentServer http = new ContentServer("localhost:" + PORT);
+                long bytes = 0;
+                long start = System.nanoTime();
+                for (Map<String, String> reading : data) {
+                    String json = gson.toJson(reading);
+                    http.sendPutRequest(json);
+                    bytes += httpRequestBytes(json, http.clock.getTime());
+                }
+                report("HTTP PUT", round, start, readings, bytes);
+
+                // New values, so the frames are not all duplicates of what HTTP just sent
+                for (Map<String, String> reading : data) reading.put("wind_dir", "N");
+                ContentServer binary = new ContentServer("localhost:" + PORT);
+                if (!binary.upgradeToBinary()) throw new IllegalStateException("Server did not upgrade");
+                bytes = 0;
+                start = System.nanoTime();
+                for (int from = 0; from < readings; from += batchSize) {
+                    List<Map<String, String>> batch = data.subList(from, Math.min(readings, from + batchSize));
+                    binary.sendBatch(batch);
+                    bytes += BinaryProtocol.encodeBatch(binary.clock.getTime(), batch).length;
+                }
+                report("binary x" + batchSize, round, start, readings, bytes);
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    // Size of the request RequestResponseHandler.sendPutRequest writes
+    private static long httpRequestBytes(String json, int lamportTime) {
+        String request = "PUT /weather.json HTTP/1.1\nUser-Agent: ATOMClient/1/0\nContent-Type: application/json\n"
+                + "Content-Length: " + json.getBytes(StandardCharsets.UTF_8).length + "\nLamport-Time: "
+                + lamportTime + "\n\n" + json + "\n";
+        return request.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static void report(String name, int round, long start, int readings, long bytes) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-12s round %d: %8.0f readings/s, %5.0f request bytes per reading%n",
+                name, round, readings / seconds, (double) bytes / readings);
+    }
+}
@@ -0,0 +1,93 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import com.google.gson.Gson;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class BinaryProtocolTest {
+    private static DataInputStream input(byte[] bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    @Test
+    public void frameRoundTripTest() throws IOException {
+        HashMap<String, String> first = new HashMap<>();
+        first.put("id", "IDS60901");
+        first.put("air_temp", "13.3");
+        first.put("wind_spd_kmh", "15");
+        first.put("dewpt", "-3");
+        first.put("press", "1023.90");
+        first.put("local_date_time", "15/04:00pm");
+        first.put("cloud", null);
+        HashMap<String, String> second = new HashMap<>();
+        second.put("id", "IDS60902");
+        second.put("air_temp", "05");
+
+        // Readings come back as they were sent, including text that only looks like a number
+        byte[] frame = BinaryProtocol.encodeBatch(7, List.of(first, second));
+        BinaryProtocol.Batch batch = BinaryProtocol.readBatch(input(frame));
+        assertEquals(7, batch.lamportTime);
+        assertEquals(List.of(first, second), batch.readings);
+        assertEquals(frame.length - 4, batch.bytes);
+        // Field names are sent once per frame, so the frame is smaller than the JSON of the readings
+        assertTrue(frame.length < new Gson().toJson(List.of(first, second)).length());
+
+        byte[] ack = BinaryProtocol.encodeAck(12, new int[]{201, 200, 429});
+        BinaryProtocol.Ack decoded = BinaryProtocol.readAck(input(ack));
+        assertEquals(12, decoded.lamportTime);
+        assertArrayEquals(new int[]{201, 200, 429}, decoded.statusCodes);
+
+        // A clean end between frames is not an error; a bad length or a cut-off frame is
+        assertNull(BinaryProtocol.readBatch(input(new byte[0])));
+        byte[] huge = ByteBuffer.allocate(4).putInt(BinaryProtocol.MAX_FRAME_BYTES + 1).array();
+        assertThrows(IOException.class, () -> BinaryProtocol.readBatch(input(huge)));
+        byte[] truncated = Arrays.copyOf(frame, frame.length);
+        ByteBuffer.wrap(truncated).putInt(20);
+        assertThrows(IOException.class, () -> BinaryProtocol.readBatch(input(Arrays.copyOf(truncated, 24))));
+    }
+
+    @Test
+    public void upgradedConnectionTest() throws IOException {
+        AggregationServer server = new AggregationServer(4576, "target/data/4576");
+        server.start();
+        try {
+            Map<String, String> dataMap = ContentServer.parseFile("weather_1.txt");
+            HashMap<String, String> other = new HashMap<>(dataMap);
+            other.put("id", "IDS60902");
+            HashMap<String, String> noId = new HashMap<>(dataMap);
+            noId.remove("id");
+
+            ContentServer contentServer = new ContentServer("localhost:4576");
+            assertTrue(contentServer.upgradeToBinary());
+            int[] statusCodes = contentServer.sendBatch(List.of(dataMap, other, noId));
+            assertArrayEquals(new int[]{201, 201, 500}, statusCodes);
+            // Sent again, the readings are duplicates
+            assertArrayEquals(new int[]{200, 200}, contentServer.sendBatch(List.of(dataMap, other)));
+            assertEquals(2, server.metrics.value("binary.frames"));
+            assertEquals(2, server.metrics.value("put.duplicates"));
+
+            // Readings sent in frames are served over HTTP just as if they were PUT as JSON
+            GETClient client = new GETClient("localhost:4576");
+            HashMap<String, String> response = client.sendGetRequest("IDS60901");
+            assertEquals(200, Integer.parseInt(response.get("Status-Code")));
+            assertEquals(new Gson().toJson(dataMap), response.get("body"));
+            assertTrue(contentServer.clock.getTime() > 1);
+        } finally {
+            server.stop();
+            Files.deleteIfExists(server.weatherFile.filePath);
+        }
+    }
+}
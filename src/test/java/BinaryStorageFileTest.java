@@ -0,0 +1,179 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+public class BinaryStorageFileTest {
+    private static final Path storageDir = Paths.get("target/binary-storage-test");
+    private static final LocalDateTime start = LocalDateTime.of(2024, 9, 1, 10, 0, 0, 123_000_000);
+
+    private static WeatherEntry reading(String stationId, int minute) {
+        HashMap<String, String> body = new HashMap<>();
+        body.put("id", stationId);
+        body.put("name", "Adelaide (West Terrace /  ngayirdapira)");
+        body.put("state", "SA");
+        body.put("air_temp", String.valueOf(minute % 30));
+        body.put("cloud", null);
+        return new WeatherEntry(body, start.plusMinutes(minute));
+    }
+
+    private static Map<String, Deque<WeatherEntry>> stations(int count, int entries) {
+        Map<String, Deque<WeatherEntry>> weatherData = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            Deque<WeatherEntry> updates = new LinkedList<>();
+            for (int minute = 0; minute < entries; minute++) updates.offerLast(reading("IDS" + i, minute));
+            weatherData.put("IDS" + i, updates);
+        }
+        return weatherData;
+    }
+
+    private static void assertSameData(Map<String, Deque<WeatherEntry>> expected,
+                                       Map<String, Deque<WeatherEntry>> actual) {
+        assertEquals(expected.keySet(), actual.keySet());
+        for (String stationId : expected.keySet()) {
+            assertEquals(expected.get(stationId).size(), actual.get(stationId).size());
+            Iterator<WeatherEntry> actualEntries = actual.get(stationId).iterator();
+            for (WeatherEntry entry : expected.get(stationId)) {
+                WeatherEntry other = actualEntries.next();
+                assertEquals(entry.getBody(), other.getBody());
+                assertEquals(entry.getTimestamp(), other.getTimestamp());
+            }
+        }
+    }
+
+    // Entries cannot be changed, so a field is set by replacing the latest entry of the station
+    private static void setLatest(Map<String, Deque<WeatherEntry>> weatherData, String stationId,
+                                  String field, String value) {
+        WeatherEntry latest = weatherData.get(stationId).pollLast();
+        HashMap<String, String> body = latest.getBody();
+        body.put(field, value);
+        weatherData.get(stationId).offerLast(new WeatherEntry(body, latest.getTimestampAsLocalDateTime()));
+    }
+
+    @BeforeEach
+    public void cleanStorage() throws IOException {
+        if (!Files.exists(storageDir)) return;
+        try (Stream<Path> paths = Files.walk(storageDir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toArray(Path[]::new)) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    public void roundTripAndSlotUpdateTest() throws IOException {
+        BinaryStorageFile storage = new BinaryStorageFile(storageDir.toString(), "weather_data.bin");
+        Map<String, Deque<WeatherEntry>> weatherData = stations(3, 5);
+        storage.saveDataToFile(weatherData);
+        assertSameData(weatherData, new BinaryStorageFile(storageDir.toString(), "weather_data.bin").recoverDataFromFile());
+
+        // A PUT rewrites only its slot, even when it brings a new field name or a new station
+        setLatest(weatherData, "IDS1", "wind_dir", "S");
+        storage.saveStation("IDS1", weatherData);
+        weatherData.put("IDS9", new LinkedList<>(List.of(reading("IDS9", 0))));
+        storage.saveStation("IDS9", weatherData);
+        assertEquals(1, storage.fileRewrites);
+        assertEquals(2, storage.slotWrites);
+
+        BinaryStorageFile reopened = new BinaryStorageFile(storageDir.toString(), "weather_data.bin");
+        assertSameData(weatherData, reopened.recoverDataFromFile());
+        assertEquals(4, reopened.lastRecoveredStations);
+        assertEquals(16, reopened.lastRecoveredEntries);
+    }
+
+    @Test
+    public void tornSlotWriteTest() throws IOException {
+        BinaryStorageFile storage = new BinaryStorageFile(storageDir.toString(), "weather_data.bin");
+        Map<String, Deque<WeatherEntry>> weatherData = stations(1, 5);
+        storage.saveDataToFile(weatherData);
+        Map<String, Deque<WeatherEntry>> before = new BinaryStorageFile(storageDir.toString(), "weather_data.bin")
+                .recoverDataFromFile();
+
+        // Generation 2 goes to the first half of slot 0; damage it as a crash mid-write would
+        weatherData.get("IDS0").offerLast(reading("IDS0", 5));
+        storage.saveStation("IDS0", weatherData);
+        try (FileChannel file = FileChannel.open(storageDir.resolve("weather_data.bin"),
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(16);
+            file.read(header, 0);
+            int headerBytes = header.getInt(8);
+            file.write(ByteBuffer.wrap(new byte[] { 0x7F, 0x7F, 0x7F, 0x7F }), headerBytes + 40);
+        }
+
+        // The previous generation in the other half is still there
+        assertSameData(before, new BinaryStorageFile(storageDir.toString(), "weather_data.bin").recoverDataFromFile());
+    }
+
+    @Test
+    public void removeAndGrowTest() throws IOException {
+        BinaryStorageFile storage = new BinaryStorageFile(storageDir.toString(), "weather_data.bin");
+        Map<String, Deque<WeatherEntry>> weatherData = stations(2, 1);
+        storage.saveDataToFile(weatherData);
+
+        // More stations than the initial slots: the file grows without being rewritten
+        for (int i = 2; i < 40; i++) {
+            weatherData.put("IDS" + i, new LinkedList<>(List.of(reading("IDS" + i, 0))));
+            storage.saveStation("IDS" + i, weatherData);
+        }
+        weatherData.remove("IDS0");
+        weatherData.remove("IDS7");
+        storage.removeStations(List.of("IDS0", "IDS7"), weatherData);
+        assertEquals(1, storage.fileRewrites);
+
+        // A station larger than its slot forces a rewrite with bigger slots
+        for (int minute = 1; minute < 20; minute++) weatherData.get("IDS1").offerLast(reading("IDS1", minute));
+        setLatest(weatherData, "IDS1", "description", "x".repeat(5000));
+        storage.saveStation("IDS1", weatherData);
+        assertEquals(2, storage.fileRewrites);
+
+        Map<String, Deque<WeatherEntry>> recovered = new BinaryStorageFile(storageDir.toString(), "weather_data.bin")
+                .recoverDataFromFile();
+        assertFalse(recovered.containsKey("IDS7"));
+        assertSameData(weatherData, recovered);
+    }
+
+    @Test
+    public void conversionTest() throws IOException {
+        StorageFile json = new StorageFile(storageDir.toString(), "weather_data.json");
+        Map<String, Deque<WeatherEntry>> weatherData = stations(5, 20);
+        // Gson leaves null values out of the JSON file, so they are not expected back
+        for (Deque<WeatherEntry> updates : weatherData.values()) {
+            Deque<WeatherEntry> withoutNulls = new LinkedList<>();
+            for (WeatherEntry entry : updates) {
+                HashMap<String, String> body = entry.getBody();
+                body.remove("cloud");
+                withoutNulls.offerLast(new WeatherEntry(body, entry.getTimestampAsLocalDateTime()));
+            }
+            updates.clear();
+            updates.addAll(withoutNulls);
+        }
+        json.saveDataToFile(weatherData);
+
+        BinaryStorageFile binary = new BinaryStorageFile(storageDir.toString(), "weather_data.bin");
+        BinaryStorageFile.convert(json, binary);
+        assertTrue(Files.size(storageDir.resolve("weather_data.bin")) > 0);
+
+        StorageFile back = new StorageFile(storageDir.toString(), "converted.json");
+        BinaryStorageFile.convert(new BinaryStorageFile(storageDir.toString(), "weather_data.bin"), back);
+        assertSameData(weatherData, back.recoverDataFromFile());
+    }
+}
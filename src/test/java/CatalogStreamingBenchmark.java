@@ -0,0 +1,104 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+// Measures GET /weather.json, the latest reading of every station, streamed in chunks: the time to the
+// first byte of the body, the time to the last, and the bytes the respond stage allocates meanwhile.
+// For comparison, it serializes the same readings whole, as a response with a Content-Length needs
+// before it can send anything. Not run by "mvn test"; start it with
+//   mvn test-compile exec:java -Dexec.mainClass="CatalogStreamingBenchmark" -Dexec.classpathScope=test -Dexec.args="50000"
+public class CatalogStreamingBenchmark {
+    private static final int PORT = 4594;
+
+    public static void main(String[] args) throws IOException {
+        int stations = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        StorageFile storage = new StorageFile("target/bench/catalog", "weather_data.json");
+        Map<String, String> template = ContentServer.parseFile("weather_1.txt");
+        Map<String, Deque<WeatherEntry>> weatherData = new HashMap<>();
+        List<WeatherEntry> entries = new ArrayList<>();
+        for (int i = 0; i < stations; i++) {
+            HashMap<String, String> body = new HashMap<>(template);
+            body.put("id", "IDS" + i);
+            Deque<WeatherEntry> updates = new LinkedList<>();
+            updates.offerLast(new WeatherEntry(body, LocalDateTime.now()));
+            weatherData.put("IDS" + i, updates);
+            entries.add(updates.peekLast());
+        }
+        storage.saveDataToFile(weatherData);
+
+        AggregationServer server = new AggregationServer(PORT, "target/bench/catalog");
+        server.start();
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long respondThread = findThread("pipeline-respond");
+        try (Socket socket = new Socket("localhost", PORT)) {
+            for (int round = 1; round <= 3; round++) {
+                long allocated = threads.getThreadAllocatedBytes(respondThread);
+                long start = System.nanoTime();
+                OutputStream out = socket.getOutputStream();
+                out.write("GET /weather.json HTTP/1.1\nLamport-Time: 1\n\n".getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                long[] times = readChunkedResponse(socket.getInputStream(), start);
+                System.out.printf("streamed   round %d: first byte %7.2f ms, last byte %7.2f ms, %6.1f MB body, %6.1f MB allocated%n",
+                        round, times[0] / 1e6, times[1] / 1e6, times[2] / 1e6,
+                        (threads.getThreadAllocatedBytes(respondThread) - allocated) / 1e6);
+
+                allocated = threads.getThreadAllocatedBytes(Thread.currentThread().threadId());
+                start = System.nanoTime();
+                List<HashMap<String, String>> bodies = new ArrayList<>();
+                for (WeatherEntry entry : entries) bodies.add(entry.getBody());
+                byte[] whole = WeatherCodec.GSON.toJson(bodies).getBytes(StandardCharsets.UTF_8);
+                System.out.printf("whole      round %d: first byte %7.2f ms at the earliest, %6.1f MB body, %6.1f MB allocated%n",
+                        round, (System.nanoTime() - start) / 1e6, whole.length / 1e6,
+                        (threads.getThreadAllocatedBytes(Thread.currentThread().threadId()) - allocated) / 1e6);
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static long findThread(String name) {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals(name)) return thread.threadId();
+        }
+        throw new IllegalStateException("No thread " + name);
+    }
+
+    // Reads one response with a chunked body. Returns the nanoseconds from start to the first and the
+    // last byte of the body, and the body bytes.
+    private static long[] readChunkedResponse(InputStream in, long start) throws IOException {
+        while (!readLine(in).isEmpty()) {
+            // Status line and headers
+        }
+        long first = 0;
+        long bytes = 0;
+        while (true) {
+            int size = Integer.parseInt(readLine(in), 16);
+            if (first == 0) first = System.nanoTime() - start;
+            if (size == 0) break;
+            in.readNBytes(size);
+            bytes += size;
+            readLine(in);
+        }
+        readLine(in);
+        return new long[]{first, System.nanoTime() - start, bytes};
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (c != '\r') line.append((char) c);
+        }
+        return line.toString();
+    }
+}
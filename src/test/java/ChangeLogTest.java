@@ -0,0 +1,66 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+
+public class ChangeLogTest {
+    private static WeatherEntry reading(String stationId) {
+        HashMap<String, String> body = new HashMap<>();
+        body.put("id", stationId);
+        body.put("air_temp", "13.3");
+        return new WeatherEntry(body, "2024-09-01T22:00:00");
+    }
+
+    @Test
+    public void pagesAfterCursorTest() {
+        ChangeLog log = new ChangeLog(10);
+        String start = log.cursor();
+        log.put(3, "A", reading("A"));
+        log.put(5, "B", reading("B"));
+        log.removed("expired", "A");
+        log.put(8, "C", reading("C"));
+
+        // Pages follow on from each other, oldest first
+        List<ChangeLog.Change> page = log.since(start, 2);
+        assertEquals(List.of("A", "B"), List.of(page.get(0).stationId, page.get(1).stationId));
+        String next = log.cursorAfter(start, page);
+        page = log.since(next, 2);
+        assertEquals("expired", page.get(0).type);
+        assertNull(page.get(0).entry);
+        // A removal takes the Lamport time of the change before it, so times never go back
+        assertEquals(5, page.get(0).lamportTime);
+        assertEquals(8, page.get(1).lamportTime);
+        next = log.cursorAfter(next, page);
+        assertEquals(log.cursor(), next);
+
+        // Nothing new: no changes, and the same cursor
+        assertTrue(log.since(next, 2).isEmpty());
+        assertEquals(next, log.cursorAfter(next, log.since(next, 2)));
+        assertEquals(4, log.since(null, 100).size());
+    }
+
+    @Test
+    public void cursorOffTheLogTest() {
+        ChangeLog log = new ChangeLog(3);
+        String start = log.cursor();
+        log.put(1, "A", reading("A"));
+        String afterFirst = log.cursor();
+        for (int i = 2; i <= 4; i++) log.put(i, "S" + i, reading("S" + i));
+
+        // Change 1 was pushed out: a cursor before it must resync, one after it need not
+        assertNull(log.since(start, 10));
+        assertNull(log.since(null, 10));
+        assertEquals(3, log.since(afterFirst, 10).size());
+
+        // A cursor of another log, e.g. from before a restart, must resync; a malformed one is an error
+        assertNull(log.since(new ChangeLog(3).cursor(), 10));
+        assertThrows(IllegalArgumentException.class, () -> log.since("nonsense", 10));
+        String ahead = afterFirst.substring(0, afterFirst.indexOf(':') + 1) + "99";
+        assertThrows(IllegalArgumentException.class, () -> log.since(ahead, 10));
+    }
+}
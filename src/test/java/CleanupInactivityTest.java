@@ -1,7 +1,7 @@
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
-import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.BeforeAll;
 import com.google.gson.Gson;
@@ -15,15 +15,10 @@ public class CleanupInactivityTest {
     private static String jsonData = "";
     private static final String port = "4567";
     private final String serverDetails = "localhost:" + port;
-    private static Thread serverThread;
+    private AggregationServer server;
 
     @BeforeAll
     static void setup() {
-        // Start the server in a separate thread
-        String[] arguments = { port };
-        serverThread = new Thread(() -> AggregationServer.main(arguments));
-        serverThread.start();
-
         String filePath = "weather_1.txt";
         try {
             // Parse the file
@@ -36,22 +31,21 @@ public class CleanupInactivityTest {
         }
     }
 
+    @BeforeEach
+    public void startServer() throws IOException {
+        // Each test gets a fresh server, with its own storage directory
+        server = new AggregationServer(Integer.parseInt(port), "target/data/" + port);
+        server.start();
+    }
+
     @AfterEach
-    public void cleanUpServer() {
+    public void stopServer() {
+        server.stop();
         try {
-            Files.deleteIfExists(AggregationServer.weatherFile.filePath);
+            Files.deleteIfExists(server.weatherFile.filePath);
         } catch (IOException e) {
             System.err.println("Error deleting weather storage");
         }
-        AggregationServer.weatherData = new HashMap<>();
-        AggregationServer.clock = new LamportClock();
-    }
-
-    @AfterAll
-    static void shutdownServer() throws InterruptedException {
-        AggregationServer.shutdown();
-        serverThread.interrupt();
-        serverThread.join();
     }
 
     @Test
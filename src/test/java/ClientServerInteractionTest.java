@@ -1,8 +1,8 @@
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
-import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.BeforeAll;
 import com.google.gson.Gson;
@@ -17,7 +17,7 @@ public class ClientServerInteractionTest {
     private static String jsonData2 = "";
     private static final String port = "4568";
     private final String serverDetails = "localhost:" + port;
-    private static Thread serverThread;
+    private AggregationServer server;
 
     private static String readFileAsJson(String filePath) {
         try {
@@ -33,31 +33,25 @@ public class ClientServerInteractionTest {
 
     @BeforeAll
     static void setup() {
-        // Start the server in a separate thread
-        String[] arguments = { port };
-        serverThread = new Thread(() -> AggregationServer.main(arguments));
-        serverThread.start();
-
         jsonData1 = readFileAsJson("weather_1.txt");
         jsonData2 = readFileAsJson("weather_2.txt");
     }
 
+    @BeforeEach
+    public void startServer() throws IOException {
+        // Each test gets a fresh server, with its own storage directory
+        server = new AggregationServer(Integer.parseInt(port), "target/data/" + port);
+        server.start();
+    }
+
     @AfterEach
-    public void cleanUpServer() {
+    public void stopServer() {
+        server.stop();
         try {
-            Files.deleteIfExists(AggregationServer.weatherFile.filePath);
+            Files.deleteIfExists(server.weatherFile.filePath);
         } catch (IOException e) {
             System.err.println("Error deleting weather storage");
         }
-        AggregationServer.weatherData = new HashMap<>();
-        AggregationServer.clock = new LamportClock();
-    }
-
-    @AfterAll
-    static void shutdownServer() throws InterruptedException {
-        AggregationServer.shutdown();
-        serverThread.interrupt();
-        serverThread.join();
     }
 
     @Test
@@ -0,0 +1,115 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.BeforeAll;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
+
+public class ContentFeedTest {
+    private static final String port = "4571";
+    private final String serverDetails = "localhost:" + port;
+    private AggregationServer server;
+    private static final Path feedDir = Paths.get("target/feed");
+
+    private static String station(String id, String airTemp) {
+        return "id:" + id + "\nname:Station " + id + "\nstate: SA\nair_temp:" + airTemp + "\n";
+    }
+
+    @BeforeAll
+    static void setup() throws IOException {
+        Files.createDirectories(feedDir);
+    }
+
+    @BeforeEach
+    public void startServer() throws IOException {
+        // Each test gets a fresh server, with its own storage directory
+        server = new AggregationServer(Integer.parseInt(port), "target/data/" + port);
+        server.start();
+    }
+
+    @AfterEach
+    public void stopServer() {
+        server.stop();
+        try {
+            Files.deleteIfExists(server.weatherFile.filePath);
+            Files.deleteIfExists(feedDir.resolve("stations.txt"));
+        } catch (IOException e) {
+            System.err.println("Error deleting weather storage");
+        }
+    }
+
+    // Poll until the station's latest air_temp matches, or give up after a few seconds
+    private String waitForAirTemp(GETClient client, String stationId, String airTemp) throws InterruptedException {
+        String body = "";
+        for (int i = 0; i < 50; i++) {
+            HashMap<String, String> response = client.sendGetRequest(stationId);
+            body = response.get("body");
+            if (body.contains("\"air_temp\":\"" + airTemp + "\"")) break;
+            Thread.sleep(100);
+        }
+        return body;
+    }
+
+    @Test
+    public void feedPushesChangedStationsTest() throws Exception {
+        Path file = feedDir.resolve("stations.txt");
+        ContentFeed feed = new ContentFeed(serverDetails, Collections.singletonList(feedDir), 100, 10000);
+        Thread feedThread = new Thread(feed::run);
+
+        try {
+            // Step 1: A file with two station blocks is picked up and both stations are created
+            Files.writeString(file, station("IDS70001", "10.0") + station("IDS70002", "20.0"));
+            feedThread.start();
+
+            GETClient client = new GETClient(serverDetails);
+            assertTrue(waitForAirTemp(client, "IDS70001", "10.0").contains("10.0"));
+            assertTrue(waitForAirTemp(client, "IDS70002", "20.0").contains("20.0"));
+
+            // Step 2: Only the changed station is pushed again
+            Files.writeString(file, station("IDS70001", "11.5") + station("IDS70002", "20.0"));
+            assertTrue(waitForAirTemp(client, "IDS70001", "11.5").contains("11.5"));
+            assertEquals(2, server.weatherData.get("IDS70001").size());
+            assertEquals(1, server.weatherData.get("IDS70002").size());
+
+            // The feed kept one connection, so its clock has advanced past every response
+            assertTrue(feed.clock.getTime() >= 6);
+        } finally {
+            feed.stop();
+            feedThread.join();
+        }
+    }
+
+    @Test
+    public void heartbeatResendsUnchangedStationTest() throws Exception {
+        Path file = feedDir.resolve("stations.txt");
+        ContentFeed feed = new ContentFeed(serverDetails, Collections.singletonList(feedDir), 100, 300);
+        Thread feedThread = new Thread(feed::run);
+
+        try {
+            Files.writeString(file, station("IDS70003", "15.0"));
+            feedThread.start();
+            GETClient client = new GETClient(serverDetails);
+            assertTrue(waitForAirTemp(client, "IDS70003", "15.0").contains("15.0"));
+
+            // The file does not change, yet the station is sent again every heartbeat interval. The server
+            // takes each as a duplicate, which keeps the station alive without adding an entry.
+            long duplicates = server.metrics.value("put.duplicates");
+            for (int i = 0; i < 50 && server.metrics.value("put.duplicates") < duplicates + 2; i++) {
+                Thread.sleep(100);
+            }
+            assertTrue(server.metrics.value("put.duplicates") >= duplicates + 2);
+            assertEquals(1, server.weatherData.get("IDS70003").size());
+        } finally {
+            feed.stop();
+            feedThread.join();
+        }
+    }
+}
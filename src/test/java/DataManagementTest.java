@@ -1,34 +1,34 @@
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
-import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.BeforeAll;
 import com.google.gson.Gson;
 
 import java.io.IOException;
 import java.nio.file.Files;
+import java.time.LocalDateTime;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.Map;
 
 public class DataManagementTest {
     private static String jsonData = "";
+    private static Map<String, String> dataMap = new HashMap<>();
     private static String port = "5678";
     private final String serverDetails = "localhost:" + port;
-    private static Thread serverThread;
+    private AggregationServer server;
 
     @BeforeAll
     static void setup() {
-        // Start the server in a separate thread
-        String[] arguments = { port };
-        serverThread = new Thread(() -> AggregationServer.main(arguments));
-        serverThread.start();
-
         String filePath = "weather_1.txt";
         try {
             // Parse the file
-            Map<String, String> dataMap = ContentServer.parseFile(filePath);
+            dataMap = ContentServer.parseFile(filePath);
 
             // Convert to JSON
             jsonData = new Gson().toJson(dataMap);
@@ -37,22 +37,21 @@ public class DataManagementTest {
         }
     }
 
+    @BeforeEach
+    public void startServer() throws IOException {
+        // Each test gets a fresh server, with its own storage directory
+        server = new AggregationServer(Integer.parseInt(port), "target/data/" + port);
+        server.start();
+    }
+
     @AfterEach
-    public void cleanUpServer() {
+    public void stopServer() {
+        server.stop();
         try {
-            Files.deleteIfExists(AggregationServer.weatherFile.filePath);
+            Files.deleteIfExists(server.weatherFile.filePath);
         } catch (IOException e) {
             System.err.println("Error deleting weather storage");
         }
-        AggregationServer.weatherData = new HashMap<>();
-        AggregationServer.clock = new LamportClock();
-    }
-
-    @AfterAll
-    static void shutdownServer() throws InterruptedException {
-        AggregationServer.shutdown();
-        serverThread.interrupt();
-        serverThread.join();
     }
 
     @Test
@@ -63,9 +62,11 @@ public class DataManagementTest {
             // Create ContentServer
             ContentServer contentServer = new ContentServer(serverDetails);
 
-            // Loop to send 25 PUT requests to the Aggregation Server
+            // Loop to send 25 PUT requests to the Aggregation Server, each with a new reading
             for (int i = 1; i <= 25; i++) {
-                contentServer.sendPutRequest(jsonData);
+                Map<String, String> reading = new HashMap<>(dataMap);
+                reading.put("air_temp", String.valueOf(i));
+                contentServer.sendPutRequest(new Gson().toJson(reading));
             }
         } catch (IOException e) {
             // Handle both ContentServer creation and PUT request exceptions here
@@ -73,7 +74,70 @@ public class DataManagementTest {
         }
 
         // Verify that exactly 20 records are kept for the station
-        Deque<WeatherEntry> weatherList = AggregationServer.weatherData.get(stationId);
+        Deque<WeatherEntry> weatherList = server.weatherData.get(stationId);
         assertEquals(20, weatherList.size());
     }
+
+    @Test
+    public void duplicatePutTest() {
+        String stationId = "IDS60901";
+        long duplicates = server.metrics.value("put.duplicates");
+
+        try {
+            ContentServer contentServer = new ContentServer(serverDetails);
+            HashMap<String, String> response = contentServer.sendPutRequest(jsonData);
+            assertEquals(201, Integer.parseInt(response.get("Status-Code")));
+            assertNull(response.get("Duplicate"));
+
+            // Sending the same observation again neither adds an entry nor pushes one out
+            for (int i = 0; i < 3; i++) {
+                response = contentServer.sendPutRequest(jsonData);
+                assertEquals(200, Integer.parseInt(response.get("Status-Code")));
+                assertEquals("true", response.get("Duplicate"));
+            }
+            assertEquals(1, server.weatherData.get(stationId).size());
+            assertEquals(duplicates + 3, server.metrics.value("put.duplicates"));
+
+            // A changed observation is applied as usual
+            Map<String, String> reading = new HashMap<>(dataMap);
+            reading.put("air_temp", "99.0");
+            response = contentServer.sendPutRequest(new Gson().toJson(reading));
+            assertEquals(200, Integer.parseInt(response.get("Status-Code")));
+            assertNull(response.get("Duplicate"));
+            assertEquals(2, server.weatherData.get(stationId).size());
+        } catch (IOException e) {
+            System.out.println("Error occurred: " + e.getMessage());
+        }
+    }
+
+    @Test
+    public void stationBudgetEvictionTest() {
+        long evicted = server.metrics.value("budget.evicted_stations");
+        server.budget = new StationBudget(5, StationBudget.DEFAULT_MAX_BYTES);
+        // Ids of this run only, as the archive outlives the server
+        String prefix = "BURST" + System.currentTimeMillis() + "_";
+
+        try {
+            ContentServer contentServer = new ContentServer(serverDetails);
+
+            // A burst of new station ids never holds more than the budget
+            for (int i = 0; i < 20; i++) {
+                Map<String, String> reading = new HashMap<>(dataMap);
+                reading.put("id", prefix + i);
+                HashMap<String, String> response = contentServer.sendPutRequest(new Gson().toJson(reading));
+                assertEquals(201, Integer.parseInt(response.get("Status-Code")));
+                assertTrue(server.weatherData.size() <= 5);
+            }
+            assertEquals(evicted + 15, server.metrics.value("budget.evicted_stations"));
+            assertEquals(5, server.metrics.value("budget.stations"));
+
+            // The oldest stations were evicted, and their readings spilled to the archive
+            assertFalse(server.weatherData.containsKey(prefix + 0));
+            assertTrue(server.weatherData.containsKey(prefix + 19));
+            assertEquals(1, server.archive.read(prefix + 0,
+                    LocalDateTime.of(1970, 1, 1, 0, 0), LocalDateTime.of(9999, 12, 31, 23, 59)).size());
+        } catch (IOException e) {
+            System.out.println("Error occurred: " + e.getMessage());
+        }
+    }
 }
@@ -1,7 +1,9 @@
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
-import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.BeforeAll;
 import com.google.gson.Gson;
@@ -13,21 +15,18 @@ import java.nio.file.Paths;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class FailureRecoveryTest {
     private static String jsonData = "";
-    private static Thread serverThread;
+    private AggregationServer server;
     private static final String port = "4569";
     private final String serverDetails = "localhost:" + port;
 
     @BeforeAll
     static void setup() {
-        // Start the server in a separate thread
-        String[] arguments = { port };
-        serverThread = new Thread(() -> AggregationServer.main(arguments));
-        serverThread.start();
-
         String filePath = "weather_1.txt";
         try {
             // Parse the file
@@ -40,22 +39,21 @@ public class FailureRecoveryTest {
         }
     }
 
+    @BeforeEach
+    public void startServer() throws IOException {
+        // Each test gets a fresh server, with its own storage directory
+        server = new AggregationServer(Integer.parseInt(port), "target/data/" + port);
+        server.start();
+    }
+
     @AfterEach
-    public void cleanUpServer() {
+    public void stopServer() {
+        server.stop();
         try {
-            Files.deleteIfExists(AggregationServer.weatherFile.filePath);
+            Files.deleteIfExists(server.weatherFile.filePath);
         } catch (IOException e) {
             System.err.println("Error deleting weather storage");
         }
-        AggregationServer.weatherData = new HashMap<>();
-        AggregationServer.clock = new LamportClock();
-    }
-
-    @AfterAll
-    static void shutdownServer() throws InterruptedException {
-        AggregationServer.shutdown();
-        serverThread.interrupt();
-        serverThread.join();
     }
 
     @Test
@@ -70,13 +68,10 @@ public class FailureRecoveryTest {
 
             // Interrupt and shut down the server
             System.out.println("Interrupting the server...");
-            AggregationServer.shutdown();
-            serverThread.interrupt();
-            serverThread.join();  // Wait for the server to stop
+            server.stop();  // Returns once the server has stopped
 
-            // Call the restart method
-            serverThread = new Thread(AggregationServer::restart);
-            serverThread.start();
+            // Call the restart method, which returns once the data is recovered
+            server.restart();
 
             // Send a GET request
             GETClient client = new GETClient(serverDetails);
@@ -84,8 +79,6 @@ public class FailureRecoveryTest {
 
             // The data received by the client should be the same as the one sent by the content server
             assertEquals(jsonData, getResponse.get("body"));
-        } catch (InterruptedException e) {
-            System.out.println("Error occurred: " + e.getMessage());
         } catch (IOException e) {
             System.out.println("Server stops");
         }
@@ -94,7 +87,7 @@ public class FailureRecoveryTest {
     @Test
     public void recoveryBetweenFilesWriteAndMoveTest() {
         // Step 1: Initialize paths and the storage file
-        Path filePath = Paths.get("target/data/temp_weather_data.json.tmp");
+        Path filePath = Paths.get("target/data/" + port, "temp_weather_data.json.tmp");
         String stationId = "IDS60901";
         Map<String, Deque<WeatherEntry>> weatherData = new HashMap<>();
         weatherData.put(stationId, new LinkedList<>());
@@ -107,21 +100,16 @@ public class FailureRecoveryTest {
 
             // Step 3: Simulate server crash before `Files.move`
             System.out.println("Interrupting the server...");
-            AggregationServer.shutdown();
-            serverThread.interrupt();
-            serverThread.join();  // Wait for the server to stop
+            server.stop();  // Returns once the server has stopped
 
-            // Call the restart method
-            serverThread = new Thread(AggregationServer::restart);
-            serverThread.start();
+            // Call the restart method, which returns once the data is recovered
+            server.restart();
 
             // Step 4: Verify the recovered data from the temp file is correct
             GETClient client = new GETClient(serverDetails);
             HashMap<String, String> getResponse = client.sendGetRequest(stationId);
             System.out.println("body: " + getResponse.get("body"));
             assertEquals(jsonData, getResponse.get("body"));
-        } catch (InterruptedException e) {
-            System.out.println("Error occurred: " + e.getMessage());
         } catch (IOException e) {
             System.out.println("Server stops");
         }
@@ -140,9 +128,7 @@ public class FailureRecoveryTest {
 
             // Simulate server shutdown
             System.out.println("Interrupting the server...");
-            AggregationServer.shutdown();
-            serverThread.interrupt();
-            serverThread.join();  // Wait for the server to stop
+            server.stop();  // Returns once the server has stopped
 
             // Create a thread for running the GET request
             Thread clientRequestThread = new Thread(() -> {
@@ -157,8 +143,7 @@ public class FailureRecoveryTest {
             clientRequestThread.start();
 
             // Call the restart method
-            serverThread = new Thread(AggregationServer::restart);
-            serverThread.start();
+            server.restart();
 
             // Wait for the client request thread to finish
             clientRequestThread.join();
@@ -168,4 +153,47 @@ public class FailureRecoveryTest {
             System.out.println("Server stops");
         }
     }
+
+    @Test
+    public void hotRestartKeepsStateTest() throws Exception {
+        String stationId = "IDS60901";
+        Map<String, Deque<WeatherEntry>> weatherData = server.weatherData;
+        List<Integer> statusCodes = new CopyOnWriteArrayList<>();
+
+        ContentServer contentServer = new ContentServer(serverDetails);
+        GETClient client = new GETClient(serverDetails);
+        Map<String, String> dataMap = ContentServer.parseFile("weather_1.txt");
+
+        // PUTs keep arriving on an open connection while the server is handed over
+        Thread putThread = new Thread(() -> {
+            try {
+                for (int i = 0; i < 50; i++) {
+                    dataMap.put("air_temp", String.valueOf(i));
+                    HashMap<String, String> response = contentServer.sendPutRequest(new Gson().toJson(dataMap));
+                    statusCodes.add(Integer.parseInt(response.get("Status-Code")));
+                }
+            } catch (IOException e) {
+                System.out.println("Error occurred: " + e.getMessage());
+            }
+        });
+        putThread.start();
+        Thread.sleep(20);
+        int clockBefore = server.clock.getTime();
+        server = server.hotRestart();
+        putThread.join();
+
+        // Every PUT was answered, none was lost, and nothing was reloaded from storage
+        assertEquals(50, statusCodes.size());
+        assertTrue(statusCodes.stream().allMatch(code -> code == 200 || code == 201));
+        assertEquals(50, server.metrics.value("put.applied"));
+        assertSame(weatherData, server.weatherData);
+        assertTrue(server.clock.getTime() >= clockBefore);
+        assertEquals(1, server.metrics.value("restart.hot"));
+
+        // The connection opened before the restart is served by the new instance
+        HashMap<String, String> getResponse = client.sendGetRequest(stationId);
+        assertEquals(200, Integer.parseInt(getResponse.get("Status-Code")));
+        assertTrue(getResponse.get("body").contains("\"air_temp\":\"49\""));
+        assertTrue(server.metrics.value("restart.first_response_micros") > 0);
+    }
 }
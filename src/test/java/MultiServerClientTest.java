@@ -0,0 +1,176 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import com.google.gson.Gson;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class MultiServerClientTest {
+    private static final String OK = "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\n{}";
+
+    // Accepts one connection per entry of script and answers each request on it with the next response
+    // of its entry. A connection with no responses is closed as soon as it is accepted, as a server
+    // closes a connection left idle.
+    private static Thread scriptedServer(ServerSocket listener, List<List<String>> script) {
+        Thread thread = new Thread(() -> {
+            for (List<String> responses : script) {
+                try (Socket socket = listener.accept()) {
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                            StandardCharsets.UTF_8));
+                    OutputStream out = socket.getOutputStream();
+                    for (String response : responses) {
+                        String line;
+                        while ((line = in.readLine()) != null && !line.isEmpty()) {
+                            // Request line and headers
+                        }
+                        out.write(response.getBytes(StandardCharsets.UTF_8));
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    @Test
+    public void balancedReadsWithFailoverTest() throws IOException {
+        AggregationServer first = new AggregationServer(4578, "target/data/4578");
+        AggregationServer second = new AggregationServer(4579, "target/data/4579");
+        first.start();
+        second.start();
+        try {
+            // Both servers hold the same reading
+            String jsonData = new Gson().toJson(ContentServer.parseFile("weather_1.txt"));
+            new ContentServer("localhost:4578").sendPutRequest(jsonData);
+            new ContentServer("localhost:4579").sendPutRequest(jsonData);
+
+            // With no request outstanding, the servers take turns
+            GETClient client = new GETClient("localhost:4578,localhost:4579");
+            for (int i = 0; i < 10; i++) {
+                assertEquals("200", client.sendGetRequest("IDS60901").get("Status-Code"));
+            }
+            long sentToSecond = client.requestsSentTo("localhost:4579");
+            assertTrue(client.requestsSentTo("localhost:4578") >= 4 && sentToSecond >= 4);
+
+            // A server that stops is replaced at once, and then avoided while it backs off
+            first.stop();
+            long start = System.nanoTime();
+            for (int i = 0; i < 10; i++) {
+                assertEquals("200", client.sendGetRequest("IDS60901").get("Status-Code"));
+            }
+            assertTrue(System.nanoTime() - start < 1_000_000_000L);
+            assertTrue(client.requestsSentTo("localhost:4578") <= 7);
+            assertTrue(client.requestsSentTo("localhost:4579") >= sentToSecond + 10);
+        } finally {
+            first.stop();
+            second.stop();
+            Files.deleteIfExists(first.weatherFile.filePath);
+            Files.deleteIfExists(second.weatherFile.filePath);
+        }
+    }
+
+    @Test
+    public void hedgedReadTest() throws IOException {
+        AggregationServer server = new AggregationServer(4581, "target/data/4581");
+        server.start();
+        // Accepts connections, through the backlog, but never answers
+        ServerSocket hung = new ServerSocket(4580);
+        try {
+            new ContentServer("localhost:4581").sendPutRequest(new Gson().toJson(ContentServer.parseFile("weather_1.txt")));
+
+            // The first request goes to the hung server, and is hedged to the other one
+            GETClient client = new GETClient("localhost:4580,localhost:4581");
+            long start = System.nanoTime();
+            Map<String, String> response = client.sendGetRequest("IDS60901");
+            assertEquals("200", response.get("Status-Code"));
+            assertTrue(System.nanoTime() - start < 1_000_000_000L);
+            assertEquals(1, client.hedges());
+
+            // Its request is still outstanding, so the next ones go to the other server only
+            for (int i = 0; i < 5; i++) {
+                assertEquals("200", client.sendGetRequest("IDS60901").get("Status-Code"));
+            }
+            assertEquals(1, client.requestsSentTo("localhost:4580"));
+            assertEquals(1, client.hedges());
+        } finally {
+            hung.close();
+            server.stop();
+            Files.deleteIfExists(server.weatherFile.filePath);
+        }
+    }
+
+    @Test
+    public void failedResponsesAndRetryAfterTest() throws Exception {
+        try (ServerSocket listener = new ServerSocket(4582)) {
+            // A busy server answers 503, and asks the client to come back in a second
+            String busy = "HTTP/1.1 503 Service Unavailable\r\nRetry-After: 1\r\nContent-Length: 0\r\n\r\n";
+            scriptedServer(listener, List.of(List.of(busy, OK)));
+
+            GETClient client = new GETClient("localhost:4582");
+            long start = System.nanoTime();
+            Map<String, String> response = client.sendGetRequest("IDS60901");
+            assertEquals("200", response.get("Status-Code"));
+            assertTrue(System.nanoTime() - start >= 1_000_000_000L);
+            assertEquals(2, client.requestsSentTo("localhost:4582"));
+        }
+
+        HashMap<String, String> response = new HashMap<>();
+        for (String statusCode : new String[] { "500", "503", "429" }) {
+            response.put("Status-Code", statusCode);
+            assertTrue(GETClient.isFailure(response));
+        }
+        for (String statusCode : new String[] { "200", "204", "304", "400", "404" }) {
+            response.put("Status-Code", statusCode);
+            assertFalse(GETClient.isFailure(response));
+        }
+        assertEquals(2000, GETClient.parseRetryAfter("2"));
+        assertEquals(30_000, GETClient.parseRetryAfter("3600"));
+        assertEquals(0, GETClient.parseRetryAfter("Wed, 21 Oct 2026 07:28:00 GMT"));
+        assertEquals(0, GETClient.parseRetryAfter(null));
+    }
+
+    @Test
+    public void stalePooledConnectionTest() throws Exception {
+        try (ServerSocket listener = new ServerSocket(4583)) {
+            // The connection made by the constructor is closed by the server before it is used
+            scriptedServer(listener, List.of(List.of(), List.of(OK)));
+
+            // The request is sent again at once on a new connection, without a retry round or backoff
+            GETClient client = new GETClient("localhost:4583");
+            Thread.sleep(100);
+            long start = System.nanoTime();
+            assertEquals("200", client.sendGetRequest("IDS60901").get("Status-Code"));
+            assertTrue(System.nanoTime() - start < 100_000_000L);
+            assertEquals(1, client.requestsSentTo("localhost:4583"));
+        }
+    }
+
+    @Test
+    public void backoffWithJitterTest() {
+        Random random = new Random(42);
+        for (int attempt = 1; attempt <= 8; attempt++) {
+            long backoff = Math.min(4000, 250L << (attempt - 1));
+            for (int i = 0; i < 100; i++) {
+                long delay = GETClient.backoffMillis(attempt, random);
+                assertTrue(delay >= backoff / 2 && delay <= backoff);
+            }
+        }
+    }
+}
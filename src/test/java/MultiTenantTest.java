@@ -0,0 +1,54 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+public class MultiTenantTest {
+    @Test
+    public void isolatedServersWithSharedPoolsTest() throws IOException, InterruptedException {
+        ExecutorService clientPool = Executors.newCachedThreadPool();
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+        AggregationServer north = new AggregationServer(4573, "target/data/north", clientPool, scheduler);
+        AggregationServer south = new AggregationServer(4574, "target/data/south", clientPool, scheduler);
+        north.start();
+        south.start();
+
+        try {
+            Map<String, String> dataMap = ContentServer.parseFile("weather_1.txt");
+            String jsonData = new Gson().toJson(dataMap);
+
+            // A reading sent to one server is not seen by the other
+            ContentServer contentServer = new ContentServer("localhost:4573");
+            HashMap<String, String> response = contentServer.sendPutRequest(jsonData);
+            assertEquals(201, Integer.parseInt(response.get("Status-Code")));
+            GETClient southClient = new GETClient("localhost:4574");
+            assertEquals(204, Integer.parseInt(southClient.sendGetRequest("IDS60901").get("Status-Code")));
+
+            // Each server has its own clock and metrics
+            assertEquals(3, north.clock.getTime());
+            assertEquals(1, north.metrics.value("put.applied"));
+            assertEquals(0, south.metrics.value("put.applied"));
+
+            // Stopping one server leaves the shared pools, and the other server, running
+            north.stop();
+            response = new ContentServer("localhost:4574").sendPutRequest(jsonData);
+            assertEquals(201, Integer.parseInt(response.get("Status-Code")));
+            assertEquals(200, Integer.parseInt(southClient.sendGetRequest("IDS60901").get("Status-Code")));
+        } finally {
+            north.stop();
+            south.stop();
+            Files.deleteIfExists(north.weatherFile.filePath);
+            Files.deleteIfExists(south.weatherFile.filePath);
+            clientPool.shutdown();
+            scheduler.shutdown();
+        }
+    }
+}
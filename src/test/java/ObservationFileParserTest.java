@@ -0,0 +1,102 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ObservationFileParserTest {
+    private static final Type MAP_TYPE = new TypeToken<HashMap<String, String>>() {}.getType();
+
+    private static Map<String, String> toMap(String json) {
+        return new Gson().fromJson(json, MAP_TYPE);
+    }
+
+    @Test
+    public void sameResultAsParseFileTest() throws IOException, URISyntaxException {
+        // The single-station resource must give the same key-value pairs as ContentServer.parseFile
+        Path resource = Paths.get(ClassLoader.getSystemResource("weather_1.txt").toURI());
+        List<ObservationFileParser.StationRecord> records = ObservationFileParser.parse(resource);
+
+        assertEquals(1, records.size());
+        assertEquals("IDS60901", records.get(0).id);
+        assertEquals(ContentServer.parseFile("weather_1.txt"), toMap(records.get(0).json));
+    }
+
+    @Test
+    public void multipleStationsTest() throws IOException {
+        Path file = Paths.get("target/parser/multi.txt");
+        Files.createDirectories(file.getParent());
+        String content = "header line without a station\r\n"
+                + "id:IDS1\r\nname:Quote \"and\" back\\slash\r\nair_temp:1.5\r\nair_temp:2.5\r\n"
+                + "\n"
+                + "  id : IDS2\nname:Mt Ngāyir\nnote:a:b\n"
+                + "id:\nname:no id value\n";
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+
+        List<ObservationFileParser.StationRecord> records = ObservationFileParser.parse(file);
+        assertEquals(2, records.size());
+
+        // A repeated key keeps the last value, and quotes are escaped
+        Map<String, String> first = toMap(records.get(0).json);
+        assertEquals("IDS1", records.get(0).id);
+        assertEquals("Quote \"and\" back\\slash", first.get("name"));
+        assertEquals("2.5", first.get("air_temp"));
+
+        // Keys and values are trimmed, only the first colon splits, and UTF-8 survives
+        Map<String, String> second = toMap(records.get(1).json);
+        assertEquals("IDS2", records.get(1).id);
+        assertEquals("Mt Ngāyir", second.get("name"));
+        assertEquals("a:b", second.get("note"));
+    }
+
+    @Test
+    public void recordWithManyFieldsTest() throws IOException {
+        Path file = Paths.get("target/parser/wide.txt");
+        Files.createDirectories(file.getParent());
+        StringBuilder content = new StringBuilder("id:IDS1\n");
+        for (int i = 0; i < 200; i++) content.append("field_").append(i).append(':').append(i).append('\n');
+        content.append("id:IDS2\nair_temp:1.5\n");
+        Files.write(file, content.toString().getBytes(StandardCharsets.UTF_8));
+
+        // No field is dropped, however many a record has
+        List<ObservationFileParser.StationRecord> records = ObservationFileParser.parse(file);
+        assertEquals(2, records.size());
+        Map<String, String> wide = toMap(records.get(0).json);
+        assertEquals(201, wide.size());
+        assertEquals("199", wide.get("field_199"));
+        assertEquals(Map.of("id", "IDS2", "air_temp", "1.5"), toMap(records.get(1).json));
+    }
+
+    @Test
+    public void parallelRangesKeepEveryStationTest() throws IOException {
+        // Large enough to be split across several ranges
+        Path file = Paths.get("target/parser/large.txt");
+        Files.createDirectories(file.getParent());
+        StringBuilder content = new StringBuilder();
+        int stations = 20000;
+        for (int i = 0; i < stations; i++) {
+            content.append("id:IDS").append(i).append('\n')
+                    .append("state: SA\n")
+                    .append("air_temp:").append(i % 40).append(".5\n");
+        }
+        Files.write(file, content.toString().getBytes(StandardCharsets.UTF_8));
+
+        List<ObservationFileParser.StationRecord> records = ObservationFileParser.parse(file);
+        assertEquals(stations, records.size());
+        for (int i = 0; i < stations; i++) {
+            assertEquals("IDS" + i, records.get(i).id);
+            assertEquals((i % 40) + ".5", toMap(records.get(i).json).get("air_temp"));
+        }
+    }
+}
@@ -0,0 +1,86 @@
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+
+// Compares ContentServer.parseFile (one classpath resource per station) with ObservationFileParser
+// (one memory-mapped file holding every station). Not run by "mvn test"; start it with
+//   mvn test-compile exec:java -Dexec.mainClass="ObservationParserBenchmark" -Dexec.classpathScope=test -Dexec.args="50000"
+public class ObservationParserBenchmark {
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws IOException {
+        int stations = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        Path dir = Paths.get("target/bench/parser");
+        Path stationDir = dir.resolve("stations");
+        Files.createDirectories(stationDir);
+
+        // Write the same readings once as a single multi-station file and once as one file per station
+        StringBuilder all = new StringBuilder();
+        for (int i = 0; i < stations; i++) {
+            String block = station(i);
+            all.append(block);
+            Files.write(stationDir.resolve("station_" + i + ".txt"), block.getBytes(StandardCharsets.UTF_8));
+        }
+        Path multiFile = dir.resolve("multi.txt");
+        Files.write(multiFile, all.toString().getBytes(StandardCharsets.UTF_8));
+        System.out.printf("%d stations, %.1f MB%n", stations, Files.size(multiFile) / 1e6);
+
+        ClassLoader original = Thread.currentThread().getContextClassLoader();
+        try (URLClassLoader loader = new URLClassLoader(new URL[] { stationDir.toUri().toURL() }, original)) {
+            Thread.currentThread().setContextClassLoader(loader);
+            for (int round = 1; round <= ROUNDS; round++) {
+                long start = System.nanoTime();
+                int bytes = 0;
+                for (int i = 0; i < stations; i++) {
+                    Map<String, String> dataMap = ContentServer.parseFile("station_" + i + ".txt");
+                    bytes += new Gson().toJson(dataMap).length();
+                }
+                report("parseFile", round, start, stations, bytes);
+            }
+        } finally {
+            Thread.currentThread().setContextClassLoader(original);
+        }
+
+        for (int round = 1; round <= ROUNDS; round++) {
+            long start = System.nanoTime();
+            int bytes = 0;
+            List<ObservationFileParser.StationRecord> records = ObservationFileParser.parse(multiFile);
+            for (ObservationFileParser.StationRecord record : records) bytes += record.json.length();
+            report("ObservationFileParser", round, start, records.size(), bytes);
+        }
+    }
+
+    private static String station(int i) {
+        return "id:IDS" + (60000 + i) + "\n"
+                + "name:Station " + i + "\n"
+                + "state: SA\n"
+                + "time_zone:CST\n"
+                + "lat:-34." + (i % 10) + "\n"
+                + "lon:138." + (i % 7) + "\n"
+                + "local_date_time:15/04:00pm\n"
+                + "local_date_time_full:20230715160000\n"
+                + "air_temp:" + (i % 35) + ".3\n"
+                + "apparent_t:9.5\n"
+                + "cloud:Partly cloudy\n"
+                + "dewpt:5.7\n"
+                + "press:1023.9\n"
+                + "rel_hum:60\n"
+                + "wind_dir:S\n"
+                + "wind_spd_kmh:15\n"
+                + "wind_spd_kt:8\n";
+    }
+
+    private static void report(String name, int round, long start, int stations, int bytes) {
+        double millis = (System.nanoTime() - start) / 1e6;
+        System.out.printf("%-22s round %d: %8.1f ms, %9.0f stations/s (%d payload chars)%n",
+                name, round, millis, stations / (millis / 1000), bytes);
+    }
+}
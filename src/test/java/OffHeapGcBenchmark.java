@@ -0,0 +1,93 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+// Compares the heap and the full GC pause with weatherData on the heap and in OffHeapWeatherData.
+// A full collection traces every live object, so its pause grows with the readings kept on the heap.
+// Not run by "mvn test"; start it with
+//   mvn test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test -Dexec.args="-cp %classpath OffHeapGcBenchmark 50000"
+// (on Java 21, where the Foreign Function & Memory API is a preview, add --enable-preview before -cp)
+public class OffHeapGcBenchmark {
+    private static final int ENTRIES_PER_STATION = 20;
+    private static final int COLLECTIONS = 5;
+    private static final String[] STATES = { "SA", "VIC", "NSW", "QLD", "WA", "TAS", "NT" };
+    private static final String[] CLOUDS = { "Partly cloudy", "Sunny", "Cloudy", "Showers" };
+
+    public static void main(String[] args) {
+        int stations = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+
+        long before = usedHeap();
+        Map<String, Deque<WeatherEntry>> heap = new HashMap<>();
+        fill(heap, stations);
+        report("heap", stations, usedHeap() - before, fullGcMillis());
+        Reference.reachabilityFence(heap);
+        heap = null;
+
+        before = usedHeap();
+        try (OffHeapWeatherData offHeap = new OffHeapWeatherData(ENTRIES_PER_STATION)) {
+            fill(offHeap, stations);
+            report("offheap", stations, usedHeap() - before, fullGcMillis());
+            System.out.printf("%-8s %8.1f MB allocated outside the heap%n", "", offHeap.allocatedBytes() / 1e6);
+        }
+    }
+
+    private static void fill(Map<String, Deque<WeatherEntry>> weatherData, int stations) {
+        LocalDateTime start = LocalDateTime.of(2024, 9, 1, 10, 0);
+        for (int i = 0; i < stations; i++) {
+            String id = "IDS" + i;
+            weatherData.put(id, new LinkedList<>());
+            Deque<WeatherEntry> updates = weatherData.get(id);
+            for (int j = 0; j < ENTRIES_PER_STATION; j++) {
+                updates.offerLast(new WeatherEntry(reading(i, j), start.plusSeconds(j)));
+            }
+        }
+    }
+
+    // A reading shaped like src/main/resources/weather_1.txt
+    private static HashMap<String, String> reading(int station, int update) {
+        HashMap<String, String> body = new HashMap<>();
+        body.put("id", "IDS" + station);
+        body.put("name", "Station " + station);
+        body.put("state", STATES[station % STATES.length]);
+        body.put("lat", String.valueOf(-10.0 - station % 300 / 10.0));
+        body.put("lon", String.valueOf(115.0 + station % 400 / 10.0));
+        body.put("local_date_time_full", "202307151604" + (10 + update));
+        body.put("air_temp", String.valueOf(update % 30 + 0.5));
+        body.put("cloud", CLOUDS[update % CLOUDS.length]);
+        body.put("press", String.valueOf(1000 + update % 40 + 0.9));
+        body.put("rel_hum", String.valueOf(40 + update % 50));
+        body.put("wind_spd_kmh", String.valueOf(update % 40));
+        return body;
+    }
+
+    // Average time of a full collection, as reported by the collectors
+    private static double fullGcMillis() {
+        long before = collectionMillis();
+        for (int i = 0; i < COLLECTIONS; i++) System.gc();
+        return (double) (collectionMillis() - before) / COLLECTIONS;
+    }
+
+    private static long collectionMillis() {
+        long millis = 0;
+        List<GarbageCollectorMXBean> collectors = new ArrayList<>(ManagementFactory.getGarbageCollectorMXBeans());
+        for (GarbageCollectorMXBean collector : collectors) millis += Math.max(0, collector.getCollectionTime());
+        return millis;
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static void report(String name, int stations, long bytes, double pauseMillis) {
+        System.out.printf("%-8s %8.1f MB on the heap for %d readings, full GC %6.1f ms%n",
+                name, bytes / 1e6, (long) stations * ENTRIES_PER_STATION, pauseMillis);
+    }
+}
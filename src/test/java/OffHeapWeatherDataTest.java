@@ -0,0 +1,164 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+public class OffHeapWeatherDataTest {
+    private static final LocalDateTime start = LocalDateTime.of(2024, 9, 1, 10, 0, 0, 123_456_789);
+
+    private static WeatherEntry reading(String id, int minute) {
+        HashMap<String, String> body = new HashMap<>();
+        body.put("id", id);
+        body.put("state", "SA");
+        body.put("air_temp", minute + ".5");
+        body.put("rel_hum", String.valueOf(minute));
+        body.put("press", "1023.90");
+        body.put("local_date_time_full", "20230715160400");
+        body.put("cloud", null);
+        return new WeatherEntry(body, start.plusMinutes(minute));
+    }
+
+    private static List<HashMap<String, String>> bodies(Deque<WeatherEntry> updates) {
+        List<HashMap<String, String>> bodies = new ArrayList<>();
+        for (WeatherEntry entry : updates) bodies.add(entry.getBody());
+        return bodies;
+    }
+
+    @Test
+    public void ringAndRoundTripTest() {
+        try (OffHeapWeatherData weatherData = new OffHeapWeatherData(3)) {
+            assertNull(weatherData.put("IDS1", new LinkedList<>()));
+            Deque<WeatherEntry> updates = weatherData.get("IDS1");
+            for (int minute = 0; minute < 3; minute++) assertTrue(updates.offerLast(reading("IDS1", minute)));
+
+            // The block is full; the server polls the oldest reading before adding a new one
+            assertFalse(updates.offerLast(reading("IDS1", 3)));
+            assertEquals(reading("IDS1", 0).getBody(), updates.pollFirst().getBody());
+            assertTrue(updates.offerLast(reading("IDS1", 3)));
+
+            // Texts, numbers, nulls and the timestamp come back as they went in, across the ring's wrap
+            List<HashMap<String, String>> expected = new ArrayList<>();
+            for (int minute = 1; minute <= 3; minute++) expected.add(reading("IDS1", minute).getBody());
+            assertEquals(expected, bodies(weatherData.get("IDS1")));
+            assertEquals(3, weatherData.get("IDS1").size());
+            WeatherEntry latest = updates.peekLast();
+            assertEquals(start.plusMinutes(3), latest.getTimestampAsLocalDateTime());
+            assertEquals("1023.90", latest.get("press"));
+            assertEquals(3.5, latest.getNumber("air_temp"));
+            assertTrue(latest.getBody().containsKey("cloud"));
+        }
+    }
+
+    @Test
+    public void removeDetachesReadingsTest() {
+        try (OffHeapWeatherData weatherData = new OffHeapWeatherData(20)) {
+            for (int i = 0; i < 300; i++) {
+                Deque<WeatherEntry> updates = new LinkedList<>();
+                updates.offerLast(reading("IDS" + i, 0));
+                updates.offerLast(reading("IDS" + i, 1));
+                weatherData.put("IDS" + i, updates);
+            }
+            assertEquals(300, weatherData.size());
+            Deque<WeatherEntry> view = weatherData.get("IDS0");
+
+            // Like the cleanup thread: remove through the iterator, then read the removed readings
+            Iterator<Map.Entry<String, Deque<WeatherEntry>>> iterator = weatherData.entrySet().iterator();
+            Map.Entry<String, Deque<WeatherEntry>> entry = iterator.next();
+            iterator.remove();
+            assertFalse(weatherData.containsKey(entry.getKey()));
+            assertEquals(2, entry.getValue().size());
+            assertEquals(entry.getKey(), entry.getValue().peekLast().get("id"));
+
+            Deque<WeatherEntry> removed = weatherData.remove("IDS0");
+            if (!"IDS0".equals(entry.getKey())) assertEquals(2, removed.size());
+            assertEquals(0, view.size());
+            assertNull(view.peekLast());
+
+            // The freed blocks are reused and views of the old stations stay empty
+            long allocated = weatherData.allocatedBytes();
+            weatherData.put("IDS0", new LinkedList<>());
+            weatherData.put(entry.getKey(), new LinkedList<>());
+            weatherData.get("IDS0").offerLast(reading("IDS0", 5));
+            assertEquals(allocated, weatherData.allocatedBytes());
+            assertEquals(0, view.size());
+            assertEquals(1, weatherData.get("IDS0").size());
+            assertEquals(300, weatherData.size());
+        }
+    }
+
+    @Test
+    public void oversizedReadingTest() {
+        try (OffHeapWeatherData weatherData = new OffHeapWeatherData(20)) {
+            HashMap<String, String> body = new HashMap<>();
+            for (int i = 0; i <= OffHeapWeatherData.MAX_FIELDS; i++) body.put("field" + i, String.valueOf(i));
+            WeatherEntry oversized = new WeatherEntry(body, start);
+            assertFalse(weatherData.fits(oversized));
+
+            Deque<WeatherEntry> updates = new LinkedList<>();
+            updates.offerLast(oversized);
+            assertThrows(IllegalArgumentException.class, () -> weatherData.put("IDS1", updates));
+            assertFalse(weatherData.containsKey("IDS1"));
+        }
+    }
+
+    @Test
+    public void poolsShrinkWithReadingsTest() {
+        try (OffHeapWeatherData weatherData = new OffHeapWeatherData(2)) {
+            weatherData.put("IDS1", new LinkedList<>());
+            Deque<WeatherEntry> updates = weatherData.get("IDS1");
+            assertTrue(updates.offerLast(reading("IDS1", 0)));
+            int pooled = weatherData.pooledStrings();
+
+            // Each reading brings a new text; polled readings give their texts back, so the two kept
+            // readings hold one more name and two more texts than the first
+            for (int minute = 1; minute < 1000; minute++) {
+                if (updates.size() == 2) updates.pollFirst();
+                HashMap<String, String> body = reading("IDS1", minute).getBody();
+                body.put("weather", "Text " + minute);
+                assertTrue(updates.offerLast(new WeatherEntry(body, start.plusMinutes(minute))));
+            }
+            assertEquals(pooled + 3, weatherData.pooledStrings());
+            assertEquals("Text 999", updates.peekLast().get("weather"));
+            assertEquals("Text 998", updates.peekFirst().get("weather"));
+
+            // A removed station gives back all of its names and texts
+            weatherData.remove("IDS1");
+            assertEquals(0, weatherData.pooledStrings());
+        }
+    }
+
+    @Test
+    public void removeOccurrenceTest() {
+        try (OffHeapWeatherData weatherData = new OffHeapWeatherData(4)) {
+            weatherData.put("IDS1", new LinkedList<>());
+            Deque<WeatherEntry> updates = weatherData.get("IDS1");
+            for (int minute = 0; minute < 4; minute++) assertTrue(updates.offerLast(reading("IDS1", minute)));
+            updates.pollFirst();
+            assertTrue(updates.offerLast(reading("IDS1", 1)));
+
+            // Readings are matched by value, and the ring closes up behind a removed one
+            assertTrue(updates.removeFirstOccurrence(reading("IDS1", 1)));
+            assertTrue(updates.remove(reading("IDS1", 3)));
+            assertFalse(updates.removeLastOccurrence(reading("IDS1", 9)));
+            List<HashMap<String, String>> expected = new ArrayList<>();
+            expected.add(reading("IDS1", 2).getBody());
+            expected.add(reading("IDS1", 1).getBody());
+            assertEquals(expected, bodies(updates));
+            assertTrue(updates.removeLastOccurrence(reading("IDS1", 1)));
+            assertEquals(1, updates.size());
+            assertEquals(reading("IDS1", 2).getBody(), updates.peekFirst().getBody());
+        }
+    }
+}
@@ -0,0 +1,128 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.time.LocalDateTime;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+public class PartitionedStorageFileTest {
+    private static final Path storageDir = Paths.get("target/partitioned-storage-test");
+    private static final LocalDateTime start = LocalDateTime.of(2024, 9, 1, 10, 0);
+
+    private static Map<String, Deque<WeatherEntry>> stations(int count) {
+        Map<String, Deque<WeatherEntry>> weatherData = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            Deque<WeatherEntry> updates = new LinkedList<>();
+            for (int minute = 0; minute < 3; minute++) {
+                HashMap<String, String> body = new HashMap<>();
+                body.put("id", "IDS" + i);
+                body.put("air_temp", String.valueOf(minute));
+                updates.offerLast(new WeatherEntry(body, start.plusMinutes(minute)));
+            }
+            weatherData.put("IDS" + i, updates);
+        }
+        return weatherData;
+    }
+
+    private static Map<String, List<HashMap<String, String>>> bodies(Map<String, Deque<WeatherEntry>> weatherData) {
+        Map<String, List<HashMap<String, String>>> bodies = new HashMap<>();
+        for (Map.Entry<String, Deque<WeatherEntry>> entry : weatherData.entrySet()) {
+            List<HashMap<String, String>> list = new LinkedList<>();
+            for (WeatherEntry weather : entry.getValue()) list.add(weather.getBody());
+            bodies.put(entry.getKey(), list);
+        }
+        return bodies;
+    }
+
+    @BeforeEach
+    public void cleanStorage() throws IOException {
+        if (!Files.exists(storageDir)) return;
+        try (Stream<Path> paths = Files.walk(storageDir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toArray(Path[]::new)) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    public void saveStationRewritesOnePartitionTest() throws IOException {
+        PartitionedStorageFile storage = new PartitionedStorageFile(storageDir.toString(), "weather_data");
+        Map<String, Deque<WeatherEntry>> weatherData = stations(100);
+        storage.saveDataToFile(weatherData);
+        assertEquals(100, storage.partitionWrites);
+
+        // One PUT writes one file, however many stations there are
+        Path untouched = storageDir.resolve("weather_data/IDS2.json");
+        Files.setLastModifiedTime(untouched, FileTime.fromMillis(0));
+        weatherData.get("IDS1").pollLast();
+        HashMap<String, String> body = new HashMap<>();
+        body.put("id", "IDS1");
+        body.put("air_temp", "99");
+        weatherData.get("IDS1").offerLast(new WeatherEntry(body, start.plusMinutes(3)));
+        storage.saveStation("IDS1", weatherData);
+        assertEquals(101, storage.partitionWrites);
+        assertEquals(0, Files.getLastModifiedTime(untouched).toMillis());
+
+        PartitionedStorageFile reopened = new PartitionedStorageFile(storageDir.toString(), "weather_data");
+        assertEquals(bodies(weatherData), bodies(reopened.recoverDataFromFile()));
+        assertEquals(300, reopened.lastRecoveredEntries);
+    }
+
+    @Test
+    public void removeAndIncompleteWriteTest() throws IOException {
+        PartitionedStorageFile storage = new PartitionedStorageFile(storageDir.toString(), "weather_data");
+        Map<String, Deque<WeatherEntry>> weatherData = stations(3);
+        storage.saveDataToFile(weatherData);
+
+        weatherData.remove("IDS0");
+        storage.removeStations(List.of("IDS0"), weatherData);
+        assertFalse(Files.exists(storageDir.resolve("weather_data/IDS0.json")));
+
+        // A crash before the move leaves a temporary file, which recovery discards
+        Path tempFile = storageDir.resolve("weather_data/temp_IDS1.json.tmp");
+        Files.write(tempFile, "{\"IDS1\": [".getBytes());
+        Map<String, Deque<WeatherEntry>> recovered =
+                new PartitionedStorageFile(storageDir.toString(), "weather_data").recoverDataFromFile();
+        assertEquals(bodies(weatherData), bodies(recovered));
+        assertFalse(Files.exists(tempFile));
+
+        // A full save drops partitions of stations that are gone
+        weatherData.remove("IDS2");
+        storage.saveDataToFile(weatherData);
+        assertFalse(Files.exists(storageDir.resolve("weather_data/IDS2.json")));
+        assertTrue(Files.exists(storageDir.resolve("weather_data/IDS1.json")));
+    }
+
+    @Test
+    public void unusualIdsGetTheirOwnPartitionTest() throws IOException {
+        PartitionedStorageFile storage = new PartitionedStorageFile(storageDir.toString(), "weather_data");
+        Map<String, Deque<WeatherEntry>> weatherData = new HashMap<>();
+        // " " and "IDS/1" are hex-encoded, and must not share a file with the plain id "x20"
+        for (String stationId : List.of(" ", "x20", "IDS/1")) {
+            HashMap<String, String> body = new HashMap<>();
+            body.put("id", stationId);
+            Deque<WeatherEntry> updates = new LinkedList<>();
+            updates.offerLast(new WeatherEntry(body, start));
+            weatherData.put(stationId, updates);
+        }
+        storage.saveDataToFile(weatherData);
+        assertTrue(Files.exists(storageDir.resolve("weather_data/%20.json")));
+        assertTrue(Files.exists(storageDir.resolve("weather_data/x20.json")));
+        assertEquals(bodies(weatherData),
+                bodies(new PartitionedStorageFile(storageDir.toString(), "weather_data").recoverDataFromFile()));
+    }
+}
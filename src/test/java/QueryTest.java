@@ -0,0 +1,373 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import com.google.gson.Gson;
+import com.google.gson.annotations.SerializedName;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class QueryTest {
+    private static final String port = "4572";
+    // A list of stations, as returned by the query endpoints
+    private static final Type STATIONS = new TypeToken<List<Map<String, String>>>() {}.getType();
+    private final String serverDetails = "localhost:" + port;
+    private AggregationServer server;
+
+    // A page of GET /changes.json, and one change in it
+    private static class ChangePage {
+        List<Change> changes;
+        String cursor;
+        boolean more;
+    }
+
+    private static class Change {
+        String type;
+        String id;
+        @SerializedName("lamport_time")
+        int lamportTime;
+        Map<String, String> body;
+    }
+
+    // Build a reading from weather_1.txt with a different id and position
+    private static String located(String id, String lat, String lon) throws IOException {
+        Map<String, String> dataMap = ContentServer.parseFile("weather_1.txt");
+        dataMap.put("id", id);
+        dataMap.put("lat", lat);
+        dataMap.put("lon", lon);
+        return new Gson().toJson(dataMap);
+    }
+
+    // Build a reading from weather_1.txt with a different id, state and air temperature
+    private static String reading(String id, String state, String airTemp) throws IOException {
+        Map<String, String> dataMap = ContentServer.parseFile("weather_1.txt");
+        dataMap.put("id", id);
+        dataMap.put("state", state);
+        dataMap.put("air_temp", airTemp);
+        return new Gson().toJson(dataMap);
+    }
+
+    @BeforeEach
+    public void startServer() throws IOException {
+        // Each test gets a fresh server, with its own storage directory
+        server = new AggregationServer(Integer.parseInt(port), "target/data/" + port);
+        server.start();
+    }
+
+    @AfterEach
+    public void stopServer() {
+        server.stop();
+        try {
+            Files.deleteIfExists(server.weatherFile.filePath);
+        } catch (IOException e) {
+            System.err.println("Error deleting weather storage");
+        }
+    }
+
+    @Test
+    public void stationAggregateSlidingWindowTest() throws IOException {
+        ContentServer contentServer = new ContentServer(serverDetails);
+        GETClient client = new GETClient(serverDetails);
+
+        // 22 readings with air_temp 1..22; only the last 20 (3..22) stay in the window
+        for (int i = 1; i <= 22; i++) {
+            contentServer.sendPutRequest(reading("IDS80001", "SA", String.valueOf(i)));
+        }
+
+        HashMap<String, String> response = client.sendAggregateRequest("id", "IDS80001");
+        assertEquals("200", response.get("Status-Code"));
+        Map<String, String> summary = new Gson().fromJson(response.get("body"),
+                new TypeToken<Map<String, String>>() {}.getType());
+        assertEquals("20", summary.get("entries"));
+        assertEquals("3.0", summary.get("air_temp_min"));
+        assertEquals("22.0", summary.get("air_temp_max"));
+        assertEquals("12.5", summary.get("air_temp_avg"));
+        // press is the same in every reading
+        assertEquals("1023.9", summary.get("press_min"));
+    }
+
+    @Test
+    public void stateAggregateTest() throws IOException {
+        ContentServer contentServer = new ContentServer(serverDetails);
+        GETClient client = new GETClient(serverDetails);
+
+        contentServer.sendPutRequest(reading("IDS80002", "SA", "10.0"));
+        contentServer.sendPutRequest(reading("IDS80003", "SA", "20.0"));
+        contentServer.sendPutRequest(reading("IDS80004", "VIC", "30.0"));
+
+        HashMap<String, String> response = client.sendAggregateRequest("state", "SA");
+        assertEquals("200", response.get("Status-Code"));
+        Map<String, String> summary = new Gson().fromJson(response.get("body"),
+                new TypeToken<Map<String, String>>() {}.getType());
+        assertEquals("2", summary.get("entries"));
+        assertEquals("10.0", summary.get("air_temp_min"));
+        assertEquals("20.0", summary.get("air_temp_max"));
+        assertEquals("15.0", summary.get("air_temp_avg"));
+
+        // A state without stations has no content
+        response = client.sendAggregateRequest("state", "NT");
+        assertEquals("204", response.get("Status-Code"));
+    }
+
+    @Test
+    public void filteredGetByStateTest() throws IOException {
+        ContentServer contentServer = new ContentServer(serverDetails);
+        GETClient client = new GETClient(serverDetails);
+
+        contentServer.sendPutRequest(reading("IDS80005", "SA", "10.0"));
+        contentServer.sendPutRequest(reading("IDS80006", "SA", "11.0"));
+        contentServer.sendPutRequest(reading("IDS80007", "VIC", "12.0"));
+
+        // All SA stations come back in one response, ordered by id
+        HashMap<String, String> response = client.sendQuery("/weather.json?state=SA");
+        assertEquals("200", response.get("Status-Code"));
+        List<Map<String, String>> stations = new Gson().fromJson(response.get("body"), STATIONS);
+        assertEquals(2, stations.size());
+        assertEquals("IDS80005", stations.get(0).get("id"));
+        assertEquals("IDS80006", stations.get(1).get("id"));
+
+        // A station that moves state leaves the old index entry
+        contentServer.sendPutRequest(reading("IDS80006", "VIC", "13.0"));
+        response = client.sendQuery("/weather.json?state=SA");
+        stations = new Gson().fromJson(response.get("body"), STATIONS);
+        assertEquals(1, stations.size());
+
+        // Several filters are combined
+        response = client.sendQuery("/weather.json?state=VIC&time_zone=CST");
+        stations = new Gson().fromJson(response.get("body"), STATIONS);
+        assertEquals(2, stations.size());
+        assertEquals("13.0", stations.get(0).get("air_temp"));
+
+        response = client.sendQuery("/weather.json?state=NT");
+        assertEquals("204", response.get("Status-Code"));
+    }
+
+    @Test
+    public void nearestAndBoundingBoxTest() throws IOException {
+        ContentServer contentServer = new ContentServer(serverDetails);
+        GETClient client = new GETClient(serverDetails);
+
+        contentServer.sendPutRequest(located("ADELAIDE", "-34.9", "138.6"));
+        contentServer.sendPutRequest(located("MELBOURNE", "-37.8", "144.9"));
+        contentServer.sendPutRequest(located("SYDNEY", "-33.9", "151.2"));
+        contentServer.sendPutRequest(located("PERTH", "-31.9", "115.9"));
+
+        // The two stations closest to a point near Adelaide, nearest first
+        HashMap<String, String> response = client.sendQuery("/weather.json?near=-36.0,139.5&k=2");
+        assertEquals("200", response.get("Status-Code"));
+        List<Map<String, String>> stations = new Gson().fromJson(response.get("body"), STATIONS);
+        assertEquals(2, stations.size());
+        assertEquals("ADELAIDE", stations.get(0).get("id"));
+        assertEquals("MELBOURNE", stations.get(1).get("id"));
+
+        // Asking for more stations than exist returns all of them
+        response = client.sendQuery("/weather.json?near=0,0&k=10");
+        stations = new Gson().fromJson(response.get("body"), STATIONS);
+        assertEquals(4, stations.size());
+        assertEquals("PERTH", stations.get(0).get("id"));
+
+        // South-eastern box: Melbourne and Sydney, ordered by id
+        response = client.sendQuery("/weather.json?bbox=-40,140,-30,155");
+        stations = new Gson().fromJson(response.get("body"), STATIONS);
+        assertEquals(2, stations.size());
+        assertEquals("MELBOURNE", stations.get(0).get("id"));
+        assertEquals("SYDNEY", stations.get(1).get("id"));
+
+        // A station that moves is found at its new position
+        contentServer.sendPutRequest(located("PERTH", "-35.0", "150.0"));
+        response = client.sendQuery("/weather.json?bbox=-40,140,-30,155");
+        stations = new Gson().fromJson(response.get("body"), STATIONS);
+        assertEquals(3, stations.size());
+
+        response = client.sendQuery("/weather.json?bbox=10,10,20,20");
+        assertEquals("204", response.get("Status-Code"));
+        response = client.sendQuery("/weather.json?bbox=10,10");
+        assertEquals("400", response.get("Status-Code"));
+    }
+
+    @Test
+    public void historyBeyondWindowTest() throws IOException {
+        // A fresh id, so history archived by earlier runs does not count
+        String stationId = "IDS9" + System.currentTimeMillis();
+        ContentServer contentServer = new ContentServer(serverDetails);
+        GETClient client = new GETClient(serverDetails);
+
+        for (int i = 1; i <= 25; i++) {
+            contentServer.sendPutRequest(reading(stationId, "SA", String.valueOf(i)));
+        }
+
+        // All 25 readings are available, although only 20 are kept in memory
+        HashMap<String, String> response = client.sendQuery("/history.json?id=" + stationId);
+        assertEquals("200", response.get("Status-Code"));
+        List<Map<String, Object>> entries = new Gson().fromJson(response.get("body"),
+                new TypeToken<List<Map<String, Object>>>() {}.getType());
+        assertEquals(25, entries.size());
+        assertEquals("1", ((Map<?, ?>) entries.get(0).get("body")).get("air_temp"));
+        assertEquals("25", ((Map<?, ?>) entries.get(24).get("body")).get("air_temp"));
+        assertEquals(20, server.weatherData.get(stationId).size());
+
+        // A range in the past has no content, and a bad date is rejected
+        response = client.sendQuery("/history.json?id=" + stationId + "&to=2000-01-01T00:00:00");
+        assertEquals("204", response.get("Status-Code"));
+        response = client.sendQuery("/history.json?id=" + stationId + "&from=yesterday");
+        assertEquals("400", response.get("Status-Code"));
+    }
+
+    @Test
+    public void catalogStreamedInChunksTest() throws IOException {
+        ContentServer contentServer = new ContentServer(serverDetails);
+        GETClient client = new GETClient(serverDetails);
+
+        // Enough stations for many chunks, one of them with characters of 2, 3 and 4 bytes in UTF-8
+        List<Map<String, String>> expected = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            Map<String, String> dataMap = ContentServer.parseFile("weather_1.txt");
+            dataMap.put("id", String.format("IDS9%04d", i));
+            if (i == 150) dataMap.put("name", "Mt Gambier – café ☀ \uD83C\uDF27");
+            contentServer.sendPutRequest(new Gson().toJson(dataMap));
+            expected.add(dataMap);
+        }
+
+        // Without an id, every station comes back, ordered by id, streamed in chunks
+        HashMap<String, String> response = client.sendGetRequest(null);
+        assertEquals("200", response.get("Status-Code"));
+        assertEquals("chunked", response.get("Transfer-Encoding"));
+        List<Map<String, String>> stations = new Gson().fromJson(response.get("body"),
+                new TypeToken<List<Map<String, String>>>() {}.getType());
+        assertEquals(expected, stations);
+
+        // The connection is left at the end of the body, ready for the next request
+        response = client.sendGetRequest("IDS90150");
+        assertEquals("200", response.get("Status-Code"));
+        assertEquals(expected.get(150), new Gson().fromJson(response.get("body"), Map.class));
+    }
+
+    @Test
+    public void changeFeedTest() throws IOException {
+        ContentServer contentServer = new ContentServer(serverDetails);
+        GETClient client = new GETClient(serverDetails);
+        contentServer.sendPutRequest(reading("IDS80010", "SA", "10.0"));
+        contentServer.sendPutRequest(reading("IDS80011", "SA", "11.0"));
+
+        // A snapshot of every station comes with the cursor to continue from
+        HashMap<String, String> response = client.sendGetRequest(null);
+        String cursor = response.get("Change-Cursor");
+        response = client.sendChangesRequest(cursor, 10);
+        assertEquals("200", response.get("Status-Code"));
+        ChangePage page = new Gson().fromJson(response.get("body"), ChangePage.class);
+        assertEquals(0, page.changes.size());
+        assertEquals(cursor, page.cursor);
+
+        // Only what changed after it is sent, a duplicate is not a change, and pages follow on
+        contentServer.sendPutRequest(reading("IDS80010", "SA", "12.0"));
+        contentServer.sendPutRequest(reading("IDS80010", "SA", "12.0"));
+        contentServer.sendPutRequest(reading("IDS80012", "VIC", "13.0"));
+        response = client.sendChangesRequest(cursor, 1);
+        page = new Gson().fromJson(response.get("body"), ChangePage.class);
+        assertEquals(1, page.changes.size());
+        assertEquals("put", page.changes.get(0).type);
+        assertEquals("12.0", page.changes.get(0).body.get("air_temp"));
+        assertTrue(page.more);
+        assertEquals(page.cursor, response.get("Change-Cursor"));
+
+        response = client.sendChangesRequest(page.cursor, 10);
+        page = new Gson().fromJson(response.get("body"), ChangePage.class);
+        assertEquals(1, page.changes.size());
+        assertEquals("IDS80012", page.changes.get(0).id);
+        assertFalse(page.more);
+        // Changes are in Lamport order
+        assertTrue(page.changes.get(0).lamportTime > 0);
+
+        // A cursor the log no longer covers means resync; a malformed one is a bad request
+        response = client.sendChangesRequest(new ChangeLog(1).cursor(), 10);
+        assertEquals("410", response.get("Status-Code"));
+        assertEquals("400", client.sendChangesRequest("nonsense", 10).get("Status-Code"));
+        assertEquals("400", client.sendChangesRequest(cursor, 0).get("Status-Code"));
+    }
+
+    @Test
+    public void cachedGetTest() throws Exception {
+        ContentServer contentServer = new ContentServer(serverDetails);
+        GETClient client = new GETClient(serverDetails);
+        contentServer.sendPutRequest(reading("IDS80020", "SA", "20.0"));
+
+        // Within the staleness bound a GET is served locally, with the same body and Lamport time
+        client.setCache(10, 60_000);
+        HashMap<String, String> first = client.sendGetRequest("IDS80020");
+        assertEquals("200", first.get("Status-Code"));
+        HashMap<String, String> second = client.sendGetRequest("IDS80020");
+        assertEquals(first.get("body"), second.get("body"));
+        assertEquals(first.get("Lamport-Time"), second.get("Lamport-Time"));
+        assertEquals(1, client.cache.hits());
+        assertEquals(1, client.cache.misses());
+
+        // Past the bound it is revalidated: 304 while unchanged, and the new body once a PUT changed it
+        client.setCache(10, 0);
+        first = client.sendGetRequest("IDS80020");
+        Thread.sleep(1);
+        second = client.sendGetRequest("IDS80020");
+        assertEquals(first.get("body"), second.get("body"));
+        assertTrue(Integer.parseInt(second.get("Lamport-Time")) > Integer.parseInt(first.get("Lamport-Time")));
+        assertEquals(1, client.cache.revalidations());
+        assertEquals(1, server.metrics.value("get.not_modified"));
+
+        contentServer.sendPutRequest(reading("IDS80020", "SA", "21.5"));
+        Thread.sleep(1);
+        HashMap<String, String> changed = client.sendGetRequest("IDS80020");
+        assertEquals("21.5", new WeatherEntry(changed.get("body")).get("air_temp"));
+        assertEquals(2, client.cache.misses());
+        assertTrue(!changed.get("ETag").equals(first.get("ETag")));
+    }
+
+    @Test
+    public void metricsTest() throws IOException {
+        GETClient client = new GETClient(serverDetails);
+
+        // Recovery is measured when the server starts
+        HashMap<String, String> response = client.sendQuery("/metrics.json");
+        assertEquals("200", response.get("Status-Code"));
+        Map<String, Double> metrics = new Gson().fromJson(response.get("body"),
+                new TypeToken<Map<String, Double>>() {}.getType());
+        assertTrue(metrics.containsKey("recovery.millis"));
+        assertTrue(metrics.containsKey("recovery.entries"));
+    }
+
+    @Test
+    public void queryParamsAndHeadersKeptApartTest() throws IOException {
+        ContentServer contentServer = new ContentServer(serverDetails);
+        GETClient client = new GETClient(serverDetails);
+        contentServer.sendPutRequest(reading("IDS80020", "SA", "10.0"));
+
+        // Query parameters named like the request line or a header change neither
+        HashMap<String, String> response = client.sendQuery(
+                "/weather.json?id=IDS80020&operation=PUT&path=/metrics.json&Upgrade=weather-binary/1&Lamport-Time=x");
+        assertEquals("200", response.get("Status-Code"));
+        assertEquals("10.0", new Gson().fromJson(response.get("body"), Map.class).get("air_temp"));
+
+        // Headers named like a filter or the request line are not query parameters
+        try (Socket socket = new Socket("localhost", Integer.parseInt(port))) {
+            String request = "GET /weather.json?id=IDS80020 HTTP/1.1\r\n"
+                    + "Lamport-Time: 0\r\n"
+                    + "state: VIC\r\n"
+                    + "operation: PUT\r\n"
+                    + "path: /metrics.json\r\n"
+                    + "\r\n";
+            socket.getOutputStream().write(request.getBytes(StandardCharsets.UTF_8));
+            response = RequestResponseHandler.parseResponse(socket);
+        }
+        assertEquals("200", response.get("Status-Code"));
+        assertEquals("IDS80020", new Gson().fromJson(response.get("body"), Map.class).get("id"));
+    }
+}
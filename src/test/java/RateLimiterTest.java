@@ -0,0 +1,63 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RateLimiterTest {
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    public void burstThenRateTest() {
+        RateLimiter limiter = new RateLimiter(10, 5);
+        long now = 1_000 * SECOND;
+
+        // A full bucket lets a burst through, then tells how long until the next token
+        for (int i = 0; i < 5; i++) assertEquals(0, limiter.tryAcquire("IDS60901", now));
+        assertEquals(SECOND / 10, limiter.tryAcquire("IDS60901", now));
+        // Keys have buckets of their own
+        assertEquals(0, limiter.tryAcquire("IDS60902", now));
+
+        // One token comes back every 100 ms
+        assertEquals(0, limiter.tryAcquire("IDS60901", now + SECOND / 10));
+        assertTrue(limiter.tryAcquire("IDS60901", now + SECOND / 10) > 0);
+
+        // A full bucket is the same as a new one, so pruning forgets it
+        limiter.prune(now + SECOND / 10);
+        assertEquals(1, limiter.keys());
+        limiter.prune(now + SECOND);
+        assertEquals(0, limiter.keys());
+    }
+
+    @Test
+    public void concurrentAcquireTest() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter(1, 100);
+        long now = System.nanoTime();
+        AtomicInteger allowed = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 1000; i++) {
+            pool.execute(() -> {
+                if (limiter.tryAcquire("IDS60901", now) == 0) allowed.incrementAndGet();
+            });
+        }
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+
+        // Exactly the burst gets through, however the threads interleave
+        assertEquals(100, allowed.get());
+    }
+
+    @Test
+    public void peekStationIdTest() {
+        assertEquals("IDS60901", WeatherCodec.peekStationId("{\"name\": \"Adelaide\", \"id\": \"IDS60901\", \"air_temp\": 13.3}"));
+        assertEquals("123", WeatherCodec.peekStationId("{\"id\": 123}"));
+        assertNull(WeatherCodec.peekStationId("{\"name\": \"Adelaide\"}"));
+        assertNull(WeatherCodec.peekStationId(""));
+        assertNull(WeatherCodec.peekStationId("not json"));
+    }
+}
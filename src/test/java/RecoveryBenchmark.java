@@ -0,0 +1,76 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+// Compares the old whole-file recovery (readAllBytes + Gson reflection) with the streaming
+// StorageFile.recoverDataFromFile on a store of 1M entries (50k stations x 20). Not run by
+// "mvn test"; start it with
+//   mvn test-compile exec:java -Dexec.mainClass="RecoveryBenchmark" -Dexec.classpathScope=test -Dexec.args="50000"
+public class RecoveryBenchmark {
+    private static final int ENTRIES_PER_STATION = 20;
+
+    public static void main(String[] args) throws IOException {
+        int stations = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        StorageFile storage = new StorageFile("target/bench/recovery", "weather_data.json");
+
+        Map<String, Deque<WeatherEntry>> weatherData = new HashMap<>();
+        for (int i = 0; i < stations; i++) {
+            Deque<WeatherEntry> updates = new LinkedList<>();
+            for (int j = 0; j < ENTRIES_PER_STATION; j++) {
+                HashMap<String, String> body = new HashMap<>();
+                body.put("id", "IDS" + i);
+                body.put("state", "SA");
+                body.put("air_temp", String.valueOf(j));
+                body.put("press", "1023.9");
+                body.put("wind_dir", "S");
+                updates.offerLast(new WeatherEntry(body, "2024-09-01T10:00:" + (10 + j)));
+            }
+            weatherData.put("IDS" + i, updates);
+        }
+        storage.saveDataToFile(weatherData);
+        weatherData = null;
+        System.out.printf("%d entries, file %.1f MB%n",
+                (long) stations * ENTRIES_PER_STATION, Files.size(storage.filePath) / 1e6);
+
+        for (int round = 1; round <= 3; round++) {
+            resetPeakHeap();
+            long start = System.nanoTime();
+            String content = new String(Files.readAllBytes(storage.filePath));
+            Map<String, Deque<WeatherEntry>> recovered = StorageFile.parseJsonToWeatherData(content);
+            report("readAllBytes + Gson", round, start, recovered.size());
+
+            recovered = null;
+            content = null;
+            resetPeakHeap();
+            start = System.nanoTime();
+            recovered = storage.recoverDataFromFile();
+            report("streaming JsonReader", round, start, recovered.size());
+        }
+    }
+
+    private static void resetPeakHeap() {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+        }
+    }
+
+    private static long peakHeapBytes() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+
+    private static void report(String name, int round, long start, int stations) {
+        System.out.printf("%-22s round %d: %7.0f ms, peak heap %6.0f MB (%d stations)%n",
+                name, round, (System.nanoTime() - start) / 1e6, peakHeapBytes() / 1e6, stations);
+    }
+}
@@ -0,0 +1,91 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+
+public class ResponseCacheTest {
+    private static final long MS = 1_000_000L;
+
+    private static HashMap<String, String> response(int statusCode, int lamportTime, String etag, String body) {
+        HashMap<String, String> response = new HashMap<>();
+        response.put("Status-Code", String.valueOf(statusCode));
+        response.put("Lamport-Time", String.valueOf(lamportTime));
+        if (etag != null) response.put("ETag", etag);
+        response.put("body", body);
+        return response;
+    }
+
+    @Test
+    public void stalenessAndRevalidationTest() {
+        ResponseCache cache = new ResponseCache(10, 100);
+        assertNull(cache.lookup("A", 0));
+        cache.update("A", response(200, 5, "\"a1\"", "{\"id\":\"A\"}"), 0);
+
+        // Fresh up to the bound, then the caller revalidates with the ETag
+        assertEquals("{\"id\":\"A\"}", cache.lookup("A", 100 * MS).get("body"));
+        assertNull(cache.lookup("A", 101 * MS));
+        assertEquals("\"a1\"", cache.etag("A"));
+
+        // A 304 returns the cached body at the newer Lamport time, and makes the entry fresh again
+        HashMap<String, String> revalidated = cache.update("A", response(304, 9, "\"a1\"", ""), 150 * MS);
+        assertEquals("200", revalidated.get("Status-Code"));
+        assertEquals("{\"id\":\"A\"}", revalidated.get("body"));
+        assertEquals("9", revalidated.get("Lamport-Time"));
+        assertEquals("9", cache.lookup("A", 200 * MS).get("Lamport-Time"));
+
+        // An answer older than the cached one does not replace it; a 204 drops the entry
+        cache.update("A", response(200, 7, "\"a0\"", "{\"id\":\"old\"}"), 300 * MS);
+        assertEquals("\"a1\"", cache.etag("A"));
+        cache.update("A", response(204, 12, null, ""), 300 * MS);
+        assertNull(cache.etag("A"));
+
+        assertEquals(2, cache.hits());
+        assertEquals(1, cache.revalidations());
+        assertEquals(3, cache.misses());
+    }
+
+    @Test
+    public void leastRecentlyUsedEvictionTest() {
+        ResponseCache cache = new ResponseCache(2, 1000);
+        cache.update("A", response(200, 1, "\"a\"", "A"), 0);
+        cache.update("B", response(200, 2, "\"b\"", "B"), 0);
+        // Reading A makes B the least recently used, so C pushes B out
+        cache.lookup("A", 0);
+        cache.update("C", response(200, 3, "\"c\"", "C"), 0);
+        assertEquals(2, cache.size());
+        assertNull(cache.etag("B"));
+        assertEquals("A", cache.lookup("A", 0).get("body"));
+        assertEquals("C", cache.lookup("C", 0).get("body"));
+    }
+
+    @Test
+    public void lamportTimesComparedPerReplicaTest() {
+        ResponseCache cache = new ResponseCache(10, 100);
+        HashMap<String, String> fromA = response(200, 50, "\"a1\"", "{\"air_temp\":\"1\"}");
+        fromA.put(ResponseCache.REPLICA, "a:4567");
+        cache.update("S", fromA, 0);
+
+        // Replica B has a clock of its own, so its lower Lamport time says nothing: its answer is cached
+        HashMap<String, String> fromB = response(200, 7, "\"b2\"", "{\"air_temp\":\"2\"}");
+        fromB.put(ResponseCache.REPLICA, "b:4567");
+        cache.update("S", fromB, 10 * MS);
+        assertEquals("\"b2\"", cache.etag("S"));
+        assertEquals("b:4567", cache.lookup("S", 10 * MS).get(ResponseCache.REPLICA));
+
+        // A late answer of B itself is older than the entry, and does not replace it
+        HashMap<String, String> lateB = response(200, 5, "\"b1\"", "{\"air_temp\":\"0\"}");
+        lateB.put(ResponseCache.REPLICA, "b:4567");
+        cache.update("S", lateB, 20 * MS);
+        assertEquals("\"b2\"", cache.etag("S"));
+
+        // A 304 of A means A holds the same reading: the entry takes A's Lamport time, lower or not
+        HashMap<String, String> notModified = response(304, 40, "\"b2\"", "");
+        notModified.put(ResponseCache.REPLICA, "a:4567");
+        HashMap<String, String> revalidated = cache.update("S", notModified, 200 * MS);
+        assertEquals("{\"air_temp\":\"2\"}", revalidated.get("body"));
+        assertEquals("40", revalidated.get("Lamport-Time"));
+        assertEquals("a:4567", revalidated.get(ResponseCache.REPLICA));
+    }
+}
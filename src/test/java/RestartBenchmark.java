@@ -0,0 +1,56 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+// Compares restart(), which stops the server and recovers it from storage, with hotRestart(), which
+// hands the bound socket and the data in memory to a new instance. Each is measured from the call to
+// the first GET served afterwards, on a new connection, with the given number of stations stored. Not run by "mvn test";
+// start it with
+//   mvn test-compile exec:java -Dexec.mainClass="RestartBenchmark" -Dexec.classpathScope=test -Dexec.args="20000"
+public class RestartBenchmark {
+    private static final int PORT = 4590;
+
+    public static void main(String[] args) throws IOException {
+        int stations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        StorageFile storage = new StorageFile("target/bench/restart", "weather_data.json");
+        Map<String, Deque<WeatherEntry>> weatherData = new HashMap<>();
+        for (int i = 0; i < stations; i++) {
+            HashMap<String, String> body = new HashMap<>();
+            body.put("id", "IDS" + i);
+            body.put("state", "SA");
+            body.put("air_temp", String.valueOf(i % 40));
+            Deque<WeatherEntry> updates = new LinkedList<>();
+            updates.offerLast(new WeatherEntry(body, LocalDateTime.now()));
+            weatherData.put("IDS" + i, updates);
+        }
+        storage.saveDataToFile(weatherData);
+        System.out.printf("%d stations, file %.1f MB%n", stations, Files.size(storage.filePath) / 1e6);
+
+        AggregationServer server = new AggregationServer(PORT, "target/bench/restart");
+        server.start();
+        try {
+            for (int round = 1; round <= 3; round++) {
+                long start = System.nanoTime();
+                server.restart();
+                new GETClient("localhost:" + PORT).sendGetRequest("IDS0");
+                report("restart()", round, start, server);
+
+                start = System.nanoTime();
+                server = server.hotRestart();
+                new GETClient("localhost:" + PORT).sendGetRequest("IDS0");
+                report("hotRestart()", round, start, server);
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static void report(String name, int round, long start, AggregationServer server) {
+        System.out.printf("%-13s round %d: first GET served after %8.2f ms (%d stations)%n",
+                name, round, (System.nanoTime() - start) / 1e6, server.weatherData.size());
+    }
+}
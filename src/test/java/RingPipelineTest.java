@@ -0,0 +1,99 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class RingPipelineTest {
+    private static class Item {
+        private long value;
+        private long order;
+    }
+
+    @Test
+    public void stagesKeepOrderAndBatchTest() throws InterruptedException {
+        int producers = 4;
+        int perProducer = 500;
+        CountDownLatch done = new CountDownLatch(producers * perProducer);
+        Set<Long> seen = new HashSet<>();
+        long[] counters = new long[2];
+        List<Long> outOfOrder = new ArrayList<>();
+        ServerMetrics metrics = new ServerMetrics();
+
+        // A small ring, so producers wait for free slots and the ring wraps many times
+        RingPipeline<Item> pipeline = new RingPipeline<>(8, Item::new, List.of("first", "second", "last"),
+                List.of((item, endOfBatch) -> item.order = counters[0]++,
+                        (item, endOfBatch) -> {
+                            if (item.order != counters[1]++) outOfOrder.add(item.order);
+                        },
+                        (item, endOfBatch) -> {
+                            seen.add(item.value);
+                            done.countDown();
+                            // A slow last stage, like persistence, gets larger batches
+                            if (endOfBatch) sleep(1);
+                        }),
+                metrics);
+        pipeline.start();
+        try {
+            List<Thread> threads = new ArrayList<>();
+            for (int p = 0; p < producers; p++) {
+                long base = (long) p * perProducer;
+                Thread thread = new Thread(() -> {
+                    for (int i = 0; i < perProducer; i++) {
+                        long value = base + i;
+                        pipeline.publish(item -> item.value = value);
+                    }
+                });
+                threads.add(thread);
+                thread.start();
+            }
+            for (Thread thread : threads) thread.join();
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+        } finally {
+            // Returns once the stages have finished, and counted, every item
+            pipeline.stop();
+        }
+
+        // Every item went through every stage once, in the same order
+        assertEquals(producers * perProducer, seen.size());
+        assertTrue(outOfOrder.isEmpty());
+        assertEquals(producers * perProducer, metrics.value("pipeline.first.events"));
+        assertEquals(producers * perProducer, metrics.value("pipeline.last.events"));
+        assertTrue(metrics.value("pipeline.last.batches") < metrics.value("pipeline.last.events"));
+    }
+
+    @Test
+    public void failedSlotDoesNotStopStageTest() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(3);
+        RingPipeline<Item> pipeline = new RingPipeline<>(4, Item::new, List.of("failing", "last"),
+                List.of((item, endOfBatch) -> {
+                            if (item.value == 1) throw new IllegalStateException("Failing on purpose");
+                        },
+                        (item, endOfBatch) -> done.countDown()),
+                new ServerMetrics());
+        pipeline.start();
+        try {
+            for (long value = 0; value < 3; value++) {
+                long current = value;
+                pipeline.publish(item -> item.value = current);
+            }
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        } finally {
+            pipeline.stop();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import com.google.gson.Gson;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ServerEventsTest {
+    private static final String[] STAGES = {"weather.Parse", "weather.Decode", "weather.QueueWait",
+            "weather.Apply", "weather.Persist", "weather.Respond", "weather.Cleanup"};
+
+    @Test
+    public void stageEventsTest() throws IOException {
+        Path dump = Paths.get("target/data/4575", "stages.jfr");
+        AggregationServer server = new AggregationServer(4575, "target/data/4575");
+        List<RecordedEvent> events;
+        try (Recording recording = new Recording()) {
+            for (String stage : STAGES) recording.enable(stage).withThreshold(Duration.ZERO);
+            recording.start();
+            server.start();
+            try {
+                Map<String, String> dataMap = ContentServer.parseFile("weather_1.txt");
+                ContentServer contentServer = new ContentServer("localhost:4575");
+                HashMap<String, String> response = contentServer.sendPutRequest(new Gson().toJson(dataMap));
+                assertEquals(201, Integer.parseInt(response.get("Status-Code")));
+                GETClient client = new GETClient("localhost:4575");
+                assertEquals(200, Integer.parseInt(client.sendGetRequest("IDS60901").get("Status-Code")));
+            } finally {
+                server.stop();
+                Files.deleteIfExists(server.weatherFile.filePath);
+            }
+            recording.stop();
+            recording.dump(dump);
+            events = RecordingFile.readAllEvents(dump);
+        } finally {
+            Files.deleteIfExists(dump);
+        }
+
+        // Every stage is recorded, and the events of the PUT carry its station and Lamport time
+        for (String stage : STAGES) {
+            assertTrue(events.stream().anyMatch(event -> event.getEventType().getName().equals(stage)),
+                    "No " + stage + " event");
+        }
+        for (RecordedEvent event : events) {
+            String stage = event.getEventType().getName();
+            if (stage.equals("weather.Cleanup") || (stage.equals("weather.Parse") && event.getString("path") == null)) {
+                continue;
+            }
+            assertEquals("IDS60901", event.getString("stationId"), stage);
+            assertTrue(event.getInt("lamportTime") > 0, stage);
+        }
+        RecordedEvent persist = events.stream()
+                .filter(event -> event.getEventType().getName().equals("weather.Persist"))
+                .findFirst().orElseThrow();
+        assertEquals(1, persist.getInt("stations"));
+        assertTrue(persist.getLong("bytes") > 0);
+    }
+}
@@ -0,0 +1,78 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+public class StationBudgetTest {
+    private static WeatherEntry reading(String stationId) {
+        HashMap<String, String> body = new HashMap<>();
+        body.put("id", stationId);
+        body.put("state", "SA");
+        body.put("air_temp", "13.3");
+        return new WeatherEntry(body, "2024-09-01T22:00:00");
+    }
+
+    @Test
+    public void clockEvictsLeastRecentlyUsedTest() {
+        StationBudget budget = new StationBudget(3, Long.MAX_VALUE);
+        budget.add("A", 100);
+        budget.add("B", 100);
+        budget.add("C", 100);
+        assertFalse(budget.isOverBudget());
+
+        // The first sweep clears every bit, so the first station passed twice goes first
+        budget.add("D", 100);
+        assertTrue(budget.isOverBudget());
+        assertEquals("A", budget.nextVictim("D"));
+        budget.remove("A");
+        assertFalse(budget.isOverBudget());
+
+        // B is used again, so C is the one not used since the hand passed it
+        budget.touch("B");
+        budget.add("E", 100);
+        assertEquals("C", budget.nextVictim("E"));
+        budget.remove("C");
+
+        // The station being written is never picked, even when it is the only one
+        StationBudget single = new StationBudget(0, Long.MAX_VALUE);
+        single.add("A", 100);
+        assertNull(single.nextVictim("A"));
+        assertEquals("A", single.nextVictim(null));
+    }
+
+    @Test
+    public void byteBudgetTest() {
+        WeatherEntry entry = reading("IDS60901");
+        long stationBytes = StationBudget.STATION_OVERHEAD_BYTES + 2 * "IDS60901".length() + entry.estimatedBytes();
+        StationBudget budget = new StationBudget(Integer.MAX_VALUE, 10 * stationBytes);
+
+        // Many new ids: evicting whenever over budget keeps the estimate flat
+        Set<String> held = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            String stationId = String.format("ID%06d", i);
+            budget.add(stationId, reading(stationId).estimatedBytes());
+            held.add(stationId);
+            while (budget.isOverBudget()) {
+                String victim = budget.nextVictim(stationId);
+                budget.remove(victim);
+                held.remove(victim);
+            }
+            assertTrue(budget.bytes() <= 10 * stationBytes);
+        }
+        assertEquals(10, budget.stations());
+        assertEquals(10, held.size());
+
+        // An entry pushed out of the window gives its bytes back
+        long before = budget.bytes();
+        String stationId = held.iterator().next();
+        budget.add(stationId, entry.estimatedBytes());
+        budget.add(stationId, -entry.estimatedBytes());
+        assertEquals(before, budget.bytes());
+    }
+}
@@ -1,7 +1,7 @@
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
-import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.BeforeAll;
 import com.google.gson.Gson;
@@ -18,15 +18,10 @@ public class StatusCodeTest {
     private static String jsonData = "";
     private static final String port = "4570";
     private final String serverDetails = "localhost:" + port;
-    private static Thread serverThread;
+    private AggregationServer server;
 
     @BeforeAll
     static void setup() {
-        // Start the server in a separate thread
-        String[] arguments = { port };
-        serverThread = new Thread(() -> AggregationServer.main(arguments));
-        serverThread.start();
-
         String filePath = "weather_1.txt";
         try {
             // Parse the file
@@ -39,22 +34,21 @@ public class StatusCodeTest {
         }
     }
 
+    @BeforeEach
+    public void startServer() throws IOException {
+        // Each test gets a fresh server, with its own storage directory
+        server = new AggregationServer(Integer.parseInt(port), "target/data/" + port);
+        server.start();
+    }
+
     @AfterEach
-    public void cleanUpServer() {
+    public void stopServer() {
+        server.stop();
         try {
-            Files.deleteIfExists(AggregationServer.weatherFile.filePath);
+            Files.deleteIfExists(server.weatherFile.filePath);
         } catch (IOException e) {
             System.err.println("Error deleting weather storage");
         }
-        AggregationServer.weatherData = new HashMap<>();
-        AggregationServer.clock = new LamportClock();
-    }
-
-    @AfterAll
-    static void shutdownServer() throws InterruptedException {
-        AggregationServer.shutdown();
-        serverThread.interrupt();
-        serverThread.join();
     }
 
     @Test
@@ -134,4 +128,58 @@ public class StatusCodeTest {
             System.out.println("Error occurred: " + e.getMessage());
         }
     }
+
+    @Test
+    public void putNestedJson500Test() throws IOException {
+        ContentServer contentServer = new ContentServer(serverDetails);
+
+        // Valid JSON that is not an object of fields is rejected before it reaches the processing thread
+        String nestedJson = "{\"id\": {\"station\": \"IDS60901\"}}";
+        HashMap<String, String> response = contentServer.sendPutRequest(nestedJson);
+        assertEquals(500, Integer.parseInt(response.get("Status-Code")));
+
+        // ...which keeps processing later requests
+        response = contentServer.sendPutRequest(jsonData);
+        assertEquals(201, Integer.parseInt(response.get("Status-Code")));
+    }
+
+    @Test
+    public void putWithoutId500Test() throws IOException {
+        ContentServer contentServer = new ContentServer(serverDetails);
+
+        // A reading without a station id is malformed: it is neither stored nor archived
+        HashMap<String, String> response = contentServer.sendPutRequest("{\"air_temp\": 13.3}");
+        assertEquals(500, Integer.parseInt(response.get("Status-Code")));
+        assertEquals(0, server.metrics.value("put.applied"));
+
+        // ...and the connection keeps working
+        response = contentServer.sendPutRequest(jsonData);
+        assertEquals(201, Integer.parseInt(response.get("Status-Code")));
+    }
+
+    @Test
+    public void putWeather429Test() throws IOException {
+        // Restart with a station limit of a burst of 3 PUTs, then one per second
+        server.stop();
+        server.setRateLimits(0, 1, 1, 3);
+        server.start();
+
+        ContentServer contentServer = new ContentServer(serverDetails);
+        for (int i = 0; i < 3; i++) {
+            HashMap<String, String> response = contentServer.sendPutRequest(jsonData);
+            assertEquals(i == 0 ? 201 : 200, Integer.parseInt(response.get("Status-Code")));
+        }
+
+        // The fourth PUT for the station is turned away, and told when to try again
+        HashMap<String, String> response = contentServer.sendPutRequest(jsonData);
+        assertEquals(429, Integer.parseInt(response.get("Status-Code")));
+        assertEquals("1", response.get("Retry-After"));
+        assertEquals(1, server.metrics.value("ratelimit.station.rejected"));
+
+        // Other stations, and GETs of the limited one, are not affected
+        response = contentServer.sendPutRequest(jsonData.replace("IDS60901", "IDS60902"));
+        assertEquals(201, Integer.parseInt(response.get("Status-Code")));
+        GETClient client = new GETClient(serverDetails);
+        assertEquals(200, Integer.parseInt(client.sendGetRequest("IDS60901").get("Status-Code")));
+    }
 }
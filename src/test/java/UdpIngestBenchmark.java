@@ -0,0 +1,94 @@
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compares ingesting readings as one HTTP PUT each with sending them as UDP datagrams of a batch each,
+// to a live server in this JVM. It reports the readings applied per second and per second of CPU time
+// of the whole process, client included. Datagrams are paced so that the socket buffer does not
+// overflow, and any that are lost anyway are reported. Not run by "mvn test"; start it with
+//   mvn test-compile exec:java -Dexec.mainClass="UdpIngestBenchmark" -Dexec.classpathScope=test -Dexec.args="20000 20"
+public class UdpIngestBenchmark {
+    private static final int PORT = 4593;
+    private static final int STATIONS = 500;
+    // Readings sent but not yet applied, before the sender waits
+    private static final int IN_FLIGHT = 1000;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int readings = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        AggregationServer server = new AggregationServer(PORT, "target/bench/udp-ingest");
+        // Storage that rewrites one slot per station, and no rate limits, so the transport is what differs
+        server.setStorageFormat("binary");
+        server.setRateLimits(0, 1, 0, 1);
+        server.setUdpPort(PORT);
+        server.start();
+        try (UdpContentServer station = new UdpContentServer("localhost:" + PORT)) {
+            Map<String, String> template = ContentServer.parseFile("weather_1.txt");
+            for (int round = 1; round <= 3; round++) {
+                List<Map<String, String>> data = readings(template, readings, round, "N");
+                Gson gson = new Gson();
+                ContentServer http = new ContentServer("localhost:" + PORT);
+                long applied = ingested(server);
+                long cpu = cpuNanos();
+                long start = System.nanoTime();
+                for (Map<String, String> reading : data) http.sendPutRequest(gson.toJson(reading));
+                report("HTTP PUT", round, start, cpu, ingested(server) - applied);
+
+                // New values, so the datagrams are not all duplicates of what HTTP just sent
+                data = readings(template, readings, round, "S");
+                applied = ingested(server);
+                long lost = server.metrics.value("udp.readings");
+                cpu = cpuNanos();
+                start = System.nanoTime();
+                for (int from = 0; from < readings; from += batchSize) {
+                    while (from - (ingested(server) - applied) > IN_FLIGHT) Thread.onSpinWait();
+                    station.send(data.subList(from, Math.min(readings, from + batchSize)));
+                }
+                // Wait for the pipeline to take the rest, or for the count to stop moving
+                long seen = -1;
+                while (ingested(server) - applied < readings && ingested(server) != seen) {
+                    seen = ingested(server);
+                    Thread.sleep(50);
+                }
+                lost = readings - (server.metrics.value("udp.readings") - lost);
+                report("UDP x" + batchSize, round, start, cpu, ingested(server) - applied);
+                if (lost > 0) System.out.println("  " + lost + " readings lost in the network");
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static List<Map<String, String>> readings(Map<String, String> template, int count, int round, String wind) {
+        List<Map<String, String>> data = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Map<String, String> reading = new HashMap<>(template);
+            reading.put("id", "IDS" + (i % STATIONS));
+            reading.put("air_temp", String.valueOf(round * 100 + i % 97 / 10.0));
+            reading.put("wind_dir", wind);
+            data.add(reading);
+        }
+        return data;
+    }
+
+    // Readings the pipeline has taken, whether new or a repeat of a station's latest
+    private static long ingested(AggregationServer server) {
+        return server.metrics.value("put.applied") + server.metrics.value("put.duplicates");
+    }
+
+    private static long cpuNanos() {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+    }
+
+    private static void report(String name, int round, long start, long cpuStart, long readings) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double cpuSeconds = (cpuNanos() - cpuStart) / 1e9;
+        System.out.printf("%-10s round %d: %8.0f readings/s, %8.0f readings per CPU second%n",
+                name, round, readings / seconds, readings / cpuSeconds);
+    }
+}
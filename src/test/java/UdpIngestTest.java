@@ -0,0 +1,87 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class UdpIngestTest {
+    private static final InetSocketAddress SERVER = new InetSocketAddress("localhost", 4577);
+
+    // Datagrams are not answered, so wait for the server to count what it did with them
+    private static void awaitMetric(AggregationServer server, String name, long expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.metrics.value(name) < expected && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        assertEquals(expected, server.metrics.value(name));
+    }
+
+    @Test
+    public void datagramIngestTest() throws IOException, InterruptedException {
+        AggregationServer server = new AggregationServer(4577, "target/data/4577");
+        server.setUdpPort(4577);
+        server.start();
+        try (UdpContentServer station = new UdpContentServer("localhost:4577");
+             DatagramChannel raw = DatagramChannel.open()) {
+            Map<String, String> dataMap = ContentServer.parseFile("weather_1.txt");
+            HashMap<String, String> other = new HashMap<>(dataMap);
+            other.put("id", "IDS60902");
+
+            // Readings of one datagram go through the same path as PUTs, and are served over HTTP
+            station.send(List.of(dataMap, other));
+            awaitMetric(server, "put.applied", 2);
+            GETClient client = new GETClient("localhost:4577");
+            HashMap<String, String> response = client.sendGetRequest("IDS60902");
+            assertEquals(200, Integer.parseInt(response.get("Status-Code")));
+            assertEquals(new Gson().toJson(other), response.get("body"));
+
+            // A datagram delivered twice, or one older than the latest of its station, is dropped
+            HashMap<String, String> newer = new HashMap<>(dataMap);
+            newer.put("air_temp", "20.1");
+            byte[] frame = BinaryProtocol.encodeBatch(10, List.of(newer));
+            raw.send(ByteBuffer.wrap(frame), SERVER);
+            raw.send(ByteBuffer.wrap(frame), SERVER);
+            HashMap<String, String> older = new HashMap<>(dataMap);
+            older.put("air_temp", "-5.0");
+            raw.send(ByteBuffer.wrap(BinaryProtocol.encodeBatch(9, List.of(older))), SERVER);
+            awaitMetric(server, "udp.stale", 2);
+            awaitMetric(server, "put.applied", 3);
+            response = client.sendGetRequest("IDS60901");
+            assertEquals(new Gson().toJson(newer), response.get("body"));
+
+            // Several readings of one station in a datagram are all taken; a bad datagram is counted
+            HashMap<String, String> last = new HashMap<>(newer);
+            last.put("air_temp", "21.4");
+            raw.send(ByteBuffer.wrap(BinaryProtocol.encodeBatch(11, List.of(dataMap, last))), SERVER);
+            raw.send(ByteBuffer.wrap(new byte[]{0, 0, 0, 9, 1}), SERVER);
+            awaitMetric(server, "put.applied", 5);
+            awaitMetric(server, "udp.malformed", 1);
+            assertEquals(new Gson().toJson(last), client.sendGetRequest("IDS60901").get("body"));
+
+            // After a hot restart the same socket keeps feeding the instance that took over
+            AggregationServer next = server.hotRestart();
+            HashMap<String, String> afterRestart = new HashMap<>(other);
+            afterRestart.put("air_temp", "7.7");
+            station.send(List.of(afterRestart));
+            awaitMetric(next, "put.applied", 6);
+            assertEquals(new Gson().toJson(afterRestart), client.sendGetRequest("IDS60902").get("body"));
+
+            // Readings that would not arrive in one piece are refused by the sender
+            HashMap<String, String> huge = new HashMap<>(dataMap);
+            huge.put("name", "x".repeat(AggregationServer.MAX_DATAGRAM_BYTES));
+            assertThrows(IllegalArgumentException.class, () -> station.send(List.of(huge)));
+            assertTrue(station.clock.getTime() > 1);
+        } finally {
+            server.stop();
+            Files.deleteIfExists(server.weatherFile.filePath);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+
+public class WeatherAggregatesTest {
+    private static WeatherEntry reading(String id, String airTemp) {
+        return new WeatherEntry("{\"id\": \"" + id + "\", \"state\": \"SA\", \"air_temp\": \"" + airTemp + "\"}");
+    }
+
+    @Test
+    public void sumsDoNotDriftTest() {
+        WeatherAggregates aggregates = new WeatherAggregates();
+
+        // A plain sum loses the 1.5 next to 1e16, and is left with 2.0 once 1e16 leaves
+        aggregates.add(reading("IDS60901", "1e16"));
+        aggregates.add(reading("IDS60901", "1.5"));
+        aggregates.evictOldest("IDS60901");
+        HashMap<String, String> station = aggregates.stationSummary("IDS60901");
+        assertEquals("1", station.get("entries"));
+        assertEquals("1.5", station.get("air_temp_avg"));
+        assertEquals("1.5", aggregates.stateSummary("SA").get("air_temp_avg"));
+
+        // A window that empties starts again from zero, with no rounding left from 0.1 + 0.2
+        aggregates.add(reading("IDS60902", "0.1"));
+        aggregates.add(reading("IDS60902", "0.2"));
+        aggregates.evictOldest("IDS60902");
+        aggregates.evictOldest("IDS60902");
+        assertNull(aggregates.stationSummary("IDS60902"));
+        aggregates.add(reading("IDS60902", "0.3"));
+        assertEquals("0.3", aggregates.stationSummary("IDS60902").get("air_temp_avg"));
+    }
+}
@@ -0,0 +1,43 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+
+public class WeatherCodecTest {
+    @Test
+    public void decodeMatchesGsonTest() {
+        String body = "{\"id\": \"IDS60901\", \"air_temp\": 13.3, \"press\": 1023.90, \"rel_hum\": 60,"
+                + " \"cloud\": null, \"raining\": false}";
+        HashMap<String, String> expected = new Gson().fromJson(body, new TypeToken<HashMap<String, String>>() {}.getType());
+
+        // Numbers and booleans keep their text, as Gson reads them into a map of Strings
+        assertEquals(expected, WeatherCodec.parseBody(body));
+        WeatherEntry entry = WeatherCodec.decode(body);
+        assertNotNull(entry);
+        assertEquals(expected, entry.getBody());
+        assertEquals("1023.90", entry.get("press"));
+        assertTrue(entry.getBody().containsKey("cloud"));
+    }
+
+    @Test
+    public void rejectsWhatIsNotAReadingTest() {
+        // Malformed JSON, and JSON that is not a flat object of fields
+        assertNull(WeatherCodec.decode("{\"id\": \"IDS60901\""));
+        assertNull(WeatherCodec.decode("[{\"id\": \"IDS60901\"}]"));
+        assertNull(WeatherCodec.decode("{\"id\": {\"station\": \"IDS60901\"}}"));
+        assertNull(WeatherCodec.decode("{\"id\": \"IDS60901\", \"id\": \"IDS60902\"}"));
+        assertNull(WeatherCodec.decode("{\"id\": \"IDS60901\"} {}"));
+        assertNull(WeatherCodec.decode("\"IDS60901\""));
+        // A reading without a station id has nowhere to be stored
+        assertNull(WeatherCodec.decode("{\"air_temp\": 13.3}"));
+        assertNull(WeatherCodec.decode("{\"id\": null, \"air_temp\": 13.3}"));
+        assertNull(WeatherCodec.decode("{\"id\": \"\", \"air_temp\": 13.3}"));
+        assertNotNull(WeatherCodec.decode("{\"id\": \"IDS60901\"}\n"));
+    }
+}
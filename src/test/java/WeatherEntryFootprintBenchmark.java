@@ -0,0 +1,104 @@
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+// Compares the heap held by stored readings in the compact WeatherEntry with the map-based entry it
+// replaced (a HashMap<String, String> body and an ISO timestamp String, as parsed from the PUT body).
+// Not run by "mvn test"; start it with
+//   mvn test-compile exec:java -Dexec.mainClass="WeatherEntryFootprintBenchmark" -Dexec.classpathScope=test -Dexec.args="10000"
+public class WeatherEntryFootprintBenchmark {
+    private static final int ENTRIES_PER_STATION = 20;
+    private static final String[] STATES = { "SA", "VIC", "NSW", "QLD", "WA", "TAS", "NT" };
+    private static final String[] TIME_ZONES = { "CST", "EST", "WST" };
+    private static final String[] CLOUDS = { "Partly cloudy", "Sunny", "Cloudy", "Showers" };
+    private static final String[] WIND_DIRS = { "N", "NE", "E", "SE", "S", "SW", "W", "NW" };
+
+    // The map-based entry, as it was before the compact one
+    private static class MapEntry {
+        private final String timestamp;
+        private final HashMap<String, String> body;
+
+        private MapEntry(HashMap<String, String> body, String timestamp) {
+            this.body = body;
+            this.timestamp = timestamp;
+        }
+    }
+
+    public static void main(String[] args) {
+        int stations = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        long entries = (long) stations * ENTRIES_PER_STATION;
+
+        long before = usedHeap();
+        Map<String, Deque<MapEntry>> mapEntries = new HashMap<>();
+        for (int i = 0; i < stations; i++) {
+            Deque<MapEntry> updates = new LinkedList<>();
+            for (int j = 0; j < ENTRIES_PER_STATION; j++) {
+                updates.offerLast(new MapEntry(reading(i, j), timestamp(j)));
+            }
+            mapEntries.put("IDS" + i, updates);
+        }
+        long mapBytes = usedHeap() - before;
+        // Keep the entries reachable until they are measured
+        Reference.reachabilityFence(mapEntries);
+        report("HashMap body", entries, mapBytes);
+        mapEntries = null;
+
+        before = usedHeap();
+        Map<String, Deque<WeatherEntry>> compactEntries = new HashMap<>();
+        for (int i = 0; i < stations; i++) {
+            Deque<WeatherEntry> updates = new LinkedList<>();
+            for (int j = 0; j < ENTRIES_PER_STATION; j++) {
+                updates.offerLast(new WeatherEntry(reading(i, j), timestamp(j)));
+            }
+            compactEntries.put("IDS" + i, updates);
+        }
+        long compactBytes = usedHeap() - before;
+        Reference.reachabilityFence(compactEntries);
+        report("compact WeatherEntry", entries, compactBytes);
+        System.out.printf("compact entries use %.1fx less heap (%d stations)%n",
+                (double) mapBytes / compactBytes, stations);
+    }
+
+    // A reading shaped like src/main/resources/weather_1.txt, with fresh Strings as Gson would parse them
+    private static HashMap<String, String> reading(int station, int update) {
+        HashMap<String, String> body = new HashMap<>();
+        body.put(new String("id"), "IDS" + station);
+        body.put(new String("name"), "Station " + station);
+        body.put(new String("state"), new String(STATES[station % STATES.length]));
+        body.put(new String("time_zone"), new String(TIME_ZONES[station % TIME_ZONES.length]));
+        body.put(new String("lat"), String.valueOf(-10.0 - station % 300 / 10.0));
+        body.put(new String("lon"), String.valueOf(115.0 + station % 400 / 10.0));
+        body.put(new String("local_date_time"), "15/04:" + (10 + update) + "pm");
+        body.put(new String("local_date_time_full"), "202307151604" + (10 + update));
+        body.put(new String("air_temp"), String.valueOf(update % 30 + 0.5));
+        body.put(new String("apparent_t"), String.valueOf(update % 25 + 0.3));
+        body.put(new String("cloud"), new String(CLOUDS[update % CLOUDS.length]));
+        body.put(new String("dewpt"), String.valueOf(update % 10 + 0.7));
+        body.put(new String("press"), String.valueOf(1000 + update % 40 + 0.9));
+        body.put(new String("rel_hum"), String.valueOf(40 + update % 50));
+        body.put(new String("wind_dir"), new String(WIND_DIRS[update % WIND_DIRS.length]));
+        body.put(new String("wind_spd_kmh"), String.valueOf(update % 40));
+        body.put(new String("wind_spd_kt"), String.valueOf(update % 20));
+        return body;
+    }
+
+    private static String timestamp(int update) {
+        return LocalDateTime.of(2024, 9, 1, 10, 0).plusSeconds(update).plusNanos(123_456_789)
+                .format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static void report(String name, long entries, long bytes) {
+        System.out.printf("%-22s %8.1f MB for %d entries, %5d bytes per entry%n",
+                name, bytes / 1e6, entries, bytes / entries);
+    }
+}
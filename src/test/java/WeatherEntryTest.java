@@ -0,0 +1,88 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Type;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Map;
+
+public class WeatherEntryTest {
+    private static final String BODY = "{\"id\": \"IDS60901\", \"state\": \"SA\", \"air_temp\": \"13.3\","
+            + " \"press\": \"1023.90\", \"rel_hum\": \"60\", \"dewpt\": \"05\", \"apparent_t\": \"-0\","
+            + " \"wind_spd_kt\": \"8\", \"cloud\": \"Partly cloudy\", \"lat\": \"-34.9\", \"big\": \"1e3\"}";
+
+    @Test
+    public void bodyIsRenderedAsReceivedTest() {
+        Type type = new TypeToken<HashMap<String, String>>() {}.getType();
+        HashMap<String, String> expected = new Gson().fromJson(BODY, type);
+        WeatherEntry entry = new WeatherEntry(BODY);
+
+        // Numbers that would print differently, like "1023.90" or "05", keep their text
+        assertEquals(expected, entry.getBody());
+        assertEquals(new Gson().toJson(expected), new Gson().toJson(entry.getBody()));
+        assertEquals("1023.90", entry.get("press"));
+        assertEquals(1023.9, entry.getNumber("press"));
+        assertEquals(13.3, entry.getNumber("air_temp"));
+        assertEquals(60.0, entry.getNumber("rel_hum"));
+        assertTrue(Double.isNaN(entry.getNumber("cloud")));
+        assertTrue(Double.isNaN(entry.getNumber("missing")));
+        assertNull(entry.get("missing"));
+    }
+
+    @Test
+    public void jsonAndTimestampTest() {
+        HashMap<String, String> body = new HashMap<>();
+        body.put("id", "IDS60901");
+        body.put("air_temp", "13.3");
+        body.put("cloud", null);
+        LocalDateTime timestamp = LocalDateTime.of(2024, 9, 1, 10, 0, 5, 123_456_789);
+        WeatherEntry entry = new WeatherEntry(body, timestamp);
+
+        assertEquals(timestamp, entry.getTimestampAsLocalDateTime());
+        assertEquals("2024-09-01T10:00:05.123456789", entry.getTimestamp());
+        assertEquals(body, entry.getBody());
+
+        // Stored and sent as {"timestamp", "body"}, like the map-based entry; null values are left out
+        String json = new Gson().toJson(entry);
+        Map<?, ?> parsed = new Gson().fromJson(json, Map.class);
+        assertEquals("2024-09-01T10:00:05.123456789", parsed.get("timestamp"));
+        assertEquals(2, ((Map<?, ?>) parsed.get("body")).size());
+
+        WeatherEntry back = new Gson().fromJson(json, WeatherEntry.class);
+        assertEquals(entry.getTimestamp(), back.getTimestamp());
+        assertEquals("13.3", back.get("air_temp"));
+    }
+
+    @Test
+    public void schemaIsCappedTest() {
+        // Made-up field names fill the shared schema up to its cap, and no further
+        for (int i = 0; i < WeatherEntry.MAX_FIELD_NAMES; i++) {
+            HashMap<String, String> body = new HashMap<>();
+            body.put("id", "IDS60901");
+            body.put("made_up_" + i, "1");
+            new WeatherEntry(body, LocalDateTime.now());
+        }
+
+        // A reading with a name past the cap keeps its own map: it reads the same, and its memory is counted
+        HashMap<String, String> body = new HashMap<>();
+        body.put("id", "IDS60901");
+        body.put("past_the_cap", "12.5");
+        body.put("cloud", null);
+        WeatherEntry entry = new WeatherEntry(body, LocalDateTime.now());
+        assertEquals(body, entry.getBody());
+        assertEquals("12.5", entry.get("past_the_cap"));
+        assertEquals(12.5, entry.getNumber("past_the_cap"));
+        assertTrue(Double.isNaN(entry.getNumber("cloud")));
+        assertNull(entry.get("missing"));
+        assertTrue(entry.estimatedBytes() > 3 * 40 + "past_the_cap".length());
+
+        // Readings of names already in the schema are stored compactly as before
+        WeatherEntry known = new WeatherEntry(BODY);
+        assertEquals("1023.90", known.get("press"));
+    }
+}